@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the whole calculator run over a file generated by
+ * {@link InstructionGenerator}, reading it through a reader, memory-mapped
+ * or by a pipeline of threads. A single operation is a run over the whole
+ * input.
+ *
+ * @author janvojt
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Thread)
+public class CalculatorBenchmark {
+
+    /** Seed of the generated input. */
+    private static final long SEED = 42;
+
+    /** Number of input lines. */
+    @Param({"1000", "1000000", "100000000"})
+    public long lines;
+
+    /** Way of reading the input. */
+    @Param({"reader", "mmap", "pipelined"})
+    public String input;
+
+    /** Generated input file. */
+    private Path file;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = Files.createTempFile("calculator-benchmark", ".txt");
+        InstructionGenerator generator = new InstructionGenerator();
+        generator.setSeed(SEED);
+        generator.setInvalidRate(0.01);
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+            StringBuilder block = new StringBuilder();
+            for (long generated = 0; generated < lines; ) {
+                generated += generator.generateBlock(block, null);
+                writer.append(block);
+                block.setLength(0);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (file != null) {
+            Files.delete(file);
+            file = null;
+        }
+    }
+
+    /**
+     * Runs the calculator over the whole input.
+     *
+     * @return number of characters written
+     * @throws IOException
+     */
+    @Benchmark
+    public long run() throws IOException {
+        CountingWriter writer = new CountingWriter();
+        if ("reader".equals(input)) {
+            InteractiveCalculator calculator = new InteractiveCalculator();
+            calculator.setReader(Files.newBufferedReader(file, StandardCharsets.US_ASCII));
+            calculator.setWriter(writer);
+            calculator.run();
+        } else if ("pipelined".equals(input)) {
+            PipelinedCalculator calculator = new PipelinedCalculator();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                calculator.setChannel(channel);
+                calculator.setWriter(writer);
+                calculator.run();
+            }
+        } else {
+            MappedFileCalculator calculator = new MappedFileCalculator();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                calculator.setChannel(channel);
+                calculator.setWriter(writer);
+                calculator.run();
+            }
+        }
+        return writer.count;
+    }
+
+    /**
+     * Writer discarding the output, only counting its characters.
+     */
+    private static class CountingWriter extends Writer {
+
+        /** Number of characters written. */
+        private long count;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(String str) {
+            count += str.length();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
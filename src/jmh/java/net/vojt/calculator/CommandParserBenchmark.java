@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+
+package net.vojt.calculator;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures parsing of single commands by the available parsers.
+ *
+ * @author janvojt
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandParserBenchmark {
+
+    /** Mix of lines as found in the instruction files. */
+    private static final String[] LINES = {
+        "add 2", "multiply 3", "subtract 12.75", "divide 4", "apply 3",
+        "add 1000000", "multiply -0.5", "#### invalid line"
+    };
+
+    /** Parser implementation to measure. */
+    @Param({"decimal", "ascii"})
+    public String parser;
+
+    /** Measured parser. */
+    private CommandParser commandParser;
+
+    @Setup
+    public void setUp() {
+        commandParser = "ascii".equals(parser) ? new AsciiCommandParser() : new DecimalCommandParser();
+    }
+
+    /**
+     * Parses the mix of lines, measured per line.
+     *
+     * @param blackhole consumer of the results
+     */
+    @Benchmark
+    @OperationsPerInvocation(8)
+    public void parse(Blackhole blackhole) {
+        for (String line : LINES) {
+            try {
+                blackhole.consume(commandParser.parse(line));
+            } catch (InvalidCommandSyntaxException ex) {
+                blackhole.consume(ex);
+            }
+        }
+    }
+
+}
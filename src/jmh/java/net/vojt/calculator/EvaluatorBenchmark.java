@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures evaluation of short and long computations repeating a single
+ * operation. Values are chosen so that the result does not grow.
+ *
+ * @author janvojt
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EvaluatorBenchmark {
+
+    /** Operation repeated in the computation. */
+    @Param({"ADD", "SUBTRACT", "MULTIPLY", "DIVIDE"})
+    public Operation operation;
+
+    /** Number of commands in the computation. */
+    @Param({"10", "100000"})
+    public int length;
+
+    /** Evaluator implementation to measure. */
+    @Param({"impl", "tiered"})
+    public String evaluator;
+
+    /** Commands of the computation as produced by the parser. */
+    private Command[] commands;
+
+    /** Measured evaluator. */
+    private Evaluator eval;
+
+    @Setup
+    public void setUp() throws InvalidCommandSyntaxException {
+        String value = operation == Operation.ADD || operation == Operation.SUBTRACT ? "7" : "-1";
+        Command command = new AsciiCommandParser().parse(operation + " " + value);
+        commands = new Command[length];
+        for (int i = 0; i < length; i++) {
+            commands[i] = command;
+        }
+        eval = "tiered".equals(evaluator) ? new TieredEvaluator() : new EvaluatorImpl();
+    }
+
+    /**
+     * Fills and evaluates the computation.
+     *
+     * @return computation result
+     */
+    @Benchmark
+    public BigDecimal evaluate() {
+        Computation computation = new Computation();
+        for (Command command : commands) {
+            computation.pushCommand(command);
+        }
+        computation.setInitializer(BigDecimal.ONE);
+        return eval.evaluate(computation);
+    }
+
+}
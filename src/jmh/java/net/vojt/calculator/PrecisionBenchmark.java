@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures evaluation time against the length of a multiplication heavy
+ * computation, evaluated exactly and rounded to a precision. Every exact
+ * multiplication adds to the digits of the result, so the exact time
+ * grows quadratically with the length, while the rounded one grows
+ * linearly.
+ *
+ * @author janvojt
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PrecisionBenchmark {
+
+    /** Number of commands in the computation. */
+    @Param({"100", "1000", "10000"})
+    public int length;
+
+    /** Number of digits of the results, zero for exact evaluation. */
+    @Param({"0", "34"})
+    public int precision;
+
+    /** Commands of the computation, multiplications with additions in between. */
+    private Command[] commands;
+
+    /** Measured evaluator. */
+    private Evaluator eval;
+
+    @Setup
+    public void setUp() {
+        Command multiply = new Command(Operation.MULTIPLY, new BigDecimal("1.0001"));
+        Command add = new Command(Operation.ADD, new BigDecimal("0.5"));
+        commands = new Command[length];
+        for (int i = 0; i < length; i++) {
+            commands[i] = i % 4 == 3 ? add : multiply;
+        }
+        eval = new EvaluatorImpl(precision == 0
+                ? MathContext.UNLIMITED
+                : new MathContext(precision));
+    }
+
+    /**
+     * Fills and evaluates the computation.
+     *
+     * @return computation result
+     */
+    @Benchmark
+    public BigDecimal evaluate() {
+        Computation computation = new Computation();
+        for (Command command : commands) {
+            computation.pushCommand(command);
+        }
+        computation.setInitializer(BigDecimal.ONE);
+        return eval.evaluate(computation);
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures replaying the same instructions from the text format and from
+ * the {@link BinaryFormat}. The computations are only drained instead of
+ * evaluated, so that the reading and decoding is measured. A single
+ * operation is a single line replayed.
+ *
+ * @author janvojt
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReplayBenchmark {
+
+    /** Number of lines replayed in a single invocation. */
+    private static final int LINES = 100000;
+
+    /** Format of the replayed instructions. */
+    @Param({"text", "binary"})
+    public String format;
+
+    /** Instructions in the text format. */
+    private String text;
+
+    /** Instructions in the binary format. */
+    private byte[] binary;
+
+    /** Evaluator draining the computations. */
+    private final Evaluator drain = new Evaluator() {
+        @Override
+        public BigDecimal evaluate(Computation computation) {
+            while (computation.advance()) {
+                // drop the command
+            }
+            return computation.getInitializer();
+        }
+    };
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        String[] operations = {"add", "subtract", "multiply", "divide"};
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            String operation = i % 5 == 4 ? "apply" : operations[random.nextInt(operations.length)];
+            lines.append(operation).append(' ').append(1 + random.nextInt(100)).append('\n');
+        }
+        text = lines.toString();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BinaryConverter().convert(new StringReader(text), Channels.newChannel(out));
+        binary = out.toByteArray();
+    }
+
+    /**
+     * Replays all the lines.
+     *
+     * @return output of the calculator
+     * @throws IOException in case of I/O error
+     */
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public String replay() throws IOException {
+        StringWriter writer = new StringWriter();
+        InteractiveCalculator calculator;
+        if ("binary".equals(format)) {
+            BinaryCalculator binaryCalculator = new BinaryCalculator();
+            binaryCalculator.setChannel(Channels.newChannel(new ByteArrayInputStream(binary)));
+            calculator = binaryCalculator;
+        } else {
+            calculator = new InteractiveCalculator();
+            calculator.setParser(new AsciiCommandParser());
+            calculator.setReader(new StringReader(text));
+        }
+        calculator.setWriter(writer);
+        calculator.setOutputMode(InteractiveCalculator.OutputMode.BATCH);
+        calculator.setEval(drain);
+        calculator.run();
+        return writer.toString();
+    }
+
+}
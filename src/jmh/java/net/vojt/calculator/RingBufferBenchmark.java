@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures passing commands from a producer thread to the benchmark
+ * thread through {@link CommandRingBuffer} with each of the wait strategies
+ * and through the JDK blocking queues. The JDK queues get a new
+ * {@link LongCommand} for every element, as they cannot hold values
+ * in place. A single operation is a single command passed.
+ *
+ * @author janvojt
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class RingBufferBenchmark {
+
+    /** Number of commands passed in a single invocation. */
+    private static final int COUNT = 1 << 20;
+
+    /** Capacity of the ring and the queues. */
+    private static final int CAPACITY = 1024;
+
+    /** Number of slots claimed by the producer at once. */
+    private static final int BATCH = 64;
+
+    /** Hand-off implementation. */
+    @Param({"ring-spin", "ring-yield", "ring-park", "array", "linked"})
+    public String queue;
+
+    /**
+     * Passes the commands.
+     *
+     * @return sum of the values received
+     * @throws InterruptedException
+     */
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public long transfer() throws InterruptedException {
+        switch (queue) {
+            case "ring-spin" :
+                return transfer(new CommandRingBuffer(CAPACITY, WaitStrategy.BUSY_SPIN));
+            case "ring-yield" :
+                return transfer(new CommandRingBuffer(CAPACITY, WaitStrategy.YIELD));
+            case "ring-park" :
+                return transfer(new CommandRingBuffer(CAPACITY, WaitStrategy.PARK));
+            case "array" :
+                return transfer(new ArrayBlockingQueue<Command>(CAPACITY));
+            case "linked" :
+                return transfer(new LinkedBlockingQueue<Command>(CAPACITY));
+            default :
+                throw new IllegalArgumentException("Unknown queue: " + queue);
+        }
+    }
+
+    /**
+     * Passes the commands through the ring in batches.
+     *
+     * @param ring ring to use
+     * @return sum of the values received
+     * @throws InterruptedException
+     */
+    private static long transfer(final CommandRingBuffer ring) throws InterruptedException {
+        Thread producer = start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    byte op = (byte) Operation.ADD.ordinal();
+                    for (int sent = 0; sent < COUNT; sent += BATCH) {
+                        long first = ring.next(BATCH);
+                        for (int i = 0; i < BATCH; i++) {
+                            ring.set(first + i, op, sent + i, 0);
+                        }
+                        ring.publish(first + BATCH - 1);
+                    }
+                    ring.close();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        long sum = 0;
+        long next = 0;
+        for (long last = ring.waitFor(next); last >= 0; last = ring.waitFor(next)) {
+            for (; next <= last; next++) {
+                sum += ring.command(next).getLongValue();
+            }
+            ring.release(last);
+        }
+        producer.join();
+        return sum;
+    }
+
+    /**
+     * Passes the commands through the blocking queue one by one.
+     *
+     * @param commands queue to use
+     * @return sum of the values received
+     * @throws InterruptedException
+     */
+    private static long transfer(final BlockingQueue<Command> commands) throws InterruptedException {
+        Thread producer = start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int sent = 0; sent < COUNT; sent++) {
+                        commands.put(new LongCommand(Operation.ADD, sent));
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        long sum = 0;
+        for (int received = 0; received < COUNT; received++) {
+            sum += commands.take().getLongValue();
+        }
+        producer.join();
+        return sum;
+    }
+
+    /**
+     * Starts the producer thread.
+     *
+     * @param producer producer task
+     * @return the started thread
+     */
+    private static Thread start(Runnable producer) {
+        Thread thread = new Thread(producer, "benchmark-producer");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures exact evaluation of a single long computation without divisions
+ * applied one command at a time and reduced by {@link TreeReductionEvaluator}
+ * in the common fork-join pool. Every exact multiplication adds to the digits
+ * of the result, so applying the commands one at a time takes quadratic time,
+ * while the balanced reduction multiplies operands of similar size.
+ *
+ * @author janvojt
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TreeReductionBenchmark {
+
+    /** Length of runs reduced in parallel, below the shortest computation. */
+    private static final int THRESHOLD = 1024;
+
+    /** Number of commands in the computation. */
+    @Param({"10000", "30000"})
+    public int length;
+
+    /** Evaluator implementation. */
+    @Param({"serial", "tree"})
+    public String evaluator;
+
+    /** Commands of the computation, multiplications with additions in between. */
+    private Command[] commands;
+
+    /** Measured evaluator. */
+    private Evaluator eval;
+
+    @Setup
+    public void setUp() {
+        Command multiply = new Command(Operation.MULTIPLY, new BigDecimal("1.0001"));
+        Command add = new Command(Operation.ADD, new BigDecimal("0.5"));
+        commands = new Command[length];
+        for (int i = 0; i < length; i++) {
+            commands[i] = i % 4 == 3 ? add : multiply;
+        }
+        switch (evaluator) {
+            case "serial" :
+                eval = new EvaluatorImpl();
+                break;
+            case "tree" :
+                eval = new TreeReductionEvaluator(THRESHOLD);
+                break;
+            default :
+                throw new IllegalArgumentException("Unknown evaluator: " + evaluator);
+        }
+    }
+
+    /**
+     * Fills and evaluates the computation.
+     *
+     * @return computation result
+     */
+    @Benchmark
+    public BigDecimal evaluate() {
+        Computation computation = new Computation();
+        for (Command command : commands) {
+            computation.pushCommand(command);
+        }
+        computation.setInitializer(BigDecimal.ONE);
+        return eval.evaluate(computation);
+    }
+
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Parser of commands with decimal values scanning the command characters
+ * in place. Unlike {@link DecimalCommandParser} it does not tokenize
+ * the command into strings, operations are matched against their names
+ * ignoring the case and plain decimal values are built directly from their
+ * digits. Commands may also be parsed from a window in a byte array
+ * or a byte buffer holding ASCII text.
+ * <p>
+ * Results are the same as with {@link DecimalCommandParser}. Values which
+ * cannot be built from the digits directly (exponents, too many digits) are
+ * handed over to {@link BigDecimal} parsing.
+ * <p>
+ * The parser keeps reusable buffers, so a single instance must not be shared
+ * among threads.
+ *
+ * @author janvojt
+ */
+public class AsciiCommandParser implements CommandParser {
+
+    /**
+     * Default decimal separator used by {@link BigDecimal(java.lang.String)}.
+     */
+    private static final char DEFAULT_DECIMAL_SEP = '.';
+
+    /** All the operations indexed by their ordinal. */
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    /** Uppercase operation names indexed by operation ordinal. */
+    private static final char[][] NAMES = new char[OPERATIONS.length][];
+
+    static {
+        for (Operation operation : OPERATIONS) {
+            NAMES[operation.ordinal()] = operation.name().toCharArray();
+        }
+    }
+
+    /** The decimal separator. */
+    private char decimalSep;
+
+    /** View reused for parsing commands from bytes. */
+    private final AsciiSequence window = new AsciiSequence();
+
+    /** Buffer reused for values parsed by {@link BigDecimal}. */
+    private char[] chars = new char[32];
+
+    /** Index of the first character of the last value token. */
+    private int valueStart;
+
+    /** Index following the last character of the last value token. */
+    private int valueEnd;
+
+    /** Unscaled last value, unless it was parsed by {@link BigDecimal}. */
+    private long unscaled;
+
+    /** Scale of the last value, unless it was parsed by {@link BigDecimal}. */
+    private int scale;
+
+    /**
+     * Constructor determines the decimal separator from default locale.
+     */
+    public AsciiCommandParser() {
+        setLocale(Locale.getDefault());
+    }
+
+    @Override
+    public Command parse(String command) throws InvalidCommandSyntaxException {
+        return parse(command, 0, command.length());
+    }
+
+    /**
+     * Parses a single command given as ASCII text in a byte array.
+     *
+     * @param bytes byte array holding the command
+     * @param start index of the first byte of the command
+     * @param end index following the last byte of the command
+     * @return command
+     * @throws InvalidCommandSyntaxException
+     */
+    public Command parse(byte[] bytes, int start, int end) throws InvalidCommandSyntaxException {
+        return parse(window.wrap(bytes, start, end - start), 0, end - start);
+    }
+
+    /**
+     * Parses a single command given as ASCII text in a byte buffer.
+     * The buffer position and limit are left untouched.
+     *
+     * @param buffer byte buffer holding the command
+     * @param start absolute index of the first byte of the command
+     * @param end absolute index following the last byte of the command
+     * @return command
+     * @throws InvalidCommandSyntaxException
+     */
+    public Command parse(ByteBuffer buffer, int start, int end) throws InvalidCommandSyntaxException {
+        return parse(window.wrap(buffer, start, end - start), 0, end - start);
+    }
+
+    /**
+     * Parses a single command given as a window in a character sequence.
+     *
+     * @param seq character sequence holding the command
+     * @param start index of the first character of the command
+     * @param end index following the last character of the command
+     * @return command
+     * @throws InvalidCommandSyntaxException
+     */
+    public Command parse(CharSequence seq, int start, int end) throws InvalidCommandSyntaxException {
+        Operation operation = parseTokens(seq, start, end);
+        BigDecimal value = parseValue(seq, valueStart, valueEnd);
+        if (value != null) {
+            return new Command(operation, value);
+        }
+        return scale == 0
+                ? new LongCommand(operation, unscaled)
+                : new Command(operation, BigDecimal.valueOf(unscaled, scale));
+    }
+
+    /**
+     * Parses a single command given as ASCII text in a byte array
+     * into a claimed slot of the ring, without creating a {@link Command}.
+     *
+     * @param bytes byte array holding the command
+     * @param start index of the first byte of the command
+     * @param end index following the last byte of the command
+     * @param ring ring to fill
+     * @param sequence claimed sequence of the slot
+     * @throws InvalidCommandSyntaxException
+     */
+    void parse(byte[] bytes, int start, int end, CommandRingBuffer ring, long sequence) throws InvalidCommandSyntaxException {
+        CharSequence seq = window.wrap(bytes, start, end - start);
+        byte op = (byte) parseTokens(seq, 0, end - start).ordinal();
+        BigDecimal value = parseValue(seq, valueStart, valueEnd);
+        if (value != null) {
+            ring.set(sequence, op, value);
+        } else {
+            ring.set(sequence, op, unscaled, scale);
+        }
+    }
+
+    @Override
+    public final void setLocale(Locale locale) {
+        DecimalFormat format = (DecimalFormat) DecimalFormat.getNumberInstance(locale);
+        DecimalFormatSymbols symbols = format.getDecimalFormatSymbols();
+        decimalSep = symbols.getDecimalSeparator();
+    }
+
+    /**
+     * Finds the two tokens of the command and parses the operation.
+     * Bounds of the value token are kept for parsing the value.
+     *
+     * @param seq character sequence holding the command
+     * @param start index of the first character of the command
+     * @param end index following the last character of the command
+     * @return parsed operation
+     * @throws InvalidCommandSyntaxException
+     */
+    private Operation parseTokens(CharSequence seq, int start, int end) throws InvalidCommandSyntaxException {
+        int opStart = skipDelimiters(seq, start, end);
+        int opEnd = skipToken(seq, opStart, end);
+        valueStart = skipDelimiters(seq, opEnd, end);
+        valueEnd = skipToken(seq, valueStart, end);
+        if (valueStart == valueEnd || skipDelimiters(seq, valueEnd, end) != end) {
+            throw new InvalidCommandSyntaxException("Invalid number of tokens in command '" + seq.subSequence(start, end) + "'.");
+        }
+
+        Operation operation = parseOperation(seq, opStart, opEnd);
+        if (operation == null) {
+            throw new InvalidCommandSyntaxException("Unrecognized operation '" + seq.subSequence(opStart, opEnd) + "' in command '" + seq.subSequence(start, end) + "'.");
+        }
+        return operation;
+    }
+
+    /**
+     * Matches the operation token against the operation names.
+     *
+     * @param seq character sequence holding the token
+     * @param start index of the first character of the token
+     * @param end index following the last character of the token
+     * @return matched operation or null if there is no such operation
+     */
+    private Operation parseOperation(CharSequence seq, int start, int end) {
+        int length = end - start;
+        names:
+        for (int i = 0; i < NAMES.length; i++) {
+            char[] name = NAMES[i];
+            if (name.length != length) {
+                continue;
+            }
+            for (int j = 0; j < length; j++) {
+                char c = seq.charAt(start + j);
+                if (c >= 'a' && c <= 'z') {
+                    c -= 'a' - 'A';
+                }
+                if (c != name[j]) {
+                    continue names;
+                }
+            }
+            return OPERATIONS[i];
+        }
+
+        // only ASCII names are matched above, let the JDK case the rest
+        String token = seq.subSequence(start, end).toString();
+        try {
+            return Operation.valueOf(token.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Builds the command value from the digits of the value token.
+     * Plain decimals of up to {@link LongCommand#MAX_DIGITS} digits
+     * are kept as the unscaled value and the scale.
+     *
+     * @param seq character sequence holding the token
+     * @param start index of the first character of the token
+     * @param end index following the last character of the token
+     * @return value parsed by {@link BigDecimal}, null if the value
+     *      was kept as the unscaled value and the scale
+     * @throws InvalidCommandSyntaxException
+     */
+    private BigDecimal parseValue(CharSequence seq, int start, int end) throws InvalidCommandSyntaxException {
+        int i = start;
+        boolean negative = false;
+        char c = seq.charAt(i);
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            i++;
+        }
+
+        long value = 0;
+        int digits = 0;
+        int valueScale = 0;
+        boolean point = false;
+        for (; i < end; i++) {
+            c = seq.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (++digits > LongCommand.MAX_DIGITS) {
+                    return parseBigDecimal(seq, start, end);
+                }
+                value = value * 10 + (c - '0');
+                if (point) {
+                    valueScale++;
+                }
+            } else if (!point && (c == DEFAULT_DECIMAL_SEP || c == decimalSep)) {
+                point = true;
+            } else {
+                // exponents and malformed values
+                return parseBigDecimal(seq, start, end);
+            }
+        }
+
+        if (digits == 0) {
+            return parseBigDecimal(seq, start, end);
+        }
+        unscaled = negative ? -value : value;
+        scale = valueScale;
+        return null;
+    }
+
+    /**
+     * Parses the value token by {@link BigDecimal} after replacing the local
+     * decimal separator.
+     *
+     * @param seq character sequence holding the token
+     * @param start index of the first character of the token
+     * @param end index following the last character of the token
+     * @return parsed value
+     * @throws InvalidCommandSyntaxException
+     */
+    private BigDecimal parseBigDecimal(CharSequence seq, int start, int end) throws InvalidCommandSyntaxException {
+        int length = end - start;
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            char c = seq.charAt(start + i);
+            chars[i] = c == decimalSep ? DEFAULT_DECIMAL_SEP : c;
+        }
+
+        try {
+            return new BigDecimal(chars, 0, length);
+        } catch (NumberFormatException ex) {
+            throw new InvalidCommandSyntaxException("Command value '" + new String(chars, 0, length) + "' cannot be parsed as a numeric expression.");
+        }
+    }
+
+    /**
+     * Skips the token delimiters.
+     *
+     * @param seq character sequence to scan
+     * @param start index to start scanning at
+     * @param end index to stop scanning at
+     * @return index of the first non-delimiter character or end
+     */
+    private static int skipDelimiters(CharSequence seq, int start, int end) {
+        int i = start;
+        while (i < end && isDelimiter(seq.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Skips the token characters.
+     *
+     * @param seq character sequence to scan
+     * @param start index to start scanning at
+     * @param end index to stop scanning at
+     * @return index of the first delimiter character or end
+     */
+    private static int skipToken(CharSequence seq, int start, int end) {
+        int i = start;
+        while (i < end && !isDelimiter(seq.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Checks for delimiters used by {@link java.util.StringTokenizer}
+     * by default.
+     *
+     * @param c character to check
+     * @return whether the character delimits tokens
+     */
+    private static boolean isDelimiter(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+}
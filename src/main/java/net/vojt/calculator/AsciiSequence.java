@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable {@link CharSequence} view of a window in a byte array
+ * or a byte buffer.
+ * Every byte is interpreted as a single character, which is correct
+ * for ASCII input. The view is meant to be rewrapped for each line,
+ * so that no objects are created while reading the input.
+ *
+ * @author janvojt
+ */
+final class AsciiSequence implements CharSequence {
+
+    /** Wrapped bytes, null when wrapping a buffer. */
+    private byte[] bytes;
+
+    /** Wrapped buffer, null when wrapping a byte array. */
+    private ByteBuffer buffer;
+
+    /** Index of the first byte of the window. */
+    private int offset;
+
+    /** Length of the window. */
+    private int length;
+
+    /**
+     * Points this view to a new window.
+     *
+     * @param bytes wrapped bytes
+     * @param offset index of the first byte of the window
+     * @param length length of the window
+     * @return this view
+     */
+    AsciiSequence wrap(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.buffer = null;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
+    /**
+     * Points this view to a new window.
+     *
+     * @param buffer wrapped buffer
+     * @param offset absolute index of the first byte of the window
+     * @param length length of the window
+     * @return this view
+     */
+    AsciiSequence wrap(ByteBuffer buffer, int offset, int length) {
+        this.bytes = null;
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        byte b = bytes != null ? bytes[offset + index] : buffer.get(offset + index);
+        return (char) (b & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        AsciiSequence seq = new AsciiSequence();
+        return bytes != null
+                ? seq.wrap(bytes, offset + start, end - start)
+                : seq.wrap(buffer, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = charAt(i);
+        }
+        return new String(chars);
+    }
+
+}
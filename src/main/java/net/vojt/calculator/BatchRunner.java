@@ -0,0 +1,707 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Stream;
+
+/**
+ * Processes many input files at once, writing the output of every input
+ * file into its own output file.
+ * <p>
+ * Inputs are given as files, directories searched recursively, or glob
+ * patterns such as {@code data/**.txt}. Every file is a task of a work-stealing
+ * {@link ForkJoinPool}, the largest files are scheduled first. A file larger
+ * than the {@link #setSplitSize(long) split size} is split right after
+ * an apply command into regions evaluated as tasks of their own, so that
+ * a single large file keeps all the threads busy. The outputs of the regions
+ * are written in the input order, only a few regions per thread are evaluated
+ * ahead of the one being written. With {@link #setIndexed(boolean) indexing}
+ * the split points are taken from the {@link BlockIndex} of the file instead
+ * of scanning for them.
+ * <p>
+ * The output file of an input is named after its path relative to the
+ * directory given, or to the fixed part of the glob pattern, with
+ * {@link #OUTPUT_SUFFIX} appended. Regions are read the same way as by
+ * {@link MappedFileCalculator}, input is therefore expected to be ASCII text.
+ * Gzip compressed files are not split but read whole through
+ * {@link ParallelGzipInputStream}.
+ *
+ * @author janvojt
+ */
+public class BatchRunner {
+
+    /** Default size of the regions large files are split into. */
+    public static final long DEFAULT_SPLIT_SIZE = 8L * 1024 * 1024;
+
+    /** Suffix appended to the names of the output files. */
+    public static final String OUTPUT_SUFFIX = ".out";
+
+    /** Characters making an input a glob pattern. */
+    private static final String GLOB_CHARACTERS = "*?[{";
+
+    /** Size of the buffer used when searching for a split point. */
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    /** Number of regions per thread evaluated ahead of the one written. */
+    private static final int REGIONS_AHEAD_PER_THREAD = 2;
+
+    /** Directory the output files are written to. */
+    private final Path outputDirectory;
+
+    /** Number of threads processing the files. */
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /** Size of the regions large files are split into. */
+    private long splitSize = DEFAULT_SPLIT_SIZE;
+
+    /** Computation evaluator shared by all the threads. */
+    private Evaluator eval = new EvaluatorImpl();
+
+    /** Factory of computations filled from the input. */
+    private ComputationFactory computationFactory = Computation.FACTORY;
+
+    /** Metrics of the processing, null when not collected. */
+    private CalculatorMetrics metrics;
+
+    /** Whether to split the files at the blocks of their indexes. */
+    private boolean indexed;
+
+    /** Wall time of the last run in nanoseconds. */
+    private long elapsedNanos;
+
+    /**
+     * Constructs the runner.
+     *
+     * @param outputDirectory directory to write the output files to
+     */
+    public BatchRunner(Path outputDirectory) {
+        if (outputDirectory == null) {
+            throw new IllegalArgumentException("Output directory must not be null.");
+        }
+        this.outputDirectory = outputDirectory;
+    }
+
+    /**
+     * Sets the number of threads processing the files,
+     * the number of processors by default.
+     *
+     * @param parallelism number of threads
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive.");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets the size of the regions large files are split into.
+     * A region is extended up to the end of the next apply command.
+     *
+     * @param splitSize region size in bytes
+     */
+    public void setSplitSize(long splitSize) {
+        if (splitSize <= 0) {
+            throw new IllegalArgumentException("Split size must be positive.");
+        }
+        this.splitSize = splitSize;
+    }
+
+    /**
+     * Sets the evaluator, which must be thread-safe.
+     *
+     * @param eval evaluator
+     */
+    public void setEval(Evaluator eval) {
+        this.eval = eval;
+    }
+
+    /**
+     * Sets the factory of computations, which must be thread-safe.
+     *
+     * @param computationFactory factory of computations
+     */
+    public void setComputationFactory(ComputationFactory computationFactory) {
+        this.computationFactory = computationFactory;
+    }
+
+    /**
+     * Sets the metrics to collect while processing the files.
+     *
+     * @param metrics metrics to collect, null to collect none
+     */
+    public void setMetrics(CalculatorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets whether to split large files at the blocks of their sidecar
+     * indexes, building the indexes which are missing or out of date.
+     * Sidecar indexes found next to their input files are not processed
+     * as inputs either way.
+     *
+     * @param indexed whether to use the indexes
+     */
+    public void setIndexed(boolean indexed) {
+        this.indexed = indexed;
+    }
+
+    /** @return wall time of the last run in nanoseconds */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Processes all the input files. A file which cannot be processed
+     * is reported in its summary and does not stop the others.
+     *
+     * @param inputs files, directories or glob patterns
+     * @return summaries of the files in the order of the inputs
+     * @throws IOException in case of I/O error listing the inputs
+     *      or creating the output directory
+     * @throws IllegalArgumentException if a pattern matches no file
+     *      or two inputs map to the same output file
+     */
+    public List<FileSummary> run(List<String> inputs) throws IOException {
+        long start = System.nanoTime();
+        Map<Path, Path> files = resolve(inputs);
+        Files.createDirectories(outputDirectory);
+
+        List<FileTask> tasks = new ArrayList<>();
+        for (Map.Entry<Path, Path> file : files.entrySet()) {
+            tasks.add(new FileTask(file.getKey(), file.getValue()));
+        }
+        List<FileTask> largestFirst = new ArrayList<>(tasks);
+        Collections.sort(largestFirst, new Comparator<FileTask>() {
+            @Override
+            public int compare(FileTask a, FileTask b) {
+                return Long.compare(b.summary.bytes, a.summary.bytes);
+            }
+        });
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (FileTask task : largestFirst) {
+                pool.execute(task);
+            }
+            List<FileSummary> summaries = new ArrayList<>(tasks.size());
+            for (FileTask task : tasks) {
+                summaries.add(task.join());
+            }
+            return summaries;
+        } finally {
+            pool.shutdownNow();
+            elapsedNanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Prints a line per file with its throughput and error count,
+     * followed by the totals of the last run.
+     *
+     * @param summaries summaries of the files
+     * @param out stream to print to
+     */
+    public void printSummary(List<FileSummary> summaries, PrintStream out) {
+        long bytes = 0;
+        long results = 0;
+        long errors = 0;
+        int failed = 0;
+        for (FileSummary summary : summaries) {
+            out.println(summary);
+            bytes += summary.bytes;
+            results += summary.results;
+            errors += summary.errors;
+            if (summary.failure != null) {
+                failed++;
+            }
+        }
+        out.println(String.format("Total: %d files (%d failed), %d bytes, %d results, %d errors in %.1f ms (%.1f MB/s)",
+                summaries.size(), failed, bytes, results, errors,
+                elapsedNanos / 1e6, throughput(bytes, elapsedNanos)));
+    }
+
+    /**
+     * Expands the inputs into the files to process.
+     *
+     * @param inputs files, directories or glob patterns
+     * @return output files keyed by the input files, in the order of the inputs
+     * @throws IOException in case of I/O error listing a directory
+     */
+    Map<Path, Path> resolve(List<String> inputs) throws IOException {
+        Path outputs = outputDirectory.toAbsolutePath().normalize();
+        Map<Path, Path> files = new LinkedHashMap<>();
+        Map<Path, Path> inputsByOutput = new HashMap<>();
+        for (String input : inputs) {
+            int glob = indexOfGlob(input);
+            Path base;
+            PathMatcher matcher = null;
+            if (glob >= 0) {
+                int separator = Math.max(input.lastIndexOf('/', glob), input.lastIndexOf(File.separatorChar, glob));
+                base = Paths.get(separator < 0 ? "." : input.substring(0, separator + 1));
+                matcher = FileSystems.getDefault().getPathMatcher("glob:" + input.substring(separator + 1));
+            } else {
+                base = Paths.get(input);
+                if (!Files.isDirectory(base)) {
+                    // a single file, which may turn out not to exist
+                    add(files, inputsByOutput, base, base.getFileName());
+                    continue;
+                }
+            }
+
+            List<Path> matched = new ArrayList<>();
+            try (Stream<Path> walk = Files.walk(base)) {
+                for (Iterator<Path> it = walk.iterator(); it.hasNext();) {
+                    Path path = it.next();
+                    if (Files.isRegularFile(path)
+                            && !path.toAbsolutePath().normalize().startsWith(outputs)
+                            && !BlockIndex.isSidecar(path)
+                            && (matcher == null || matcher.matches(base.relativize(path)))) {
+                        matched.add(path);
+                    }
+                }
+            }
+            if (matched.isEmpty() && matcher != null) {
+                throw new IllegalArgumentException("No input files match: '" + input + "'");
+            }
+            Collections.sort(matched);
+            for (Path path : matched) {
+                add(files, inputsByOutput, path, base.relativize(path));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Adds the input file with its output file.
+     *
+     * @param files output files keyed by the input files
+     * @param inputsByOutput input files keyed by the output files
+     * @param file input file
+     * @param relative path of the output file relative to the output directory,
+     *      without the suffix
+     * @throws IllegalArgumentException if another input maps to the same output file
+     */
+    private void add(Map<Path, Path> files, Map<Path, Path> inputsByOutput, Path file, Path relative) {
+        if (files.containsKey(file)) {
+            return;
+        }
+        Path output = outputDirectory.resolve(relative.toString() + OUTPUT_SUFFIX).normalize();
+        Path other = inputsByOutput.put(output, file);
+        if (other != null) {
+            throw new IllegalArgumentException("Inputs '" + other + "' and '" + file
+                    + "' map to the same output file: '" + output + "'");
+        }
+        files.put(file, output);
+    }
+
+    /**
+     * Finds the first glob character in the input.
+     *
+     * @param input file, directory or glob pattern
+     * @return index of the first glob character, negative if none
+     */
+    private static int indexOfGlob(String input) {
+        int index = -1;
+        for (int i = 0; i < GLOB_CHARACTERS.length(); i++) {
+            int found = input.indexOf(GLOB_CHARACTERS.charAt(i));
+            if (found >= 0 && (index < 0 || found < index)) {
+                index = found;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Finds the end of the first apply command starting at or after
+     * the given offset.
+     *
+     * @param channel input file
+     * @param from offset to search from, positive
+     * @param size size of the file
+     * @param parser parser to recognize the apply commands with
+     * @return offset following the line terminator of the apply command,
+     *      the file size if there is none
+     * @throws IOException in case of I/O error
+     */
+    static long splitPoint(FileChannel channel, long from, long size, AsciiCommandParser parser) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        byte[] line = new byte[128];
+        int length = 0;
+        // the line before the offset is skipped, it may be read partially
+        boolean inLine = false;
+        boolean afterCarriageReturn = false;
+        boolean afterApply = false;
+        long position = from - 1;
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            byte[] bytes = buffer.array();
+            for (int i = 0; i < read; i++) {
+                byte b = bytes[i];
+                if (afterCarriageReturn) {
+                    afterCarriageReturn = false;
+                    if (afterApply) {
+                        return b == '\n' ? position + i + 1 : position + i;
+                    }
+                    if (b == '\n') {
+                        continue;
+                    }
+                }
+                if (b == '\n' || b == '\r') {
+                    if (inLine && isApply(parser, line, length)) {
+                        if (b == '\n') {
+                            return position + i + 1;
+                        }
+                        afterApply = true;
+                    }
+                    afterCarriageReturn = b == '\r';
+                    inLine = true;
+                    length = 0;
+                } else if (inLine) {
+                    if (length == line.length) {
+                        line = Arrays.copyOf(line, 2 * length);
+                    }
+                    line[length++] = b;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /**
+     * Checks whether the line is an apply command.
+     *
+     * @param parser parser to use
+     * @param line line bytes
+     * @param length line length
+     * @return whether the line parses into an apply command
+     */
+    private static boolean isApply(AsciiCommandParser parser, byte[] line, int length) {
+        try {
+            return Operation.APPLY.equals(parser.parse(line, 0, length).getOperation());
+        } catch (InvalidCommandSyntaxException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Computes the throughput in megabytes per second.
+     *
+     * @param bytes number of bytes processed
+     * @param nanos time taken in nanoseconds
+     * @return the throughput
+     */
+    private static double throughput(long bytes, long nanos) {
+        return nanos == 0 ? 0 : bytes * 1e3 / nanos;
+    }
+
+    /**
+     * Outcome of processing a single input file.
+     */
+    public static final class FileSummary {
+
+        /** Input file. */
+        private final Path input;
+
+        /** Output file. */
+        private final Path output;
+
+        /** Size of the input file. */
+        private long bytes;
+
+        /** Number of results written. */
+        private long results;
+
+        /** Number of errors written. */
+        private long errors;
+
+        /** Time taken in nanoseconds, from opening the file to closing the output. */
+        private long nanos;
+
+        /** Reason the file could not be processed, null if it was. */
+        private String failure;
+
+        /** Problem not preventing the processing, null if there was none. */
+        private String warning;
+
+        /**
+         * Constructs the summary.
+         *
+         * @param input input file
+         * @param output output file
+         */
+        FileSummary(Path input, Path output) {
+            this.input = input;
+            this.output = output;
+        }
+
+        /** @return input file */
+        public Path getInput() {
+            return input;
+        }
+
+        /** @return output file */
+        public Path getOutput() {
+            return output;
+        }
+
+        /** @return size of the input file */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /** @return number of results written */
+        public long getResults() {
+            return results;
+        }
+
+        /** @return number of errors written, including invalid lines */
+        public long getErrors() {
+            return errors;
+        }
+
+        /** @return time taken in nanoseconds */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /** @return reason the file could not be processed, null if it was */
+        public String getFailure() {
+            return failure;
+        }
+
+        /** @return problem not preventing the processing, null if there was none */
+        public String getWarning() {
+            return warning;
+        }
+
+        @Override
+        public String toString() {
+            if (failure != null) {
+                return input + ": FAILED: " + failure;
+            }
+            return String.format("%s: %d bytes, %d results, %d errors in %.1f ms (%.1f MB/s)%s",
+                    input, bytes, results, errors, nanos / 1e6, throughput(bytes, nanos),
+                    warning == null ? "" : " WARNING: " + warning);
+        }
+
+    }
+
+    /**
+     * Processes a single input file, splitting it into regions.
+     */
+    private final class FileTask extends RecursiveTask<FileSummary> {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Input file. */
+        private final Path input;
+
+        /** Outcome of the processing. */
+        private final FileSummary summary;
+
+        /**
+         * Constructs the task.
+         *
+         * @param input input file
+         * @param output output file
+         */
+        FileTask(Path input, Path output) {
+            this.input = input;
+            this.summary = new FileSummary(input, output);
+            try {
+                summary.bytes = Files.size(input);
+            } catch (IOException ex) {
+                // reported when the file is opened
+            }
+        }
+
+        @Override
+        protected FileSummary compute() {
+            long start = System.nanoTime();
+            Deque<RegionTask> ahead = new ArrayDeque<>();
+            try {
+                Files.createDirectories(summary.output.getParent());
+                try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ);
+                        Writer writer = Files.newBufferedWriter(summary.output, StandardCharsets.UTF_8)) {
+                    long size = channel.size();
+                    summary.bytes = size;
+                    AsciiCommandParser parser = new AsciiCommandParser();
+                    BlockIndex index = null;
+                    long position = 0;
+                    if (ParallelGzipInputStream.isGzip(channel)) {
+                        // a compressed file cannot be split, its members are inflated in parallel instead
+                        evaluateCompressed(channel, writer, summary);
+                        position = size;
+                    } else if (indexed && size > splitSize) {
+                        index = BlockIndex.open(input);
+                        if (index.getWriteFailure() != null) {
+                            IOException cause = index.getWriteFailure();
+                            summary.warning = "index not written, " + cause.getClass().getSimpleName()
+                                    + ": " + cause.getMessage();
+                        }
+                    }
+                    while (position < size || !ahead.isEmpty()) {
+                        while (position < size && ahead.size() < REGIONS_AHEAD_PER_THREAD * parallelism) {
+                            long end = position + splitSize >= size
+                                    ? size
+                                    : index != null
+                                    ? index.nextBoundary(position + splitSize)
+                                    : splitPoint(channel, position + splitSize, size, parser);
+                            RegionTask region = new RegionTask(channel, position, end - position);
+                            region.fork();
+                            ahead.add(region);
+                            position = end;
+                        }
+                        RegionTask oldest = ahead.poll();
+                        writer.write(oldest.join());
+                        summary.results += oldest.results;
+                        summary.errors += oldest.errors;
+                    }
+                }
+            } catch (IOException | RuntimeException ex) {
+                for (RegionTask region : ahead) {
+                    region.cancel(true);
+                }
+                Throwable cause = ex instanceof UncheckedIOException ? ex.getCause() : ex;
+                summary.failure = cause.getClass().getSimpleName() + ": " + cause.getMessage();
+            }
+            summary.nanos = System.nanoTime() - start;
+            return summary;
+        }
+
+    }
+
+    /**
+     * Evaluates a whole compressed input file, streaming its output.
+     *
+     * @param channel compressed input file
+     * @param writer output of the file
+     * @param summary summary of the file to count the results and errors into
+     * @throws IOException in case of I/O error or malformed input
+     */
+    private void evaluateCompressed(FileChannel channel, Writer writer, FileSummary summary) throws IOException {
+        InteractiveCalculator calc = new InteractiveCalculator();
+        calc.setReader(new InputStreamReader(
+                new ParallelGzipInputStream(channel, ForkJoinTask.getPool()), StandardCharsets.US_ASCII));
+        calc.setWriter(writer);
+        calc.setOutputMode(InteractiveCalculator.OutputMode.BATCH);
+        calc.setEval(eval);
+        calc.setComputationFactory(computationFactory);
+        calc.setMetrics(metrics);
+        calc.run();
+        summary.results = calc.getResults();
+        summary.errors = calc.getErrors();
+    }
+
+    /**
+     * Evaluates a region of an input file into its output.
+     */
+    private final class RegionTask extends RecursiveTask<String> {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Input file. */
+        private final FileChannel channel;
+
+        /** Offset of the region. */
+        private final long start;
+
+        /** Size of the region. */
+        private final long size;
+
+        /** Number of results of the region, known once joined. */
+        private long results;
+
+        /** Number of errors of the region, known once joined. */
+        private long errors;
+
+        /**
+         * Constructs the task.
+         *
+         * @param channel input file
+         * @param start offset of the region
+         * @param size size of the region
+         */
+        RegionTask(FileChannel channel, long start, long size) {
+            this.channel = channel;
+            this.start = start;
+            this.size = size;
+        }
+
+        @Override
+        protected String compute() {
+            StringWriter writer = new StringWriter();
+            MappedFileCalculator calc = new MappedFileCalculator();
+            calc.setChannel(channel);
+            calc.setRegion(start, size);
+            calc.setWriter(writer);
+            calc.setOutputMode(InteractiveCalculator.OutputMode.BATCH);
+            calc.setEval(eval);
+            calc.setComputationFactory(computationFactory);
+            calc.setMetrics(metrics);
+            try {
+                calc.run();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            results = calc.getResults();
+            errors = calc.getErrors();
+            return writer.toString();
+        }
+
+    }
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Calculator replaying instructions encoded in the {@link BinaryFormat}.
+ * Records are decoded straight into the {@link Computation}, without any
+ * text parsing and, unless the value does not fit into a long, without
+ * creating any objects.
+ *
+ * @author janvojt
+ */
+public class BinaryCalculator extends InteractiveCalculator {
+
+    /** Default size of the input buffer. */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /** All the operations indexed by their ordinal. */
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    /** Input with the binary records. */
+    private ReadableByteChannel channel;
+
+    /** Size of the input buffer. */
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    /** Input buffer, read from its position up to its limit. */
+    private ByteBuffer buffer;
+
+    @Override
+    public void run() throws IOException {
+
+        // make sure channel/writer were correctly set
+        validate();
+
+        buffer = ByteBuffer.allocate(bufferSize);
+        buffer.limit(0);
+        beginInput();
+        try {
+            readHeader();
+            processRecords();
+            finishOutput();
+        } finally {
+            endInput();
+            buffer = null;
+        }
+    }
+
+    /**
+     * Sets the input channel, read from its current position.
+     *
+     * @param channel input channel
+     */
+    public void setChannel(ReadableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Sets the size of the input buffer.
+     *
+     * @param bufferSize buffer size in bytes
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive.");
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    protected boolean hasInput() {
+        return channel != null;
+    }
+
+    /**
+     * Checks the magic bytes and the version of the format.
+     *
+     * @throws IOException if the input is not in the binary format
+     */
+    private void readHeader() throws IOException {
+        byte[] magic = new byte[BinaryFormat.MAGIC.length];
+        for (int i = 0; i < magic.length; i++) {
+            if (!buffer.hasRemaining() && !fill()) {
+                break;
+            }
+            magic[i] = buffer.get();
+        }
+        if (!Arrays.equals(BinaryFormat.MAGIC, magic)) {
+            throw new IOException("Input is not in the binary format.");
+        }
+        byte version = next();
+        if (version != BinaryFormat.VERSION) {
+            throw new IOException("Unsupported binary format version: " + version);
+        }
+    }
+
+    /**
+     * Decodes all the records and processes them as commands.
+     *
+     * @throws IOException in case of I/O error or malformed input
+     */
+    private void processRecords() throws IOException {
+        CalculatorMetrics metrics = getMetrics();
+        while (buffer.hasRemaining() || fill()) {
+            long begin = metrics == null ? 0 : System.nanoTime();
+            int tag = buffer.get() & 0xFF;
+            if (tag == BinaryFormat.INVALID) {
+                if (metrics != null) {
+                    metrics.recordParse(null, System.nanoTime() - begin);
+                }
+                processInvalidCommand();
+                continue;
+            }
+            int ordinal = tag & BinaryFormat.ORDINAL_MASK;
+            if (ordinal >= OPERATIONS.length || (tag & ~(BinaryFormat.ORDINAL_MASK | BinaryFormat.SCALED | BinaryFormat.BIG)) != 0) {
+                throw new IOException("Malformed binary record tag: " + tag);
+            }
+            Operation operation = OPERATIONS[ordinal];
+            if ((tag & BinaryFormat.BIG) == 0) {
+                long unscaled = readVarLong();
+                int scale = (tag & BinaryFormat.SCALED) == 0 ? 0 : readScale();
+                if (metrics != null) {
+                    metrics.recordParse(operation, System.nanoTime() - begin);
+                }
+                processCommand(operation, unscaled, scale);
+            } else {
+                long length = readVarLong();
+                if (length <= 0 || length > Integer.MAX_VALUE) {
+                    throw new IOException("Malformed binary record length: " + length);
+                }
+                BigInteger unscaled = new BigInteger(readBytes((int) length));
+                int scale = (tag & BinaryFormat.SCALED) == 0 ? 0 : readScale();
+                if (metrics != null) {
+                    metrics.recordParse(operation, System.nanoTime() - begin);
+                }
+                processCommand(operation, new BigDecimal(unscaled, scale));
+            }
+        }
+    }
+
+    /**
+     * Reads a varint scale.
+     *
+     * @return the scale
+     * @throws IOException in case of I/O error or malformed input
+     */
+    private int readScale() throws IOException {
+        long scale = readVarLong();
+        if (scale != (int) scale) {
+            throw new IOException("Malformed binary record scale: " + scale);
+        }
+        return (int) scale;
+    }
+
+    /**
+     * Reads a zigzag varint.
+     *
+     * @return the value
+     * @throws IOException in case of I/O error or malformed input
+     */
+    private long readVarLong() throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            byte b = buffer.hasRemaining() ? buffer.get() : next();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return BinaryFormat.unzigzag(zigzag);
+            }
+        }
+        throw new IOException("Malformed binary varint.");
+    }
+
+    /**
+     * Reads the given number of bytes.
+     *
+     * @param length number of bytes
+     * @return the bytes
+     * @throws IOException in case of I/O error or truncated input
+     */
+    private byte[] readBytes(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            if (!buffer.hasRemaining() && !fill()) {
+                throw new EOFException("Truncated binary record.");
+            }
+            int n = Math.min(buffer.remaining(), length - read);
+            buffer.get(bytes, read, n);
+            read += n;
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads a single byte in the middle of a record.
+     *
+     * @return the byte
+     * @throws IOException in case of I/O error or truncated input
+     */
+    private byte next() throws IOException {
+        if (!buffer.hasRemaining() && !fill()) {
+            throw new EOFException("Truncated binary record.");
+        }
+        return buffer.get();
+    }
+
+    /**
+     * Reads more input into the buffer, keeping the bytes not read yet.
+     *
+     * @return whether any bytes were read
+     * @throws IOException in case of I/O error
+     */
+    private boolean fill() throws IOException {
+        buffer.compact();
+        int read = 0;
+        while (read == 0) {
+            read = channel.read(buffer);
+        }
+        buffer.flip();
+        return read > 0;
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Converts instructions from the text format into the {@link BinaryFormat}.
+ * Lines are parsed the same way as by {@link InteractiveCalculator}, so
+ * the binary file replayed by {@link BinaryCalculator} gives the same output
+ * as the text file.
+ *
+ * @author janvojt
+ */
+public class BinaryConverter {
+
+    /** Size of the output buffer. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Parser of the text lines. */
+    private final CommandParser parser = new AsciiCommandParser();
+
+    /** Buffer of the encoded records. */
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /** Output of the encoded records. */
+    private WritableByteChannel out;
+
+    /**
+     * Converts all the text lines into binary records.
+     *
+     * @param text input in the text format
+     * @param binary output in the binary format
+     * @return number of records written
+     * @throws IOException in case of I/O error
+     */
+    public long convert(Reader text, WritableByteChannel binary) throws IOException {
+        out = binary;
+        buffer.clear();
+        buffer.put(BinaryFormat.MAGIC);
+        buffer.put(BinaryFormat.VERSION);
+
+        long records = 0;
+        BufferedReader reader = new BufferedReader(text);
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            Command command;
+            try {
+                command = parser.parse(line);
+            } catch (InvalidCommandSyntaxException ex) {
+                command = null;
+            }
+            write(command);
+            records++;
+        }
+
+        drain(0);
+        out = null;
+        return records;
+    }
+
+    /**
+     * Encodes the command into a record.
+     *
+     * @param command command to encode, null for an invalid line
+     * @throws IOException in case of I/O error
+     */
+    private void write(Command command) throws IOException {
+        drain(1 + 2 * BinaryFormat.MAX_VARINT_BYTES);
+        if (command == null) {
+            buffer.put((byte) BinaryFormat.INVALID);
+            return;
+        }
+
+        int tag = command.getOperation().ordinal();
+        if (command.isLongValue()) {
+            buffer.put((byte) tag);
+            BinaryFormat.putVarLong(buffer, command.getLongValue());
+            return;
+        }
+
+        BigDecimal value = command.getValue();
+        int scale = value.scale();
+        if (scale != 0) {
+            tag |= BinaryFormat.SCALED;
+        }
+        BigInteger unscaled = value.unscaledValue();
+        if (unscaled.bitLength() < Long.SIZE) {
+            buffer.put((byte) tag);
+            BinaryFormat.putVarLong(buffer, unscaled.longValue());
+        } else {
+            byte[] bytes = unscaled.toByteArray();
+            drain(1 + 2 * BinaryFormat.MAX_VARINT_BYTES + bytes.length);
+            buffer.put((byte) (tag | BinaryFormat.BIG));
+            BinaryFormat.putVarLong(buffer, bytes.length);
+            buffer.put(bytes);
+        }
+        if (scale != 0) {
+            BinaryFormat.putVarLong(buffer, scale);
+        }
+    }
+
+    /**
+     * Writes out the buffered records unless there is enough space left.
+     *
+     * @param needed number of bytes needed in the buffer
+     * @throws IOException in case of I/O error
+     */
+    private void drain(int needed) throws IOException {
+        if (needed > 0 && buffer.remaining() >= needed) {
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+        if (buffer.capacity() < needed) {
+            buffer = ByteBuffer.allocate(needed);
+        }
+    }
+
+}
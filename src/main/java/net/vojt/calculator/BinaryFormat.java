@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary encoding of the instructions, replayed without any text
+ * parsing.
+ * <p>
+ * A file starts with the {@link #MAGIC} bytes followed by the {@link #VERSION}
+ * byte. Every line of the text format is a single record then, starting with
+ * a tag byte. The lowest bits of the tag hold the {@link Operation} ordinal,
+ * so apply records mark the ends of the blocks. The value follows as
+ * a zigzag varint of its unscaled value and, if {@link #SCALED} is set,
+ * a zigzag varint of its scale, zero otherwise. Unscaled values which do not
+ * fit into a long are {@link #BIG} and follow as a varint length and their
+ * two's complement bytes instead. A line which is not a valid command is
+ * kept as an {@link #INVALID} tag alone, so that the errors are reported
+ * in the same places.
+ *
+ * @author janvojt
+ */
+public final class BinaryFormat {
+
+    /** Bytes starting every binary file. */
+    static final byte[] MAGIC = "CALC".getBytes(StandardCharsets.US_ASCII);
+
+    /** Version of the format. */
+    static final byte VERSION = 1;
+
+    /** Bits of the tag holding the operation ordinal. */
+    static final int ORDINAL_MASK = 0x0F;
+
+    /** Tag flag of a value with a scale other than zero. */
+    static final int SCALED = 0x10;
+
+    /** Tag flag of an unscaled value not fitting into a long. */
+    static final int BIG = 0x20;
+
+    /** Tag of a line which is not a valid command. */
+    static final int INVALID = 0x0F;
+
+    /** Maximum number of bytes of a varint. */
+    static final int MAX_VARINT_BYTES = 10;
+
+    /** Constructor of the utility class. */
+    private BinaryFormat() {
+    }
+
+    /**
+     * Writes the zigzag varint of the value.
+     *
+     * @param buffer buffer to write to
+     * @param value value to write
+     */
+    static void putVarLong(ByteBuffer buffer, long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            buffer.put((byte) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        buffer.put((byte) zigzag);
+    }
+
+    /**
+     * Decodes the zigzag encoding of a varint value.
+     *
+     * @param zigzag value as read from the varint
+     * @return the signed value
+     */
+    static long unzigzag(long zigzag) {
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Stream compressing its contents into gzip members of limited size,
+ * each of them giving its compressed size in a {@code BC} extra subfield
+ * as in the BGZF format. The file is readable by any gzip tool, while
+ * {@link ParallelGzipInputStream} locates the members without inflating
+ * them and inflates them in parallel.
+ * <p>
+ * Contents are compressed by blocks of {@link #BLOCK_SIZE} bytes, a block
+ * which does not compress into a member of at most 64 KiB is stored.
+ * Flushing the stream does not end the block being filled. The file
+ * ends with an empty member.
+ *
+ * @author janvojt
+ */
+public class BlockGzipOutputStream extends FilterOutputStream {
+
+    /** Number of content bytes compressed into a single member. */
+    public static final int BLOCK_SIZE = 0xff00;
+
+    /** Largest size of a member. */
+    private static final int MAX_MEMBER_SIZE = 0x10000;
+
+    /** Size of the member header including the extra field. */
+    private static final int HEADER_SIZE = 18;
+
+    /** Size of the member trailer: CRC-32 and size of the contents. */
+    private static final int TRAILER_SIZE = 8;
+
+    /** Contents of the block being filled. */
+    private final byte[] block = new byte[BLOCK_SIZE];
+
+    /** Number of bytes in the block being filled. */
+    private int length;
+
+    /** Member being written. */
+    private final byte[] member = new byte[MAX_MEMBER_SIZE];
+
+    /** Compressor of the blocks. */
+    private final Deflater deflater;
+
+    /** Compression level of the blocks. */
+    private final int level;
+
+    /** Checksum of the blocks. */
+    private final CRC32 crc = new CRC32();
+
+    /** Whether the stream was closed. */
+    private boolean closed;
+
+    /**
+     * Constructs the stream with the default compression level.
+     *
+     * @param out stream to write the members to
+     */
+    public BlockGzipOutputStream(OutputStream out) {
+        this(out, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Constructs the stream.
+     *
+     * @param out stream to write the members to
+     * @param level compression level of {@link Deflater}
+     */
+    public BlockGzipOutputStream(OutputStream out, int level) {
+        super(out);
+        this.level = level;
+        this.deflater = new Deflater(level, true);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (length == BLOCK_SIZE) {
+            writeBlock();
+        }
+        block[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (length == BLOCK_SIZE) {
+                writeBlock();
+            }
+            int n = Math.min(len, BLOCK_SIZE - length);
+            System.arraycopy(b, off, block, length, n);
+            length += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (length > 0) {
+                writeBlock();
+            }
+            // an empty member marks the end of the file
+            writeBlock();
+            out.flush();
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the block being filled as a single member.
+     *
+     * @throws IOException in case of I/O error
+     */
+    private void writeBlock() throws IOException {
+        int size = deflate(level);
+        if (size < 0) {
+            size = deflate(Deflater.NO_COMPRESSION);
+        }
+        int memberSize = HEADER_SIZE + size + TRAILER_SIZE;
+
+        member[0] = 0x1f;
+        member[1] = (byte) 0x8b;
+        member[2] = Deflater.DEFLATED;
+        member[3] = 4;
+        // no modification time, no extra flags, unknown operating system
+        member[4] = 0;
+        member[5] = 0;
+        member[6] = 0;
+        member[7] = 0;
+        member[8] = 0;
+        member[9] = (byte) 0xff;
+        putShort(10, 6);
+        member[12] = 'B';
+        member[13] = 'C';
+        putShort(14, 2);
+        putShort(16, memberSize - 1);
+
+        crc.reset();
+        crc.update(block, 0, length);
+        putInt(HEADER_SIZE + size, crc.getValue());
+        putInt(HEADER_SIZE + size + 4, length);
+        out.write(member, 0, memberSize);
+        length = 0;
+    }
+
+    /**
+     * Compresses the block being filled into the member.
+     *
+     * @param blockLevel compression level to use
+     * @return size of the compressed data, negative if it does not fit
+     */
+    private int deflate(int blockLevel) {
+        deflater.reset();
+        deflater.setLevel(blockLevel);
+        deflater.setInput(block, 0, length);
+        deflater.finish();
+        int capacity = MAX_MEMBER_SIZE - HEADER_SIZE - TRAILER_SIZE;
+        int size = 0;
+        while (!deflater.finished() && size < capacity) {
+            size += deflater.deflate(member, HEADER_SIZE + size, capacity - size);
+        }
+        return deflater.finished() ? size : -1;
+    }
+
+    /**
+     * Stores a little-endian short into the member.
+     *
+     * @param offset offset in the member
+     * @param value value to store
+     */
+    private void putShort(int offset, int value) {
+        member[offset] = (byte) value;
+        member[offset + 1] = (byte) (value >>> 8);
+    }
+
+    /**
+     * Stores a little-endian int into the member.
+     *
+     * @param offset offset in the member
+     * @param value value to store
+     */
+    private void putInt(int offset, long value) {
+        putShort(offset, (int) value);
+        putShort(offset + 2, (int) (value >>> 16));
+    }
+
+}
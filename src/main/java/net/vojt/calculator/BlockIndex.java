@@ -0,0 +1,488 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Index of the blocks of a text input file, giving the byte offset
+ * and the number of lines of every block. A block ends with its apply
+ * command, so the offsets are the points the file may be split at
+ * or read from without scanning it.
+ * <p>
+ * The index is built in a single pass over the file and may be kept
+ * in a sidecar file next to the input, named after it with
+ * {@link #SUFFIX} appended. The sidecar holds the size and the modification
+ * time of the input it was built for, a stale sidecar is not used.
+ * It consists of a header followed by a fixed size entry per block,
+ * the offset and the number of lines as two longs, so any block is found
+ * at a known position. The sidecar is only a cache, an index which
+ * cannot be written is used all the same.
+ *
+ * @author janvojt
+ */
+public final class BlockIndex {
+
+    /** Suffix of the sidecar index files. */
+    public static final String SUFFIX = ".idx";
+
+    /** Bytes starting every sidecar index file. */
+    private static final int MAGIC = 0x43494458;
+
+    /** Version of the sidecar format. */
+    private static final int VERSION = 1;
+
+    /** Size of the sidecar header: magic, version, input size and time, block count and end. */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 8;
+
+    /** Size of a single sidecar entry: offset and number of lines. */
+    private static final int ENTRY_SIZE = 8 + 8;
+
+    /** Size of the chunks the input is mapped in. */
+    private static final int CHUNK_SIZE = 64 * 1024 * 1024;
+
+    /** Initial number of blocks the arrays hold. */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Offsets of the first bytes of the blocks. */
+    private final long[] offsets;
+
+    /** Numbers of lines of the blocks, including the apply commands. */
+    private final long[] lines;
+
+    /** Number of blocks. */
+    private final int count;
+
+    /** Offset following the apply command of the last block. */
+    private final long end;
+
+    /** Size of the indexed input file. */
+    private final long inputSize;
+
+    /** Modification time of the indexed input file in milliseconds. */
+    private final long inputModified;
+
+    /** Reason the sidecar could not be written when opened, null if it was. */
+    private IOException writeFailure;
+
+    /**
+     * Constructs the index.
+     *
+     * @param offsets offsets of the first bytes of the blocks
+     * @param lines numbers of lines of the blocks
+     * @param count number of blocks
+     * @param end offset following the apply command of the last block
+     * @param inputSize size of the indexed input file
+     * @param inputModified modification time of the indexed input file
+     */
+    private BlockIndex(long[] offsets, long[] lines, int count, long end, long inputSize, long inputModified) {
+        this.offsets = offsets;
+        this.lines = lines;
+        this.count = count;
+        this.end = end;
+        this.inputSize = inputSize;
+        this.inputModified = inputModified;
+    }
+
+    /**
+     * Gives the index of the input, reading its sidecar if it is up to date,
+     * or building the index and writing the sidecar otherwise. An index
+     * whose sidecar cannot be written is returned all the same, with
+     * the reason available from {@link #getWriteFailure()}.
+     *
+     * @param input input file
+     * @return the index
+     * @throws IOException in case of I/O error
+     */
+    public static BlockIndex open(Path input) throws IOException {
+        Path sidecar = sidecar(input);
+        BlockIndex index = read(sidecar, input);
+        if (index == null) {
+            index = build(input);
+            try {
+                index.write(sidecar);
+            } catch (IOException ex) {
+                index.writeFailure = ex;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Gives the path of the sidecar index file of the input.
+     *
+     * @param input input file
+     * @return path of the sidecar
+     */
+    public static Path sidecar(Path input) {
+        return input.resolveSibling(input.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Checks whether the file is the sidecar index of another file,
+     * that is whether it is named with {@link #SUFFIX} appended
+     * to the name of an existing file.
+     *
+     * @param path file to check
+     * @return whether the file is a sidecar index
+     */
+    public static boolean isSidecar(Path path) {
+        String name = path.getFileName().toString();
+        return name.length() > SUFFIX.length() && name.endsWith(SUFFIX)
+                && Files.isRegularFile(path.resolveSibling(name.substring(0, name.length() - SUFFIX.length())));
+    }
+
+    /**
+     * Builds the index in a single pass over the input. Lines are
+     * recognized the same way as by {@link MappedFileCalculator}.
+     *
+     * @param input input file
+     * @return the index
+     * @throws IOException in case of I/O error
+     */
+    public static BlockIndex build(Path input) throws IOException {
+        long modified = Files.getLastModifiedTime(input).toMillis();
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            long size = channel.size();
+            Builder builder = new Builder();
+            long position = 0;
+            int mapSize = CHUNK_SIZE;
+            while (position < size) {
+                long length = Math.min(mapSize, size - position);
+                boolean last = position + length == size;
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int consumed = builder.scan(chunk, position, (int) length, last);
+                if (consumed == 0) {
+                    // a single line does not fit into the chunk
+                    if (mapSize == Integer.MAX_VALUE) {
+                        throw new IOException("Line at offset " + position + " is too long.");
+                    }
+                    mapSize = (int) Math.min(2L * mapSize, Integer.MAX_VALUE);
+                } else {
+                    position += consumed;
+                    mapSize = CHUNK_SIZE;
+                }
+            }
+            return new BlockIndex(builder.offsets, builder.lines, builder.count, builder.end, size, modified);
+        }
+    }
+
+    /**
+     * Reads the index from the sidecar file.
+     *
+     * @param sidecar sidecar index file
+     * @param input input file the index should be of
+     * @return the index, null if the sidecar does not exist, is malformed
+     *      or was built for another version of the input
+     * @throws IOException in case of I/O error
+     */
+    public static BlockIndex read(Path sidecar, Path input) throws IOException {
+        try (FileChannel channel = FileChannel.open(sidecar, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                return null;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                return null;
+            }
+            long inputSize = header.getLong();
+            long inputModified = header.getLong();
+            long count = header.getLong();
+            long end = header.getLong();
+            if (inputSize != Files.size(input)
+                    || inputModified != Files.getLastModifiedTime(input).toMillis()
+                    || count < 0 || count > (Integer.MAX_VALUE - HEADER_SIZE) / ENTRY_SIZE
+                    || size != HEADER_SIZE + count * ENTRY_SIZE) {
+                return null;
+            }
+
+            int blocks = (int) count;
+            long[] offsets = new long[blocks];
+            long[] lines = new long[blocks];
+            MappedByteBuffer entries = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, size - HEADER_SIZE);
+            for (int i = 0; i < blocks; i++) {
+                offsets[i] = entries.getLong();
+                lines[i] = entries.getLong();
+            }
+            return new BlockIndex(offsets, lines, blocks, end, inputSize, inputModified);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the index into the sidecar file. It is written into
+     * a temporary file next to it first and then moved over the file.
+     *
+     * @param sidecar sidecar index file
+     * @throws IOException in case of I/O error
+     */
+    public void write(Path sidecar) throws IOException {
+        Path temporary = sidecar.resolveSibling(sidecar.getFileName() + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + count * ENTRY_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(inputSize);
+        buffer.putLong(inputModified);
+        buffer.putLong(count);
+        buffer.putLong(end);
+        for (int i = 0; i < count; i++) {
+            buffer.putLong(offsets[i]);
+            buffer.putLong(lines[i]);
+        }
+        buffer.flip();
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(temporary, sidecar, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException suppressed) {
+                ex.addSuppressed(suppressed);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Gives the reason the sidecar could not be written when the index
+     * was {@link #open(Path) opened}.
+     *
+     * @return the failure, null if the sidecar was written or read
+     */
+    public IOException getWriteFailure() {
+        return writeFailure;
+    }
+
+    /** @return number of blocks */
+    public int getBlockCount() {
+        return count;
+    }
+
+    /**
+     * Gives the offset of the first byte of the block.
+     *
+     * @param block block number, counting from zero
+     * @return offset of the block
+     */
+    public long getOffset(int block) {
+        checkBlock(block);
+        return offsets[block];
+    }
+
+    /**
+     * Gives the number of lines of the block, including its apply command.
+     *
+     * @param block block number, counting from zero
+     * @return number of lines
+     */
+    public long getLines(int block) {
+        checkBlock(block);
+        return lines[block];
+    }
+
+    /** @return offset following the apply command of the last block */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * Finds the first block boundary at or after the offset, which is
+     * either the start of a block or the end of the last block.
+     *
+     * @param offset offset to search from
+     * @return offset of the boundary, the input size if there is none
+     */
+    public long nextBoundary(long offset) {
+        int i = Arrays.binarySearch(offsets, 0, count, offset);
+        if (i >= 0) {
+            return offsets[i];
+        }
+        int next = -i - 1;
+        if (next < count) {
+            return offsets[next];
+        }
+        return offset <= end ? end : inputSize;
+    }
+
+    /**
+     * Checks the block number.
+     *
+     * @param block block number
+     */
+    private void checkBlock(int block) {
+        if (block < 0 || block >= count) {
+            throw new IndexOutOfBoundsException("Block " + block + " out of " + count);
+        }
+    }
+
+    /**
+     * Reads into the buffer from the position until it is full.
+     *
+     * @param channel channel to read from
+     * @param buffer buffer to fill
+     * @param position position to read from
+     * @throws IOException in case of I/O error or end of file
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of index file.");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Collects the blocks while scanning the input.
+     */
+    private static final class Builder {
+
+        /** Parser recognizing the apply commands. */
+        private final AsciiCommandParser parser = new AsciiCommandParser();
+
+        /** Line bytes handed over to the parser. */
+        private byte[] line = new byte[128];
+
+        /** Offsets of the blocks found. */
+        private long[] offsets = new long[INITIAL_CAPACITY];
+
+        /** Numbers of lines of the blocks found. */
+        private long[] lines = new long[INITIAL_CAPACITY];
+
+        /** Number of blocks found. */
+        private int count;
+
+        /** Offset of the block being scanned. */
+        private long start;
+
+        /** Number of lines of the block being scanned. */
+        private long blockLines;
+
+        /** Offset following the last apply command. */
+        private long end;
+
+        /**
+         * Scans all the complete lines in the mapped chunk.
+         *
+         * @param chunk mapped chunk
+         * @param position offset of the chunk in the file
+         * @param length chunk length
+         * @param last whether the chunk ends at the end of the file
+         * @return number of bytes consumed from the chunk
+         */
+        int scan(MappedByteBuffer chunk, long position, int length, boolean last) {
+            int lineStart = 0;
+            for (int i = 0; i < length; i++) {
+                byte b = chunk.get(i);
+                if (b == '\n') {
+                    boolean apply = isApply(chunk, lineStart, i);
+                    lineStart = i + 1;
+                    addLine(apply, position + lineStart);
+                } else if (b == '\r') {
+                    if (i + 1 == length && !last) {
+                        // the line feed may follow in the next chunk
+                        break;
+                    }
+                    boolean apply = isApply(chunk, lineStart, i);
+                    if (i + 1 < length && chunk.get(i + 1) == '\n') {
+                        i++;
+                    }
+                    lineStart = i + 1;
+                    addLine(apply, position + lineStart);
+                }
+            }
+
+            // last line need not be terminated
+            if (last && lineStart < length) {
+                boolean apply = isApply(chunk, lineStart, length);
+                lineStart = length;
+                addLine(apply, position + lineStart);
+            }
+
+            return lineStart;
+        }
+
+        /**
+         * Counts a line, closing the block after an apply command.
+         *
+         * @param apply whether the line is an apply command
+         * @param next offset following the line
+         */
+        private void addLine(boolean apply, long next) {
+            blockLines++;
+            if (!apply) {
+                return;
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, 2 * count);
+                lines = Arrays.copyOf(lines, 2 * count);
+            }
+            offsets[count] = start;
+            lines[count++] = blockLines;
+            start = next;
+            end = next;
+            blockLines = 0;
+        }
+
+        /**
+         * Checks whether the line is an apply command.
+         *
+         * @param chunk mapped chunk holding the line
+         * @param from index of the first byte of the line
+         * @param to index following the last byte of the line
+         * @return whether the line parses into an apply command
+         */
+        private boolean isApply(MappedByteBuffer chunk, int from, int to) {
+            int length = to - from;
+            if (length > line.length) {
+                line = new byte[Math.max(length, 2 * line.length)];
+            }
+            for (int i = 0; i < length; i++) {
+                line[i] = chunk.get(from + i);
+            }
+            try {
+                return Operation.APPLY.equals(parser.parse(line, 0, length).getOperation());
+            } catch (InvalidCommandSyntaxException ex) {
+                return false;
+            }
+        }
+
+    }
+
+}
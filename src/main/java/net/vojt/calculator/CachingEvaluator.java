@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Evaluator remembering the results of computations, so that a computation
+ * with the same commands and the same initializer is evaluated only once.
+ * Failures of the arithmetic are remembered as well and thrown again.
+ * <p>
+ * The commands are always read out of the given computation, on a miss
+ * the decorated evaluator gets a fresh computation with the same commands.
+ * Computations which have {@link SpillingComputation spilled} are passed
+ * to the decorated evaluator as they are.
+ * The cache is bounded by its weight, which is the total number
+ * of commands in the cached computations, and the least recently used
+ * results are evicted first.
+ * <p>
+ * The evaluator is thread-safe as long as the decorated one is.
+ *
+ * @author janvojt
+ */
+public class CachingEvaluator implements Evaluator {
+
+    /** Default maximum total number of commands in the cache. */
+    public static final long DEFAULT_MAX_WEIGHT = 1 << 20;
+
+    /** Decorated evaluator. */
+    private final Evaluator delegate;
+
+    /** Maximum total number of commands in the cache. */
+    private final long maxWeight;
+
+    /** Results or error messages by the computation they belong to. */
+    private final LinkedHashMap<Key, Object> results = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Total number of commands in the cache. */
+    private long weight;
+
+    /** Number of computations answered from the cache. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of computations passed to the decorated evaluator. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Constructs a cache of the default weight.
+     *
+     * @param delegate decorated evaluator
+     */
+    public CachingEvaluator(Evaluator delegate) {
+        this(delegate, DEFAULT_MAX_WEIGHT);
+    }
+
+    /**
+     * Constructs the cache.
+     *
+     * @param delegate decorated evaluator
+     * @param maxWeight maximum total number of commands in the cache
+     */
+    public CachingEvaluator(Evaluator delegate, long maxWeight) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("Cache weight must be positive: " + maxWeight);
+        }
+        this.delegate = delegate;
+        this.maxWeight = maxWeight;
+    }
+
+    @Override
+    public BigDecimal evaluate(Computation computation) {
+        BigDecimal initializer = computation.getInitializer();
+        if (initializer == null || SpillingComputation.isSpilled(computation)) {
+            return delegate.evaluate(computation);
+        }
+
+        Key key = new Key(ComputationKey.drain(computation), initializer);
+        Object cached;
+        synchronized (results) {
+            cached = results.get(key);
+        }
+        if (cached != null) {
+            hits.incrementAndGet();
+            if (cached instanceof String) {
+                throw new ArithmeticException((String) cached);
+            }
+            return (BigDecimal) cached;
+        }
+
+        misses.incrementAndGet();
+        Computation copy = new Computation();
+        for (int i = 0; i < key.commands.length(); i++) {
+            copy.pushCommand(key.commands.get(i));
+        }
+        copy.setInitializer(initializer);
+        try {
+            BigDecimal result = delegate.evaluate(copy);
+            put(key, result);
+            return result;
+        } catch (ArithmeticException ex) {
+            put(key, String.valueOf(ex.getMessage()));
+            throw ex;
+        }
+    }
+
+    /**
+     * Caches the outcome of a computation, evicting the least recently
+     * used ones over the weight limit.
+     *
+     * @param key evaluated computation
+     * @param outcome result or error message
+     */
+    private void put(Key key, Object outcome) {
+        long keyWeight = key.weight();
+        if (keyWeight > maxWeight) {
+            return;
+        }
+        synchronized (results) {
+            if (results.put(key, outcome) == null) {
+                weight += keyWeight;
+            }
+            Iterator<Key> eldest = results.keySet().iterator();
+            while (weight > maxWeight) {
+                weight -= eldest.next().weight();
+                eldest.remove();
+            }
+        }
+    }
+
+    /** @return number of computations answered from the cache */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** @return number of computations passed to the decorated evaluator */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** @return ratio of computations answered from the cache, zero if none were evaluated */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /** @return number of cached results */
+    public int getCacheSize() {
+        synchronized (results) {
+            return results.size();
+        }
+    }
+
+    /** @return total number of commands in the cached computations */
+    public long getCacheWeight() {
+        synchronized (results) {
+            return weight;
+        }
+    }
+
+    /**
+     * Commands of a computation together with its initializer.
+     */
+    private static final class Key {
+
+        /** Commands of the computation. */
+        private final ComputationKey commands;
+
+        /** Value initializing the computation. */
+        private final BigDecimal initializer;
+
+        /**
+         * Constructs the key.
+         *
+         * @param commands commands of the computation
+         * @param initializer value initializing the computation
+         */
+        Key(ComputationKey commands, BigDecimal initializer) {
+            this.commands = commands;
+            this.initializer = initializer;
+        }
+
+        /** @return weight of the cache entry */
+        long weight() {
+            return commands.length() + 1;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * commands.hashCode() + initializer.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return initializer.equals(other.initializer) && commands.equals(other.commands);
+        }
+    }
+
+}
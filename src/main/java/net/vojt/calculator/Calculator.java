@@ -22,9 +22,32 @@ package net.vojt.calculator;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
+import java.io.Writer;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
 
 /**
  * The main class that launches the application.
@@ -33,6 +56,183 @@ import java.io.Reader;
  */
 public class Calculator {
 
+    /** Option switching file input to memory-mapped mode. */
+    private static final String MMAP_OPTION = "--mmap";
+
+    /** Option processing the input in a pipeline of threads. */
+    private static final String PIPELINED_OPTION = "--pipelined";
+
+    /** Option folding commands as they arrive. */
+    private static final String STREAMING_OPTION = "--streaming";
+
+    /** Option storing commands in compact arrays. */
+    private static final String COLUMNAR_OPTION = "--columnar";
+
+    /** Option spilling commands over the given count to a temporary file. */
+    private static final String SPILL_OPTION = "--spill";
+
+    /** Option collapsing runs of additions or multiplications as they arrive. */
+    private static final String PEEPHOLE_OPTION = "--peephole";
+
+    /** Option rounding intermediate results to the given number of digits. */
+    private static final String PRECISION_OPTION = "--precision";
+
+    /** Option setting the rounding mode of the precision. */
+    private static final String ROUNDING_OPTION = "--rounding";
+
+    /** Option evaluating integers in long arithmetic. */
+    private static final String TIERED_OPTION = "--tiered";
+
+    /** Option reducing runs of the given length in parallel. */
+    private static final String TREE_OPTION = "--tree";
+
+    /** Option caching compiled plans of repeated computations. */
+    private static final String COMPILED_OPTION = "--compiled";
+
+    /** Option remembering results of repeated computations. */
+    private static final String MEMOIZE_OPTION = "--memoize";
+
+    /** Option setting the number of evaluating threads. */
+    private static final String PARALLEL_OPTION = "--parallel";
+
+    /** Option collecting metrics, dumped in the given interval in seconds. */
+    private static final String METRICS_OPTION = "--metrics";
+
+    /** Option processing all the inputs into files in the given directory. */
+    private static final String BATCH_OPTION = "--batch";
+
+    /** Option writing the output into the given file. */
+    private static final String OUTPUT_OPTION = "--output";
+
+    /** Option writing periodic checkpoints into the given file. */
+    private static final String CHECKPOINT_OPTION = "--checkpoint";
+
+    /** Option setting the interval of the checkpoints in seconds. */
+    private static final String CHECKPOINT_INTERVAL_OPTION = "--checkpoint-interval";
+
+    /** Option resuming from the checkpoint. */
+    private static final String RESUME_OPTION = "--resume";
+
+    /** Option building the block index of the input file. */
+    private static final String INDEX_OPTION = "--index";
+
+    /** Option starting at the given block of the input file. */
+    private static final String FROM_BLOCK_OPTION = "--from-block";
+
+    /** Option limiting the number of blocks processed. */
+    private static final String BLOCKS_OPTION = "--blocks";
+
+    /** Default interval of the checkpoints in seconds. */
+    private static final int DEFAULT_CHECKPOINT_INTERVAL = 60;
+
+    /** Option converting the text input into the given binary file. */
+    private static final String CONVERT_OPTION = "--convert";
+
+    /** Option compressing the input into the given file. */
+    private static final String COMPRESS_OPTION = "--compress";
+
+    /** Suffix of the output files to compress. */
+    private static final String GZIP_SUFFIX = ".gz";
+
+    /** Option reading the input in the binary format. */
+    private static final String BINARY_OPTION = "--binary";
+
+    /** Option serving clients over TCP on the given port. */
+    private static final String SERVER_OPTION = "--server";
+
+    /** Highest TCP port number. */
+    private static final int MAX_PORT = 65535;
+
+    /** Whether to map the input file into memory. */
+    private boolean mmap;
+
+    /** Whether to process the input in a pipeline of threads. */
+    private boolean pipelined;
+
+    /** Whether to fold commands as they arrive. */
+    private boolean streaming;
+
+    /** Whether to store commands in compact arrays. */
+    private boolean columnar;
+
+    /** Number of commands kept in memory, zero when not spilling. */
+    private int spillThreshold;
+
+    /** Optimizer collapsing runs of commands, null when not collapsing. */
+    private PeepholeOptimizer peephole;
+
+    /** Number of digits results are rounded to, zero for exact results. */
+    private int precision;
+
+    /** Rounding mode of the precision, null when not given. */
+    private RoundingMode rounding;
+
+    /** Whether to evaluate integers in long arithmetic. */
+    private boolean tiered;
+
+    /** Length of runs reduced in parallel, zero when not reducing. */
+    private int treeThreshold;
+
+    /** Whether to cache compiled plans of repeated computations. */
+    private boolean compiled;
+
+    /** Whether to remember results of repeated computations. */
+    private boolean memoize;
+
+    /** Number of threads evaluating computations, zero when not given. */
+    private int parallelism;
+
+    /** Interval of dumping the metrics in seconds, zero when not collected. */
+    private int metricsPeriod;
+
+    /** Metrics of the processing, null when not collected. */
+    private CalculatorMetrics metrics;
+
+    /** Port to serve clients on, zero when not serving. */
+    private int port;
+
+    /** Path to the input file, null when reading from stdin. */
+    private String filePath;
+
+    /** Directory of the batch output files, null when not in batch mode. */
+    private String batchDirectory;
+
+    /** All the input files, directories and patterns given. */
+    private final List<String> inputs = new ArrayList<>();
+
+    /** Path to the output file, null when writing to stdout. */
+    private String outputPath;
+
+    /** Path to the checkpoint file, null when not checkpointing. */
+    private String checkpointPath;
+
+    /** Interval of the checkpoints in seconds. */
+    private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+    /** Whether to resume from the checkpoint. */
+    private boolean resume;
+
+    /** Whether to use the block index of the input file. */
+    private boolean index;
+
+    /** Number of the first block to process counting from one, zero when not given. */
+    private int fromBlock;
+
+    /** Number of blocks to process, zero for all of them. */
+    private int blockCount;
+
+    /** Writer of the checkpoints, null when not checkpointing. */
+    private Checkpointer checkpointer;
+
+    /** Path to the binary file to convert into, null when not converting. */
+    private String convertPath;
+
+    /** Path to the file to compress the input into, null when not compressing. */
+    private String compressPath;
+
+    /** Whether the input is in the binary format. */
+    private boolean binary;
+
     /**
      * Entry point of the application.
      * 
@@ -41,25 +241,577 @@ public class Calculator {
      */
     public static void main(String[] args) throws IOException {
         
-        InteractiveCalculator calc = new InteractiveCalculator();
+        Calculator calculator = new Calculator();
+        try {
+            calculator.parseOptions(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            return;
+        }
+        calculator.run();
+    }
+
+    /**
+     * Parses the command line arguments.
+     * 
+     * @param args the command line arguments
+     * @throws IllegalArgumentException in case of invalid arguments
+     */
+    private void parseOptions(String[] args) throws IllegalArgumentException {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (MMAP_OPTION.equals(arg)) {
+                mmap = true;
+            } else if (PIPELINED_OPTION.equals(arg)) {
+                pipelined = true;
+            } else if (STREAMING_OPTION.equals(arg)) {
+                streaming = true;
+            } else if (COLUMNAR_OPTION.equals(arg)) {
+                columnar = true;
+            } else if (SPILL_OPTION.equals(arg)) {
+                spillThreshold = parsePositive(args, ++i, arg);
+            } else if (PEEPHOLE_OPTION.equals(arg)) {
+                peephole = new PeepholeOptimizer();
+            } else if (PRECISION_OPTION.equals(arg)) {
+                precision = parsePositive(args, ++i, arg);
+            } else if (ROUNDING_OPTION.equals(arg)) {
+                rounding = parseRounding(args, ++i, arg);
+            } else if (TIERED_OPTION.equals(arg)) {
+                tiered = true;
+            } else if (TREE_OPTION.equals(arg)) {
+                treeThreshold = parsePositive(args, ++i, arg);
+            } else if (COMPILED_OPTION.equals(arg)) {
+                compiled = true;
+            } else if (MEMOIZE_OPTION.equals(arg)) {
+                memoize = true;
+            } else if (PARALLEL_OPTION.equals(arg)) {
+                parallelism = parsePositive(args, ++i, arg);
+            } else if (METRICS_OPTION.equals(arg)) {
+                metricsPeriod = parsePositive(args, ++i, arg);
+            } else if (BATCH_OPTION.equals(arg)) {
+                batchDirectory = parseValue(args, ++i, arg);
+            } else if (OUTPUT_OPTION.equals(arg)) {
+                outputPath = parseValue(args, ++i, arg);
+            } else if (CHECKPOINT_OPTION.equals(arg)) {
+                checkpointPath = parseValue(args, ++i, arg);
+            } else if (CHECKPOINT_INTERVAL_OPTION.equals(arg)) {
+                checkpointInterval = parsePositive(args, ++i, arg);
+            } else if (RESUME_OPTION.equals(arg)) {
+                resume = true;
+            } else if (INDEX_OPTION.equals(arg)) {
+                index = true;
+            } else if (FROM_BLOCK_OPTION.equals(arg)) {
+                fromBlock = parsePositive(args, ++i, arg);
+            } else if (BLOCKS_OPTION.equals(arg)) {
+                blockCount = parsePositive(args, ++i, arg);
+            } else if (CONVERT_OPTION.equals(arg)) {
+                convertPath = parseValue(args, ++i, arg);
+            } else if (COMPRESS_OPTION.equals(arg)) {
+                compressPath = parseValue(args, ++i, arg);
+            } else if (BINARY_OPTION.equals(arg)) {
+                binary = true;
+            } else if (SERVER_OPTION.equals(arg)) {
+                port = parsePositive(args, ++i, arg);
+                if (port > MAX_PORT) {
+                    throw new IllegalArgumentException("Option " + arg + " requires a port number: '" + args[i] + "'");
+                }
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown option: '" + arg + "'");
+            } else {
+                if (filePath == null) {
+                    filePath = arg;
+                }
+                inputs.add(arg);
+            }
+        }
         
-        // we are always writing to stdout
-        calc.setWriter(new OutputStreamWriter(System.out));
+        if (batchDirectory != null && inputs.isEmpty()) {
+            throw new IllegalArgumentException("Option " + BATCH_OPTION + " requires input files.");
+        }
+        if (batchDirectory == null && inputs.size() > 1) {
+            throw new IllegalArgumentException("Only one input file may be given without " + BATCH_OPTION + ".");
+        }
+        if (batchDirectory != null && (port > 0 || pipelined)) {
+            throw new IllegalArgumentException("Option " + BATCH_OPTION + " cannot be combined with "
+                    + SERVER_OPTION + " or " + PIPELINED_OPTION + ".");
+        }
+        if (outputPath != null && (batchDirectory != null || port > 0)) {
+            throw new IllegalArgumentException("Option " + OUTPUT_OPTION + " cannot be combined with "
+                    + BATCH_OPTION + " or " + SERVER_OPTION + ".");
+        }
+        if (checkpointPath != null && (!mmap || outputPath == null)) {
+            throw new IllegalArgumentException("Option " + CHECKPOINT_OPTION + " requires "
+                    + MMAP_OPTION + " and " + OUTPUT_OPTION + ".");
+        }
+        if (checkpointPath != null && outputPath.endsWith(GZIP_SUFFIX)) {
+            throw new IllegalArgumentException("Option " + CHECKPOINT_OPTION + " cannot be combined with compressed output.");
+        }
+        if (resume && checkpointPath == null) {
+            throw new IllegalArgumentException("Option " + RESUME_OPTION + " requires " + CHECKPOINT_OPTION + ".");
+        }
+        if (index && filePath == null) {
+            throw new IllegalArgumentException("Option " + INDEX_OPTION + " requires an input file.");
+        }
+        if (index && (binary || pipelined || port > 0 || convertPath != null)) {
+            throw new IllegalArgumentException("Option " + INDEX_OPTION + " cannot be combined with "
+                    + BINARY_OPTION + ", " + PIPELINED_OPTION + ", " + SERVER_OPTION + " or " + CONVERT_OPTION + ".");
+        }
+        if ((fromBlock > 0 || blockCount > 0) && !mmap) {
+            throw new IllegalArgumentException("Options " + FROM_BLOCK_OPTION + " and " + BLOCKS_OPTION
+                    + " require " + MMAP_OPTION + ".");
+        }
+        if ((fromBlock > 0 || blockCount > 0) && checkpointPath != null) {
+            throw new IllegalArgumentException("Options " + FROM_BLOCK_OPTION + " and " + BLOCKS_OPTION
+                    + " cannot be combined with " + CHECKPOINT_OPTION + ".");
+        }
+        if (compressPath != null && filePath == null) {
+            throw new IllegalArgumentException("Option " + COMPRESS_OPTION + " requires an input file.");
+        }
+        if (compressPath != null && (convertPath != null || binary || mmap || pipelined || index
+                || batchDirectory != null || port > 0 || outputPath != null)) {
+            throw new IllegalArgumentException("Option " + COMPRESS_OPTION + " cannot be combined with other input or output options.");
+        }
+        if (convertPath != null && (binary || mmap || pipelined || batchDirectory != null || port > 0 || outputPath != null)) {
+            throw new IllegalArgumentException("Option " + CONVERT_OPTION + " cannot be combined with other input or output options.");
+        }
+        if (binary && (mmap || pipelined || batchDirectory != null || port > 0)) {
+            throw new IllegalArgumentException("Option " + BINARY_OPTION + " cannot be combined with "
+                    + MMAP_OPTION + ", " + PIPELINED_OPTION + ", " + BATCH_OPTION + " or " + SERVER_OPTION + ".");
+        }
+        if (mmap && filePath == null) {
+            throw new IllegalArgumentException("Option " + MMAP_OPTION + " requires an input file.");
+        }
+        if (mmap && pipelined) {
+            throw new IllegalArgumentException("Options " + MMAP_OPTION + " and " + PIPELINED_OPTION + " cannot be combined.");
+        }
+        if (port > 0 && (filePath != null || mmap)) {
+            throw new IllegalArgumentException("Option " + SERVER_OPTION + " does not take an input file.");
+        }
+        if (streaming && columnar) {
+            throw new IllegalArgumentException("Options " + STREAMING_OPTION + " and " + COLUMNAR_OPTION + " cannot be combined.");
+        }
+        if (spillThreshold > 0 && (streaming || columnar)) {
+            throw new IllegalArgumentException("Option " + SPILL_OPTION + " cannot be combined with "
+                    + STREAMING_OPTION + " or " + COLUMNAR_OPTION + ".");
+        }
+        if (peephole != null && (streaming || columnar || spillThreshold > 0)) {
+            throw new IllegalArgumentException("Option " + PEEPHOLE_OPTION + " cannot be combined with "
+                    + STREAMING_OPTION + ", " + COLUMNAR_OPTION + " or " + SPILL_OPTION + ".");
+        }
+        if (rounding != null && precision == 0) {
+            throw new IllegalArgumentException("Option " + ROUNDING_OPTION + " requires " + PRECISION_OPTION + ".");
+        }
+        if (precision > 0 && (streaming || compiled || peephole != null)) {
+            throw new IllegalArgumentException("Option " + PRECISION_OPTION + " cannot be combined with "
+                    + STREAMING_OPTION + ", " + COMPILED_OPTION + " or " + PEEPHOLE_OPTION + ".");
+        }
+        if (tiered && compiled) {
+            throw new IllegalArgumentException("Options " + TIERED_OPTION + " and " + COMPILED_OPTION + " cannot be combined.");
+        }
+        if (treeThreshold > 0 && (tiered || compiled)) {
+            throw new IllegalArgumentException("Option " + TREE_OPTION + " cannot be combined with "
+                    + TIERED_OPTION + " or " + COMPILED_OPTION + ".");
+        }
+    }
+
+    /**
+     * Parses the value of an option.
+     * 
+     * @param args the command line arguments
+     * @param i index of the value
+     * @param option option name
+     * @return the value
+     * @throws IllegalArgumentException in case of missing value
+     */
+    private static String parseValue(String[] args, int i, String option) throws IllegalArgumentException {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Option " + option + " requires a value.");
+        }
+        return args[i];
+    }
+
+    /**
+     * Parses a positive integer value of an option.
+     * 
+     * @param args the command line arguments
+     * @param i index of the value
+     * @param option option name
+     * @return parsed value
+     * @throws IllegalArgumentException in case of missing or invalid value
+     */
+    private static int parsePositive(String[] args, int i, String option) throws IllegalArgumentException {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Option " + option + " requires a value.");
+        }
+        try {
+            int value = Integer.parseInt(args[i]);
+            if (value > 0) {
+                return value;
+            }
+        } catch (NumberFormatException ex) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Option " + option + " requires a positive number: '" + args[i] + "'");
+    }
+
+    /**
+     * Parses the rounding mode value of an option.
+     * 
+     * @param args the command line arguments
+     * @param i index of the value
+     * @param option option name
+     * @return parsed rounding mode
+     * @throws IllegalArgumentException in case of missing or invalid value
+     */
+    private static RoundingMode parseRounding(String[] args, int i, String option) throws IllegalArgumentException {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Option " + option + " requires a value.");
+        }
+        try {
+            return RoundingMode.valueOf(args[i].toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Option " + option + " requires a rounding mode, one of "
+                    + Arrays.toString(RoundingMode.values()) + ": '" + args[i] + "'");
+        }
+    }
+
+    /**
+     * Runs the calculator with the parsed options, collecting the metrics
+     * if requested.
+     * 
+     * @throws IOException in case of I/O error
+     */
+    private void run() throws IOException {
+        if (metricsPeriod == 0) {
+            process();
+            return;
+        }
         
-        if (args.length > 0) {
-            // we are to read from file
-            String filePath = args[0];
-            try (Reader reader = new FileReader(filePath)) {
-                calc.setReader(reader);
-                calc.run();
+        metrics = new CalculatorMetrics();
+        try {
+            metrics.register();
+        } catch (JMException ex) {
+            System.err.println("Could not register metrics: " + ex.getMessage());
+        }
+        metrics.startDump(System.err, metricsPeriod, TimeUnit.SECONDS);
+        try {
+            process();
+        } finally {
+            metrics.close();
+            System.err.println(metrics);
+            if (peephole != null) {
+                System.err.println(peephole);
+            }
+            if (checkpointer != null) {
+                System.err.println(checkpointer);
+            }
+        }
+    }
+
+    /**
+     * Processes the input with the parsed options.
+     * 
+     * @throws IOException in case of I/O error
+     */
+    private void process() throws IOException {
+        if (outputPath == null) {
+            process(new OutputStreamWriter(System.out), null, null);
+            return;
+        }
+        if (outputPath.endsWith(GZIP_SUFFIX)) {
+            try (Writer writer = new OutputStreamWriter(new BlockGzipOutputStream(
+                    Files.newOutputStream(Paths.get(outputPath))), StandardCharsets.UTF_8)) {
+                process(writer, null, null);
+            }
+            return;
+        }
+        
+        try (FileChannel output = FileChannel.open(Paths.get(outputPath),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            Checkpoint checkpoint = resume ? Checkpoint.read(Paths.get(checkpointPath)) : null;
+            if (checkpoint != null) {
+                if (checkpoint.getInputSize() != Files.size(Paths.get(filePath))
+                        || checkpoint.getOutputOffset() > output.size()) {
+                    System.err.println("Checkpoint '" + checkpointPath + "' does not match the input and output files.");
+                    return;
+                }
+                System.err.println("Resuming at input offset " + checkpoint.getInputOffset()
+                        + ", output offset " + checkpoint.getOutputOffset() + ".");
+                output.truncate(checkpoint.getOutputOffset());
+                output.position(checkpoint.getOutputOffset());
+            } else {
+                output.truncate(0);
+            }
+            process(Channels.newWriter(output, StandardCharsets.UTF_8.newEncoder(), -1), output, checkpoint);
+        }
+    }
+
+    /**
+     * Processes the input with the parsed options.
+     * 
+     * @param writer output writer
+     * @param output output file the writer writes to, null for stdout
+     * @param checkpoint checkpoint to resume from, null to start from the beginning
+     * @throws IOException in case of I/O error
+     */
+    private void process(Writer writer, FileChannel output, Checkpoint checkpoint) throws IOException {
+        
+        if (compressPath != null) {
+            // we are to compress the input into blocks inflated in parallel
+            try (InputStream in = openInput(); OutputStream out = new BlockGzipOutputStream(
+                    Files.newOutputStream(Paths.get(compressPath)))) {
+                byte[] buffer = new byte[BlockGzipOutputStream.BLOCK_SIZE];
+                long bytes = 0;
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                    out.write(buffer, 0, n);
+                    bytes += n;
+                }
+                System.err.println("Compressed " + bytes + " bytes into '" + compressPath + "'.");
+            } catch (NoSuchFileException | AccessDeniedException ex) {
+                System.err.println("Could not read file: '" + filePath + "'");
+            }
+        } else if (convertPath != null) {
+            // we are to convert the text input into the binary format
+            try (Reader reader = filePath == null ? new InputStreamReader(System.in) : openReader();
+                    FileChannel out = FileChannel.open(Paths.get(convertPath), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long records = new BinaryConverter().convert(reader, out);
+                System.err.println("Converted " + records + " lines into " + out.size() + " bytes.");
             } catch (FileNotFoundException ex) {
                 System.err.println("Could not read file: '" + filePath + "'");
             }
-        } else {
+        } else if (binary) {
+            // we are to replay the binary format
+            BinaryCalculator calc = configure(new BinaryCalculator(), writer);
+            if (filePath == null) {
+                calc.setChannel(Channels.newChannel(System.in));
+                calc.run();
+            } else {
+                try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+                    calc.setChannel(decompress(channel));
+                    calc.run();
+                } catch (NoSuchFileException | AccessDeniedException ex) {
+                    System.err.println("Could not read file: '" + filePath + "'");
+                }
+            }
+        } else if (index && !mmap && batchDirectory == null) {
+            // we are to index the input file only
+            try {
+                Path input = Paths.get(filePath);
+                BlockIndex blocks = BlockIndex.open(input);
+                if (blocks.getWriteFailure() != null) {
+                    System.err.println("Indexed " + blocks.getBlockCount() + " blocks, but could not write '"
+                            + BlockIndex.sidecar(input) + "': " + blocks.getWriteFailure());
+                } else {
+                    System.err.println("Indexed " + blocks.getBlockCount() + " blocks into '"
+                            + BlockIndex.sidecar(input) + "'.");
+                }
+            } catch (NoSuchFileException | AccessDeniedException ex) {
+                System.err.println("Could not read file: '" + filePath + "'");
+            }
+        } else if (batchDirectory != null) {
+            // we are to process many files into an output directory
+            BatchRunner runner = new BatchRunner(Paths.get(batchDirectory));
+            if (parallelism > 0) {
+                runner.setParallelism(parallelism);
+            }
+            runner.setEval(createEvaluator());
+            runner.setComputationFactory(createComputationFactory());
+            runner.setMetrics(metrics);
+            runner.setIndexed(index);
+            try {
+                runner.printSummary(runner.run(inputs), System.out);
+            } catch (IllegalArgumentException ex) {
+                System.err.println(ex.getMessage());
+            }
+        } else if (port > 0) {
+            // we are to serve clients over the network
+            CalculatorServer server = new CalculatorServer();
+            if (parallelism > 0) {
+                server.setParallelism(parallelism);
+            }
+            server.setEval(createEvaluator());
+            server.setMetrics(metrics);
+            server.setComputationFactory(createComputationFactory());
+            InetSocketAddress address = server.bind(new InetSocketAddress(port));
+            System.out.println("Listening on port " + address.getPort() + ".");
+            server.run();
+        } else if (pipelined) {
+            // we are to read the input in a pipeline of threads
+            PipelinedCalculator calc = configure(new PipelinedCalculator(), writer);
+            if (filePath == null) {
+                System.out.println("You may start typing commands. Terminate with EOF on a new line.");
+                calc.setChannel(Channels.newChannel(System.in));
+                calc.run();
+            } else {
+                try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+                    calc.setChannel(decompress(channel));
+                    calc.run();
+                } catch (NoSuchFileException | AccessDeniedException ex) {
+                    System.err.println("Could not read file: '" + filePath + "'");
+                }
+            }
+        } else if (filePath == null) {
             // we are to read from stdin
+            InteractiveCalculator calc = configure(new InteractiveCalculator(), writer);
             System.out.println("You may start typing commands. Terminate with EOF on a new line.");
             calc.setReader(new InputStreamReader(System.in));
             calc.run();
+        } else if (mmap) {
+            // we are to map the file into memory
+            MappedFileCalculator calc = configure(new MappedFileCalculator(), writer);
+            try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+                if (ParallelGzipInputStream.isGzip(channel)) {
+                    System.err.println("Compressed file cannot be mapped into memory: '" + filePath + "'");
+                    return;
+                }
+                calc.setChannel(channel);
+                if (checkpoint != null) {
+                    calc.setRegion(checkpoint.getInputOffset(), channel.size() - checkpoint.getInputOffset());
+                }
+                if (index || fromBlock > 0 || blockCount > 0) {
+                    BlockIndex blocks = BlockIndex.open(Paths.get(filePath));
+                    if (blocks.getWriteFailure() != null) {
+                        System.err.println("Could not write index '" + BlockIndex.sidecar(Paths.get(filePath))
+                                + "', continuing without it: " + blocks.getWriteFailure());
+                    }
+                    if (fromBlock > 0 || blockCount > 0) {
+                        int first = Math.max(fromBlock, 1) - 1;
+                        if (first >= blocks.getBlockCount()) {
+                            System.err.println("Input has only " + blocks.getBlockCount() + " blocks.");
+                            return;
+                        }
+                        long start = blocks.getOffset(first);
+                        long end = blockCount == 0 || (long) first + blockCount >= blocks.getBlockCount()
+                                ? channel.size()
+                                : blocks.getOffset(first + blockCount);
+                        calc.setRegion(start, end - start);
+                    }
+                }
+                if (checkpointPath != null) {
+                    checkpointer = new Checkpointer(Paths.get(checkpointPath), output,
+                            channel.size(), checkpointInterval, TimeUnit.SECONDS);
+                    calc.setCheckpointer(checkpointer);
+                }
+                calc.run();
+            } catch (NoSuchFileException | AccessDeniedException ex) {
+                System.err.println("Could not read file: '" + filePath + "'");
+            }
+        } else {
+            // we are to read from file
+            InteractiveCalculator calc = configure(new InteractiveCalculator(), writer);
+            try (Reader reader = openReader()) {
+                calc.setReader(reader);
+                calc.run();
+            } catch (FileNotFoundException | NoSuchFileException | AccessDeniedException ex) {
+                System.err.println("Could not read file: '" + filePath + "'");
+            }
+        }
+    }
+
+    /**
+     * Opens the input file, decompressing it if it is compressed.
+     * 
+     * @return input stream
+     * @throws IOException in case of I/O error
+     */
+    private InputStream openInput() throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+        return ParallelGzipInputStream.isGzip(channel)
+                ? new ParallelGzipInputStream(channel)
+                : Channels.newInputStream(channel);
+    }
+
+    /**
+     * Opens a reader of the input file, decompressing it if it is compressed.
+     * 
+     * @return reader of the input
+     * @throws IOException in case of I/O error
+     */
+    private Reader openReader() throws IOException {
+        if (ParallelGzipInputStream.isGzip(Paths.get(filePath))) {
+            return new InputStreamReader(openInput());
+        }
+        return new FileReader(filePath);
+    }
+
+    /**
+     * Gives the channel of the input file contents, decompressing
+     * the file if it is compressed.
+     * 
+     * @param channel input file
+     * @return channel of the contents
+     * @throws IOException in case of I/O error
+     */
+    private static ReadableByteChannel decompress(FileChannel channel) throws IOException {
+        return ParallelGzipInputStream.isGzip(channel)
+                ? Channels.newChannel(new ParallelGzipInputStream(channel))
+                : channel;
+    }
+
+    /**
+     * Configures the calculator according to the parsed options.
+     * 
+     * @param <T> calculator type
+     * @param calc calculator to configure
+     * @param writer output writer
+     * @return the configured calculator
+     */
+    private <T extends InteractiveCalculator> T configure(T calc, Writer writer) {
+        calc.setWriter(writer);
+        calc.setParallelism(Math.max(parallelism, 1));
+        calc.setMetrics(metrics);
+        
+        // flush every result only when somebody may be typing the input
+        boolean interactive = filePath == null && System.console() != null;
+        calc.setOutputMode(interactive
+                ? InteractiveCalculator.OutputMode.INTERACTIVE
+                : InteractiveCalculator.OutputMode.BATCH);
+        calc.setComputationFactory(createComputationFactory());
+        calc.setEval(createEvaluator());
+        return calc;
+    }
+
+    /**
+     * Creates the computation factory according to the parsed options.
+     * 
+     * @return the computation factory
+     */
+    private ComputationFactory createComputationFactory() {
+        if (streaming) {
+            return FoldingComputation.FACTORY;
+        } else if (columnar) {
+            return ColumnarComputation.FACTORY;
+        } else if (spillThreshold > 0) {
+            return SpillingComputation.factory(spillThreshold);
+        } else if (peephole != null) {
+            return peephole;
+        }
+        return Computation.FACTORY;
+    }
+
+    /**
+     * Creates the evaluator according to the parsed options.
+     * 
+     * @return the evaluator
+     */
+    private Evaluator createEvaluator() {
+        MathContext mc = precision == 0
+                ? MathContext.UNLIMITED
+                : new MathContext(precision, rounding == null ? RoundingMode.HALF_EVEN : rounding);
+        Evaluator eval = new EvaluatorImpl(mc);
+        if (tiered) {
+            eval = new TieredEvaluator(mc);
+        }
+        if (treeThreshold > 0) {
+            eval = new TreeReductionEvaluator(treeThreshold, ForkJoinPool.commonPool(), mc);
+        }
+        if (compiled) {
+            eval = new CompilingEvaluator();
+        }
+        if (memoize) {
+            eval = new CachingEvaluator(eval);
         }
+        return eval;
     }
 }
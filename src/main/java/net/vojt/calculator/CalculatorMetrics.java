@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of the input processing, exported
+ * through JMX and optionally dumped as text in regular intervals.
+ * <p>
+ * Calculators collect the metrics only when they are given an instance,
+ * otherwise the only cost is a null check per line and per computation.
+ * Counters and histogram buckets are striped {@link LongAdder}s,
+ * so threads recording concurrently do not contend. The metrics
+ * are thread-safe.
+ *
+ * @author janvojt
+ */
+public class CalculatorMetrics implements CalculatorMetricsMXBean, Closeable {
+
+    /** Name the metrics are registered under by default. */
+    public static final String DEFAULT_OBJECT_NAME = "net.vojt.calculator:type=CalculatorMetrics";
+
+    /** All the operations indexed by their ordinal. */
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    /** Number of valid commands indexed by the operation ordinal. */
+    private final LongAdder[] commands = new LongAdder[OPERATIONS.length];
+
+    /** Number of lines parsed. */
+    private final LongAdder lines = new LongAdder();
+
+    /** Number of computations evaluated. */
+    private final LongAdder applyBlocks = new LongAdder();
+
+    /** Number of lines which could not be parsed. */
+    private final LongAdder syntaxErrors = new LongAdder();
+
+    /** Number of computations failing in the arithmetic. */
+    private final LongAdder arithmeticErrors = new LongAdder();
+
+    /** Latency of parsing a line. */
+    private final LatencyHistogram parseLatency = new LatencyHistogram();
+
+    /** Latency of evaluating a computation. */
+    private final LatencyHistogram evaluationLatency = new LatencyHistogram();
+
+    /** Time of the start or the last reset. */
+    private volatile long startNanos = System.nanoTime();
+
+    /** Name of the registered management bean, null when not registered. */
+    private ObjectName objectName;
+
+    /** Thread dumping the metrics, null when not dumping. */
+    private ScheduledExecutorService dumper;
+
+    /**
+     * Constructs empty metrics.
+     */
+    public CalculatorMetrics() {
+        for (int i = 0; i < commands.length; i++) {
+            commands[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a parsed line.
+     *
+     * @param operation operation of the command, null for a line
+     *      which could not be parsed
+     * @param nanos time spent parsing the line
+     */
+    public void recordParse(Operation operation, long nanos) {
+        if (operation == null) {
+            syntaxErrors.increment();
+        } else {
+            commands[operation.ordinal()].increment();
+        }
+        lines.increment();
+        parseLatency.record(nanos);
+    }
+
+    /**
+     * Records an evaluated computation.
+     *
+     * @param nanos time spent evaluating the computation
+     * @param failed whether the evaluation failed in the arithmetic
+     */
+    public void recordEvaluation(long nanos, boolean failed) {
+        if (failed) {
+            arithmeticErrors.increment();
+        }
+        applyBlocks.increment();
+        evaluationLatency.record(nanos);
+    }
+
+    @Override
+    public long getLines() {
+        return lines.sum();
+    }
+
+    @Override
+    public double getLinesPerSecond() {
+        long nanos = System.nanoTime() - startNanos;
+        return nanos <= 0 ? 0 : getLines() * 1e9 / nanos;
+    }
+
+    /**
+     * Returns the number of valid commands of an operation.
+     *
+     * @param operation operation of the commands
+     * @return number of commands
+     */
+    public long getCommands(Operation operation) {
+        return commands[operation.ordinal()].sum();
+    }
+
+    @Override
+    public Map<String, Long> getCommands() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Operation operation : OPERATIONS) {
+            result.put(operation.name(), getCommands(operation));
+        }
+        return result;
+    }
+
+    @Override
+    public long getApplyBlocks() {
+        return applyBlocks.sum();
+    }
+
+    @Override
+    public long getSyntaxErrors() {
+        return syntaxErrors.sum();
+    }
+
+    @Override
+    public long getArithmeticErrors() {
+        return arithmeticErrors.sum();
+    }
+
+    /** @return histogram of the line parsing latency */
+    public LatencyHistogram getParseHistogram() {
+        return parseLatency;
+    }
+
+    /** @return histogram of the computation evaluation latency */
+    public LatencyHistogram getEvaluationHistogram() {
+        return evaluationLatency;
+    }
+
+    @Override
+    public Map<String, Long> getParseLatency() {
+        return summary(parseLatency);
+    }
+
+    @Override
+    public Map<String, Long> getEvaluationLatency() {
+        return summary(evaluationLatency);
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder adder : commands) {
+            adder.reset();
+        }
+        lines.reset();
+        applyBlocks.reset();
+        syntaxErrors.reset();
+        arithmeticErrors.reset();
+        parseLatency.reset();
+        evaluationLatency.reset();
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server
+     * under the {@link #DEFAULT_OBJECT_NAME default name}.
+     *
+     * @throws JMException in case the registration fails
+     */
+    public void register() throws JMException {
+        register(new ObjectName(DEFAULT_OBJECT_NAME));
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server.
+     *
+     * @param name name to register the metrics under
+     * @throws JMException in case the registration fails
+     */
+    public synchronized void register(ObjectName name) throws JMException {
+        if (objectName != null) {
+            throw new IllegalStateException("Metrics are registered already as " + objectName + ".");
+        }
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        objectName = name;
+    }
+
+    /**
+     * Starts dumping the metrics in regular intervals from a daemon thread.
+     *
+     * @param out stream to dump the metrics to
+     * @param period interval between the dumps
+     * @param unit unit of the interval
+     */
+    public synchronized void startDump(final PrintStream out, long period, TimeUnit unit) {
+        if (dumper != null) {
+            throw new IllegalStateException("Metrics are being dumped already.");
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "calculator-metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        dumper.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                out.println(CalculatorMetrics.this);
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stops dumping the metrics and unregisters them from the MBean server.
+     */
+    @Override
+    public synchronized void close() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+        }
+        if (objectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.unregisterMBean(objectName);
+            } catch (JMException ex) {
+                // unregistered by somebody else
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * Formats the metrics into a text dump, one metric per line.
+     *
+     * @return the text dump
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append("lines: ").append(getLines())
+                .append(String.format(Locale.ROOT, " (%.0f/s)", getLinesPerSecond())).append('\n');
+        text.append("commands:");
+        for (Map.Entry<String, Long> entry : getCommands().entrySet()) {
+            text.append(' ').append(entry.getKey().toLowerCase(Locale.ROOT)).append('=').append(entry.getValue());
+        }
+        text.append('\n');
+        text.append("apply blocks: ").append(getApplyBlocks()).append('\n');
+        text.append("syntax errors: ").append(getSyntaxErrors()).append('\n');
+        text.append("arithmetic errors: ").append(getArithmeticErrors()).append('\n');
+        text.append("parse latency [ns]: ").append(parseLatency).append('\n');
+        text.append("evaluation latency [ns]: ").append(evaluationLatency);
+        return text.toString();
+    }
+
+    /**
+     * Summarizes the histogram for the management interface.
+     *
+     * @param histogram histogram to summarize
+     * @return statistics by their name
+     */
+    private static Map<String, Long> summary(LatencyHistogram histogram) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        result.put("count", histogram.getCount());
+        result.put("mean", histogram.getMean());
+        result.put("p50", histogram.getValueAtPercentile(50));
+        result.put("p90", histogram.getValueAtPercentile(90));
+        result.put("p99", histogram.getValueAtPercentile(99));
+        result.put("p99.9", histogram.getValueAtPercentile(99.9));
+        result.put("max", histogram.getMax());
+        return result;
+    }
+
+}
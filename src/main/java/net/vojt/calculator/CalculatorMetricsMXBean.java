@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link CalculatorMetrics}.
+ * Latencies are in nanoseconds.
+ *
+ * @author janvojt
+ */
+public interface CalculatorMetricsMXBean {
+
+    /** @return number of input lines processed */
+    long getLines();
+
+    /** @return average number of lines processed per second since the start */
+    double getLinesPerSecond();
+
+    /** @return number of valid commands by their operation */
+    Map<String, Long> getCommands();
+
+    /** @return number of computations evaluated */
+    long getApplyBlocks();
+
+    /** @return number of lines which could not be parsed */
+    long getSyntaxErrors();
+
+    /** @return number of computations failing in the arithmetic */
+    long getArithmeticErrors();
+
+    /** @return statistics of the line parsing latency */
+    Map<String, Long> getParseLatency();
+
+    /** @return statistics of the computation evaluation latency */
+    Map<String, Long> getEvaluationLatency();
+
+    /** Discards all the metrics collected so far. */
+    void reset();
+}
@@ -0,0 +1,658 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Calculator serving many clients over TCP. Every connection is a separate
+ * session with its own computation, speaking the same line protocol
+ * as {@link InteractiveCalculator}: commands are sent line by line
+ * and every apply command is answered by a result or an error line.
+ * <p>
+ * All the connections are multiplexed by a single selector thread, which
+ * also parses the commands. The computations are evaluated by a pool
+ * of {@link #setParallelism(int) worker threads}, so that a long block does
+ * not hold up the other connections. A session has at most one evaluation
+ * in flight and does not read from its client meanwhile, so its results
+ * are sent in order. A session also stops reading from its client while
+ * its unsent output is over the {@link #setMaxOutput(int) output limit},
+ * so a client which does not read its results is not served any further
+ * until it does. Input is expected to be ASCII text.
+ * A session failing unexpectedly is ended alone, after its client is sent
+ * an error line, while the other sessions are served further.
+ *
+ * @author janvojt
+ */
+public class CalculatorServer {
+
+    /** End of line character to use. */
+    private static final byte EOL = '\n';
+
+    /** Prefix of a line with a result. */
+    private static final String RESULT_PREFIX = "Result is: ";
+
+    /** Prefix of a line with an error. */
+    private static final String ERROR_PREFIX = "ERROR: ";
+
+    /** Message reported for a line which could not be parsed. */
+    private static final String INVALID_COMMAND = "Invalid command syntax.";
+
+    /** Message reported before a session is ended by an unexpected failure. */
+    private static final String INTERNAL_ERROR = "Internal error, closing the session.";
+
+    /** Initial size of the session buffers. */
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    /** Maximum number of connections waiting to be accepted. */
+    private static final int BACKLOG = 4096;
+
+    /** Default limit of unsent output of a session. */
+    public static final int DEFAULT_MAX_OUTPUT = 64 * 1024;
+
+    /** Default limit of the length of a single line. */
+    public static final int DEFAULT_MAX_LINE_LENGTH = 1024 * 1024;
+
+    /** Computation evaluator. */
+    private Evaluator eval = new EvaluatorImpl();
+
+    /** Factory of the session computations. */
+    private ComputationFactory computationFactory = Computation.FACTORY;
+
+    /** Parser of commands given as bytes, used by the selector thread only. */
+    private final AsciiCommandParser parser = new AsciiCommandParser();
+
+    /** Sessions whose evaluation has completed, handed over to the selector thread. */
+    private final Queue<Session> completed = new ConcurrentLinkedQueue<>();
+
+    /** Number of threads evaluating computations. */
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /** Threads evaluating computations, null unless running. */
+    private ExecutorService executor;
+
+    /** Limit of unsent output of a session. */
+    private int maxOutput = DEFAULT_MAX_OUTPUT;
+
+    /** Limit of the length of a single line. */
+    private int maxLineLength = DEFAULT_MAX_LINE_LENGTH;
+
+    /** Metrics of the processing, null when not collected. */
+    private CalculatorMetrics metrics;
+
+    /** Selector multiplexing the connections, null until bound. */
+    private Selector selector;
+
+    /** Channel accepting the connections, null until bound. */
+    private ServerSocketChannel serverChannel;
+
+    /** Whether the server should keep serving. */
+    private volatile boolean running;
+
+    /**
+     * Starts listening for connections. Connections are not served until
+     * the server is {@link #run() run}.
+     *
+     * @param address local address to listen on, port zero picks any free port
+     * @return the address being listened on
+     * @throws IOException in case of I/O error
+     */
+    public InetSocketAddress bind(InetSocketAddress address) throws IOException {
+        if (selector != null) {
+            throw new IllegalStateException("Server is already bound.");
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(address, BACKLOG);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    /**
+     * Serves the connections until the server is {@link #shutdown() shut down}.
+     * All the connections are closed afterwards.
+     *
+     * @throws IOException in case of I/O error of the listening socket
+     */
+    public void run() throws IOException {
+        if (selector == null) {
+            throw new IllegalStateException("Trying to run server which is not bound.");
+        }
+        executor = new ForkJoinPool(parallelism);
+        try {
+            while (running) {
+                selector.select();
+                completeEvaluations();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Session session = (Session) key.attachment();
+                        try {
+                            session.handle(key);
+                        } catch (IOException ex) {
+                            // the client is gone, others are served further
+                            session.close(key);
+                        } catch (RuntimeException ex) {
+                            // only the failed session ends, others are served further
+                            session.fail(key);
+                        }
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        }
+    }
+
+    /**
+     * Hands the results of the completed evaluations over to their sessions.
+     *
+     * @throws IOException in case of I/O error
+     */
+    private void completeEvaluations() throws IOException {
+        for (Session session = completed.poll(); session != null; session = completed.poll()) {
+            SelectionKey key = session.channel.keyFor(selector);
+            try {
+                session.complete(key);
+            } catch (IOException ex) {
+                // the client is gone, others are served further
+                session.close(key);
+            } catch (RuntimeException ex) {
+                // only the failed session ends, others are served further
+                session.fail(key);
+            }
+        }
+    }
+
+    /**
+     * Stops serving the connections. May be called from any thread.
+     */
+    public void shutdown() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Accepts all the pending connections.
+     *
+     * @throws IOException in case of I/O error
+     */
+    private void accept() throws IOException {
+        for (SocketChannel channel = serverChannel.accept();
+                channel != null;
+                channel = serverChannel.accept()) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.register(selector, SelectionKey.OP_READ, new Session(channel));
+        }
+    }
+
+    /**
+     * Sets the evaluator shared by all the sessions.
+     *
+     * @param eval evaluator
+     */
+    public void setEval(Evaluator eval) {
+        this.eval = eval;
+    }
+
+    /**
+     * Sets the number of threads evaluating computations. All the processors
+     * are used by default.
+     *
+     * @param parallelism number of evaluating threads
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive.");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets the factory of the session computations.
+     *
+     * @param computationFactory computation factory
+     */
+    public void setComputationFactory(ComputationFactory computationFactory) {
+        this.computationFactory = computationFactory;
+    }
+
+    /**
+     * Sets the amount of unsent output, above which the session
+     * stops reading commands from its client.
+     *
+     * @param maxOutput output limit in bytes
+     */
+    public void setMaxOutput(int maxOutput) {
+        if (maxOutput <= 0) {
+            throw new IllegalArgumentException("Output limit must be positive.");
+        }
+        this.maxOutput = maxOutput;
+    }
+
+    /**
+     * Sets the maximum length of a single line. Longer lines are reported
+     * as invalid commands and skipped.
+     *
+     * @param maxLineLength line length limit in bytes
+     */
+    public void setMaxLineLength(int maxLineLength) {
+        if (maxLineLength < INITIAL_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Line length limit must be at least " + INITIAL_BUFFER_SIZE + ".");
+        }
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Sets the metrics to collect while serving the clients.
+     * No metrics are collected by default.
+     *
+     * @param metrics metrics to collect, null to collect none
+     */
+    public void setMetrics(CalculatorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * State of a single client connection.
+     */
+    private class Session {
+
+        /** Connection to the client. */
+        private final SocketChannel channel;
+
+        /** Computation being read from the client. */
+        private final Computation comp = computationFactory.createComputation();
+
+        /** Input not processed yet, in write mode. */
+        private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+        /** Output not sent yet, in write mode. */
+        private ByteBuffer out = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+        /** Index in the input where the search for line end continues. */
+        private int scanFrom;
+
+        /** Whether a line feed following a carriage return is to be skipped. */
+        private boolean skipLineFeed;
+
+        /** Whether the rest of a line too long is being skipped. */
+        private boolean discarding;
+
+        /** Whether processing of the input stopped on the output limit. */
+        private boolean inputPending;
+
+        /** Whether the client has closed its output. */
+        private boolean inputClosed;
+
+        /** Whether the computation is being evaluated by a worker thread. */
+        private boolean evaluating;
+
+        /** Whether the session has failed and is only sending its output. */
+        private boolean failed;
+
+        /** Beginning of the line with the evaluation outcome, set by the worker thread. */
+        private String outcomePrefix;
+
+        /** Rest of the line with the evaluation outcome, set by the worker thread. */
+        private String outcomeText;
+
+        /**
+         * Constructs the session.
+         *
+         * @param channel connection to the client
+         */
+        Session(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Serves the client after the selector has found it ready.
+         *
+         * @param key selection key of the connection
+         * @throws IOException in case of I/O error
+         */
+        void handle(SelectionKey key) throws IOException {
+            if (key.isReadable() && !inputClosed) {
+                inputClosed = channel.read(in) < 0;
+            }
+            serve(key);
+        }
+
+        /**
+         * Sends the outcome of the completed evaluation to the client
+         * and continues with the input received meanwhile.
+         *
+         * @param key selection key of the connection, null when deregistered
+         * @throws IOException in case of I/O error
+         */
+        void complete(SelectionKey key) throws IOException {
+            evaluating = false;
+            if (key == null || !key.isValid()) {
+                // closed meanwhile, the computation is not needed any more
+                comp.clear();
+                return;
+            }
+            if (outcomePrefix == null && !failed) {
+                fail(key);
+                return;
+            }
+            if (!failed) {
+                write(outcomePrefix, outcomeText);
+            }
+            outcomePrefix = null;
+            outcomeText = null;
+            serve(key);
+        }
+
+        /**
+         * Processes the input and sends the output as far as possible,
+         * then sets which readiness of the connection to wait for.
+         *
+         * @param key selection key of the connection
+         * @throws IOException in case of I/O error
+         */
+        private void serve(SelectionKey key) throws IOException {
+            processInput();
+            flush();
+            while (inputPending && !evaluating && out.position() < maxOutput) {
+                processInput();
+                flush();
+            }
+
+            if (inputClosed && !inputPending && !evaluating && out.position() == 0) {
+                close(key);
+                return;
+            }
+
+            int ops = 0;
+            if (!inputClosed && !inputPending && !evaluating && out.position() < maxOutput) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (out.position() > 0) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        /**
+         * Ends the session after an unexpected failure. The rest of the input
+         * is dropped, the client is told about the failure and the connection
+         * is closed once the output is sent.
+         *
+         * @param key selection key of the connection
+         */
+        void fail(SelectionKey key) {
+            failed = true;
+            in.clear();
+            scanFrom = 0;
+            discarding = false;
+            inputPending = false;
+            inputClosed = true;
+            try {
+                write(ERROR_PREFIX, INTERNAL_ERROR);
+                flush();
+                if (out.position() == 0) {
+                    close(key);
+                } else {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+            } catch (IOException | RuntimeException ex) {
+                try {
+                    close(key);
+                } catch (IOException | RuntimeException ignored) {
+                    // the session is gone either way
+                }
+            }
+        }
+
+        /**
+         * Closes the connection.
+         *
+         * @param key selection key of the connection
+         * @throws IOException in case of I/O error
+         */
+        void close(SelectionKey key) throws IOException {
+            key.cancel();
+            channel.close();
+            if (!evaluating) {
+                // releases whatever the computation holds besides memory,
+                // or once the evaluation in flight completes
+                comp.clear();
+            }
+        }
+
+        /**
+         * Processes all the complete lines in the input, until the unsent
+         * output reaches its limit.
+         *
+         * @throws IOException in case of I/O error
+         */
+        private void processInput() throws IOException {
+            byte[] bytes = in.array();
+            int end = in.position();
+            int lineStart = 0;
+            int i = scanFrom;
+            inputPending = false;
+            for (; i < end; i++) {
+                if (evaluating || out.position() >= maxOutput) {
+                    inputPending = true;
+                    break;
+                }
+                byte b = bytes[i];
+                if (skipLineFeed) {
+                    skipLineFeed = false;
+                    if (b == '\n') {
+                        lineStart = i + 1;
+                        continue;
+                    }
+                }
+                if (b == '\n' || b == '\r') {
+                    if (discarding) {
+                        discarding = false;
+                    } else {
+                        processLine(bytes, lineStart, i);
+                    }
+                    skipLineFeed = b == '\r';
+                    lineStart = i + 1;
+                }
+            }
+            inputPending |= evaluating;
+
+            // last line need not be terminated
+            if (inputClosed && !inputPending && lineStart < end) {
+                if (!discarding) {
+                    processLine(bytes, lineStart, end);
+                }
+                lineStart = end;
+                i = end;
+            }
+
+            // keep only the unprocessed input
+            in.limit(end).position(lineStart);
+            in.compact();
+            scanFrom = i - lineStart;
+
+            if (!inputPending && !in.hasRemaining()) {
+                if (!discarding && in.capacity() < maxLineLength) {
+                    in = grow(in, Math.min(2 * in.capacity(), maxLineLength));
+                } else {
+                    // line too long, skip the rest of it
+                    if (!discarding) {
+                        write(ERROR_PREFIX, INVALID_COMMAND);
+                        discarding = true;
+                    }
+                    in.clear();
+                    scanFrom = 0;
+                }
+            }
+        }
+
+        /**
+         * Parses a single line and hands the computation over to a worker
+         * thread once the {@link Operation#APPLY apply command} is received.
+         *
+         * @param bytes input bytes
+         * @param start index of the first byte of the line
+         * @param end index following the last byte of the line
+         */
+        private void processLine(byte[] bytes, int start, int end) {
+            long begin = metrics == null ? 0 : System.nanoTime();
+            Command command;
+            try {
+                command = parser.parse(bytes, start, end);
+            } catch (InvalidCommandSyntaxException ex) {
+                if (metrics != null) {
+                    metrics.recordParse(null, System.nanoTime() - begin);
+                }
+                write(ERROR_PREFIX, INVALID_COMMAND);
+                return;
+            }
+            if (metrics != null) {
+                metrics.recordParse(command.getOperation(), System.nanoTime() - begin);
+            }
+
+            comp.pushCommand(command);
+            if (Operation.APPLY.equals(command.getOperation())) {
+                evaluating = true;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        evaluate();
+                    }
+                });
+            }
+        }
+
+        /**
+         * Evaluates the computation on a worker thread and hands the session
+         * back to the selector thread. The outcome is left null when
+         * the evaluation fails unexpectedly.
+         */
+        private void evaluate() {
+            long begin = metrics == null ? 0 : System.nanoTime();
+            try {
+                BigDecimal result = eval.evaluate(comp);
+                if (metrics != null) {
+                    metrics.recordEvaluation(System.nanoTime() - begin, false);
+                }
+                outcomeText = result.toString();
+                outcomePrefix = RESULT_PREFIX;
+            } catch (ArithmeticException ex) {
+                if (metrics != null) {
+                    metrics.recordEvaluation(System.nanoTime() - begin, true);
+                }
+                comp.clear();
+                outcomeText = ex.getMessage();
+                outcomePrefix = ERROR_PREFIX;
+            } catch (RuntimeException ex) {
+                // the outcome stays null, the selector thread ends the session
+            } finally {
+                completed.add(this);
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Writes a single line to the output buffer.
+         *
+         * @param prefix beginning of the line
+         * @param text rest of the line
+         */
+        private void write(String prefix, String text) {
+            int length = prefix.length() + text.length() + 1;
+            if (out.remaining() < length) {
+                out = grow(out, Math.max(2 * out.capacity(), out.position() + length));
+            }
+            putAscii(prefix);
+            putAscii(text);
+            out.put(EOL);
+        }
+
+        /**
+         * Puts the text into the output buffer as ASCII bytes.
+         *
+         * @param text text to put
+         */
+        private void putAscii(String text) {
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                out.put(c < 0x80 ? (byte) c : (byte) '?');
+            }
+        }
+
+        /**
+         * Sends as much of the output as the connection accepts
+         * without blocking.
+         *
+         * @throws IOException in case of I/O error
+         */
+        private void flush() throws IOException {
+            if (out.position() > 0) {
+                out.flip();
+                channel.write(out);
+                out.compact();
+            }
+        }
+    }
+
+    /**
+     * Copies the buffer contents into a larger buffer.
+     *
+     * @param buffer buffer in write mode
+     * @param capacity new capacity
+     * @return the larger buffer in write mode
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+}
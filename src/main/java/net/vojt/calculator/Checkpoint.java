@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Position of a run over an input file which processing may be resumed
+ * from: the input offset following the last completed apply command,
+ * and the output offset following its result.
+ * <p>
+ * A checkpoint is stored as a single line of text holding the input
+ * offset, the output offset and the input size, which guards against
+ * resuming over a different input.
+ *
+ * @author janvojt
+ */
+public final class Checkpoint {
+
+    /** Suffix of the temporary file the checkpoint is written to first. */
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /** Input offset following the last completed apply command. */
+    private final long inputOffset;
+
+    /** Output offset following the result of the last completed block. */
+    private final long outputOffset;
+
+    /** Size of the input file. */
+    private final long inputSize;
+
+    /**
+     * Constructs the checkpoint.
+     *
+     * @param inputOffset input offset following the last completed apply command
+     * @param outputOffset output offset following the result of the last completed block
+     * @param inputSize size of the input file
+     */
+    public Checkpoint(long inputOffset, long outputOffset, long inputSize) {
+        if (inputOffset < 0 || outputOffset < 0 || inputOffset > inputSize) {
+            throw new IllegalArgumentException("Invalid checkpoint: " + inputOffset + ", " + outputOffset + ", " + inputSize);
+        }
+        this.inputOffset = inputOffset;
+        this.outputOffset = outputOffset;
+        this.inputSize = inputSize;
+    }
+
+    /** @return input offset following the last completed apply command */
+    public long getInputOffset() {
+        return inputOffset;
+    }
+
+    /** @return output offset following the result of the last completed block */
+    public long getOutputOffset() {
+        return outputOffset;
+    }
+
+    /** @return size of the input file */
+    public long getInputSize() {
+        return inputSize;
+    }
+
+    /**
+     * Reads the checkpoint from the file.
+     *
+     * @param file checkpoint file
+     * @return the checkpoint, null if the file does not exist
+     * @throws IOException in case of I/O error or a malformed file
+     */
+    public static Checkpoint read(Path file) throws IOException {
+        String text;
+        try {
+            text = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+        String[] fields = text.split(" ");
+        try {
+            if (fields.length == 3) {
+                return new Checkpoint(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+            }
+        } catch (IllegalArgumentException ex) {
+            // reported below
+        }
+        throw new IOException("Malformed checkpoint file: '" + file + "'");
+    }
+
+    /**
+     * Writes the checkpoint into the file atomically. It is written into
+     * a temporary file next to it first, forced to the storage device
+     * and then moved over the file, so that the file always holds either
+     * the previous or the new checkpoint.
+     *
+     * @param file checkpoint file
+     * @throws IOException in case of I/O error
+     */
+    public void write(Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + TEMPORARY_SUFFIX);
+        ByteBuffer bytes = ByteBuffer.wrap(toString().getBytes(StandardCharsets.US_ASCII));
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public String toString() {
+        return inputOffset + " " + outputOffset + " " + inputSize + "\n";
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes {@link Checkpoint}s of a run periodically. The calculator asks
+ * whether a checkpoint {@link #isDue() is due} after every completed block,
+ * which costs a single clock read, and writes one only once the interval
+ * has passed since the last one. The calculator writes the output of all
+ * the completed blocks before the checkpoint, which forces the output
+ * to the storage device first. The time spent forcing and writing is
+ * counted, and it is spent at most once per interval.
+ *
+ * @author janvojt
+ */
+public class Checkpointer {
+
+    /** Checkpoint file. */
+    private final Path file;
+
+    /** Output file the calculator writes to. */
+    private final FileChannel output;
+
+    /** Size of the input file. */
+    private final long inputSize;
+
+    /** Minimum time between checkpoints in nanoseconds. */
+    private final long intervalNanos;
+
+    /** Time the next checkpoint is due. */
+    private long due;
+
+    /** Number of checkpoints written. */
+    private long count;
+
+    /** Time spent writing the checkpoints in nanoseconds. */
+    private long nanos;
+
+    /** The last checkpoint written, null if none. */
+    private Checkpoint last;
+
+    /**
+     * Constructs the checkpointer.
+     *
+     * @param file checkpoint file
+     * @param output output file the calculator writes to, positioned
+     *      at the end of the output written so far
+     * @param inputSize size of the input file
+     * @param interval minimum time between checkpoints
+     * @param unit unit of the interval
+     */
+    public Checkpointer(Path file, FileChannel output, long inputSize, long interval, TimeUnit unit) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive.");
+        }
+        this.file = file;
+        this.output = output;
+        this.inputSize = inputSize;
+        this.intervalNanos = unit.toNanos(interval);
+        this.due = System.nanoTime() + intervalNanos;
+    }
+
+    /** @return whether the interval has passed since the last checkpoint */
+    public boolean isDue() {
+        return System.nanoTime() - due >= 0;
+    }
+
+    /**
+     * Writes a checkpoint. The output of all the blocks up to the input
+     * offset must be written to the output file already.
+     *
+     * @param inputOffset input offset following the last completed apply command
+     * @throws IOException in case of I/O error
+     */
+    public void checkpoint(long inputOffset) throws IOException {
+        long start = System.nanoTime();
+        output.force(false);
+        Checkpoint checkpoint = new Checkpoint(inputOffset, output.position(), inputSize);
+        checkpoint.write(file);
+        last = checkpoint;
+        count++;
+        long end = System.nanoTime();
+        nanos += end - start;
+        due = end + intervalNanos;
+    }
+
+    /** @return the last checkpoint written, null if none */
+    public Checkpoint getLast() {
+        return last;
+    }
+
+    /** @return number of checkpoints written */
+    public long getCount() {
+        return count;
+    }
+
+    /** @return time spent writing the checkpoints in nanoseconds */
+    public long getNanos() {
+        return nanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Checkpoints: %d written in %.1f ms", count, nanos / 1e6);
+    }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A computation storing its commands in primitive arrays instead of
+ * {@link Command} objects. Every command takes an operation ordinal,
+ * an unscaled long value and an int scale, values which do not fit into
+ * a long are kept in a side table of {@link BigDecimal}s.
+ * <p>
+ * The arrays are reused by the following blocks once the computation is
+ * read or {@link #clear() cleared}, so a long lived computation allocates
+ * only when a block is longer than all the blocks before. Commands are
+ * read by the {@link #advance() cursor} without creating any objects
+ * other than the {@link BigDecimal} values.
+ *
+ * @author janvojt
+ */
+public class ColumnarComputation extends Computation {
+
+    /** Factory of columnar computations. */
+    public static final ComputationFactory FACTORY = new ComputationFactory() {
+        @Override
+        public Computation createComputation() {
+            return new ColumnarComputation();
+        }
+    };
+
+    /** Initial number of commands the arrays hold. */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Scale marking a value kept in the side table at the unscaled index. */
+    private static final int DECIMAL_SCALE = Integer.MIN_VALUE;
+
+    /** All the operations indexed by their ordinal. */
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    /** Operation ordinals. */
+    private byte[] ops = new byte[INITIAL_CAPACITY];
+
+    /** Unscaled values, or side table indexes. */
+    private long[] unscaled = new long[INITIAL_CAPACITY];
+
+    /** Value scales, or {@link #DECIMAL_SCALE}. */
+    private int[] scales = new int[INITIAL_CAPACITY];
+
+    /** Side table of values not fitting into a long. */
+    private BigDecimal[] decimals = new BigDecimal[INITIAL_CAPACITY];
+
+    /** Number of values in the side table. */
+    private int decimalCount;
+
+    /** Index of the next command to read. */
+    private int head;
+
+    /** Index following the last command. */
+    private int tail;
+
+    /** Index of the current command. */
+    private int current = -1;
+
+    /** Facts about the commands pushed since the arrays were last reset. */
+    private final ComputationFacts facts = new ComputationFacts();
+
+    @Override
+    public void pushCommand(Command command) {
+        if (command.isLongValue()) {
+            push(command.getOperation(), command.getLongValue(), 0);
+        } else {
+            push(command.getOperation(), command.getValue());
+        }
+    }
+
+    @Override
+    public void push(Operation operation, long value, int scale) {
+        if (Operation.APPLY.equals(operation)) {
+            setInitializer(BigDecimal.valueOf(value, scale));
+        } else if (scale == DECIMAL_SCALE) {
+            push(operation, BigDecimal.valueOf(value, scale));
+        } else {
+            int index = claim();
+            ops[index] = (byte) operation.ordinal();
+            unscaled[index] = value;
+            scales[index] = scale;
+            facts.record(operation, value, scale);
+        }
+    }
+
+    @Override
+    public void push(Operation operation, BigDecimal value) {
+        if (Operation.APPLY.equals(operation)) {
+            setInitializer(value);
+        } else if (value.precision() <= LongCommand.MAX_DIGITS && value.scale() != DECIMAL_SCALE) {
+            push(operation, value.unscaledValue().longValue(), value.scale());
+        } else {
+            if (decimalCount == decimals.length) {
+                decimals = Arrays.copyOf(decimals, 2 * decimalCount);
+            }
+            int index = claim();
+            ops[index] = (byte) operation.ordinal();
+            unscaled[index] = decimalCount;
+            scales[index] = DECIMAL_SCALE;
+            decimals[decimalCount++] = value;
+            facts.record(operation, value);
+        }
+    }
+
+    @Override
+    public Command popCommand() {
+        if (!advance()) {
+            throw new NoSuchElementException();
+        }
+        Operation operation = currentOperation();
+        return isCurrentLong()
+                ? new LongCommand(operation, currentLong())
+                : new Command(operation, currentValue());
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return head == tail;
+    }
+
+    @Override
+    public void clear() {
+        head = 0;
+        tail = 0;
+        current = -1;
+        Arrays.fill(decimals, 0, decimalCount, null);
+        decimalCount = 0;
+        facts.reset();
+    }
+
+    @Override
+    public void skip(long n) {
+        if (n > tail - head) {
+            throw new NoSuchElementException();
+        }
+        head += (int) n;
+    }
+
+    @Override
+    ComputationFacts getFacts() {
+        return head == 0 && tail > 0 && facts.getCount() == tail ? facts : null;
+    }
+
+    @Override
+    public boolean advance() {
+        if (head == tail) {
+            return false;
+        }
+        current = head++;
+        return true;
+    }
+
+    @Override
+    public Operation currentOperation() {
+        return OPERATIONS[ops[current]];
+    }
+
+    @Override
+    public BigDecimal currentValue() {
+        int scale = scales[current];
+        return scale == DECIMAL_SCALE
+                ? decimals[(int) unscaled[current]]
+                : BigDecimal.valueOf(unscaled[current], scale);
+    }
+
+    @Override
+    public boolean isCurrentLong() {
+        return scales[current] == 0;
+    }
+
+    @Override
+    public long currentLong() {
+        return unscaled[current];
+    }
+
+    /**
+     * Finds the index for a new command, starting from the beginning
+     * of the arrays when all the previous commands were read.
+     *
+     * @return index to store the command at
+     */
+    private int claim() {
+        if (head == tail && head > 0) {
+            clear();
+        }
+        if (tail == ops.length) {
+            int capacity = 2 * tail;
+            ops = Arrays.copyOf(ops, capacity);
+            unscaled = Arrays.copyOf(unscaled, capacity);
+            scales = Arrays.copyOf(scales, capacity);
+        }
+        return tail++;
+    }
+
+}
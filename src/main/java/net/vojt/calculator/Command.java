@@ -54,4 +54,35 @@ public class Command {
         return value;
     }
     
+    /**
+     * Checks whether the value is an integer which fits into a long,
+     * so that it can be operated with as a primitive.
+     * 
+     * @return whether the value is available as a long
+     */
+    public boolean isLongValue() {
+        return isLong(value);
+    }
+    
+    /**
+     * Returns the value as a primitive. The result is valid only when
+     * {@link #isLongValue()} holds.
+     * 
+     * @return operation argument as a long
+     */
+    public long getLongValue() {
+        return value.longValue();
+    }
+    
+    /**
+     * Checks whether the decimal is an integer of scale zero, which surely
+     * fits into a long.
+     * 
+     * @param value decimal to check
+     * @return whether the decimal may be converted to a long
+     */
+    static boolean isLong(BigDecimal value) {
+        return value.scale() == 0 && value.precision() <= LongCommand.MAX_DIGITS;
+    }
+    
 }
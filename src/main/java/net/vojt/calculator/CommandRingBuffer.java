@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Preallocated ring of command slots passing commands from a single
+ * producer thread to a single consumer thread without allocating
+ * a {@link Command} for each of them.
+ * <p>
+ * A slot holds the operation ordinal and the value in place, either
+ * as an unscaled long with its scale, or as a {@link BigDecimal} for
+ * values which do not fit. The producer {@link #next(int) claims} slots
+ * in batches, fills them and {@link #publish(long) publishes} them
+ * up to a sequence. The consumer {@link #waitFor(long) waits} for
+ * published slots, reads them and {@link #release(long) releases} them
+ * in batches as well. The sequences, the producer state and the consumer
+ * state are each padded against false sharing.
+ *
+ * @author janvojt
+ */
+final class CommandRingBuffer {
+
+    /** Operation code of a line which could not be parsed. */
+    static final byte INVALID = -1;
+
+    /** All the operations indexed by their ordinal. */
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    /** Operation codes. */
+    private final byte[] ops;
+
+    /** Unscaled values. */
+    private final long[] unscaled;
+
+    /** Value scales. */
+    private final int[] scales;
+
+    /** Values not fitting into a long, null otherwise. */
+    private final BigDecimal[] decimals;
+
+    /** Mask giving the slot index of a sequence. */
+    private final int mask;
+
+    /** Way of waiting for the other thread. */
+    private final WaitStrategy waitStrategy;
+
+    /** Sequence following the last published slot. */
+    private final Sequence tail = new Sequence();
+
+    /** Sequence following the last released slot. */
+    private final Sequence head = new Sequence();
+
+    /** Whether the producer has published its last slot. */
+    private volatile boolean closed;
+
+    /** State written by the producer only. */
+    private final ProducerCursor producer = new ProducerCursor();
+
+    /** State written by the consumer only. */
+    private final ConsumerCursor consumer = new ConsumerCursor();
+
+    /**
+     * Constructs the ring.
+     *
+     * @param capacity minimum number of slots, rounded up to a power of two
+     * @param waitStrategy way of waiting for the other thread
+     */
+    CommandRingBuffer(int capacity, WaitStrategy waitStrategy) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid ring capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.ops = new byte[size];
+        this.unscaled = new long[size];
+        this.scales = new int[size];
+        this.decimals = new BigDecimal[size];
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /** @return number of slots */
+    int capacity() {
+        return ops.length;
+    }
+
+    /**
+     * Claims the given number of consecutive slots, waiting until
+     * they are released by the consumer. Called by the producer only.
+     *
+     * @param n number of slots to claim, at most the capacity
+     * @return sequence of the first claimed slot
+     * @throws InterruptedException if interrupted while waiting
+     */
+    long next(int n) throws InterruptedException {
+        if (n <= 0 || n > ops.length) {
+            throw new IllegalArgumentException("Cannot claim " + n + " slots of " + ops.length + ".");
+        }
+        ProducerCursor p = producer;
+        long first = p.claimed;
+        long wrap = first + n - ops.length;
+        if (wrap > p.cachedHead) {
+            for (int rounds = 0; wrap > (p.cachedHead = head.get()); rounds++) {
+                idle(rounds);
+            }
+        }
+        p.claimed = first + n;
+        return first;
+    }
+
+    /**
+     * Fills a claimed slot with a value fitting into a long.
+     *
+     * @param sequence claimed sequence
+     * @param op operation ordinal or {@link #INVALID}
+     * @param value unscaled value
+     * @param scale value scale
+     */
+    void set(long sequence, byte op, long value, int scale) {
+        int index = (int) sequence & mask;
+        ops[index] = op;
+        unscaled[index] = value;
+        scales[index] = scale;
+    }
+
+    /**
+     * Fills a claimed slot with any value.
+     *
+     * @param sequence claimed sequence
+     * @param op operation ordinal or {@link #INVALID}
+     * @param value command value
+     */
+    void set(long sequence, byte op, BigDecimal value) {
+        int index = (int) sequence & mask;
+        ops[index] = op;
+        decimals[index] = value;
+    }
+
+    /**
+     * Fills a claimed slot with the command.
+     *
+     * @param sequence claimed sequence
+     * @param command command to store
+     */
+    void set(long sequence, Command command) {
+        byte op = (byte) command.getOperation().ordinal();
+        if (command.isLongValue()) {
+            set(sequence, op, command.getLongValue(), 0);
+        } else {
+            set(sequence, op, command.getValue());
+        }
+    }
+
+    /**
+     * Makes the slots up to the given sequence visible to the consumer.
+     * Called by the producer only.
+     *
+     * @param sequence last sequence to publish
+     */
+    void publish(long sequence) {
+        tail.lazySet(sequence + 1);
+    }
+
+    /**
+     * Marks that no more slots will be published.
+     * Called by the producer only.
+     */
+    void close() {
+        closed = true;
+    }
+
+    /**
+     * Waits until the slot with the given sequence is published.
+     * Called by the consumer only.
+     *
+     * @param sequence sequence to wait for
+     * @return last published sequence, -1 when the ring is closed
+     *      and the sequence will never be published
+     * @throws InterruptedException if interrupted while waiting
+     */
+    long waitFor(long sequence) throws InterruptedException {
+        ConsumerCursor c = consumer;
+        if (sequence >= c.cachedTail) {
+            for (int rounds = 0; sequence >= (c.cachedTail = tail.get()); rounds++) {
+                if (closed) {
+                    // slots published before closing are visible now
+                    c.cachedTail = tail.get();
+                    if (sequence >= c.cachedTail) {
+                        return -1;
+                    }
+                    break;
+                }
+                idle(rounds);
+            }
+        }
+
+        c.recordDepth(c.cachedTail - sequence);
+        return c.cachedTail - 1;
+    }
+
+    /**
+     * Checks whether the slot with the given sequence is published
+     * without waiting. Called by the consumer only.
+     *
+     * @param sequence sequence to check
+     * @return whether the slot can be read
+     */
+    boolean isAvailable(long sequence) {
+        ConsumerCursor c = consumer;
+        return sequence < c.cachedTail || sequence < (c.cachedTail = tail.get());
+    }
+
+    /**
+     * Returns the operation code of a published slot.
+     *
+     * @param sequence published sequence
+     * @return operation ordinal or {@link #INVALID}
+     */
+    byte op(long sequence) {
+        return ops[(int) sequence & mask];
+    }
+
+    /**
+     * Returns the operation of a published slot.
+     *
+     * @param sequence published sequence
+     * @return the operation, null for an invalid line
+     */
+    Operation operation(long sequence) {
+        byte op = ops[(int) sequence & mask];
+        return op == INVALID ? null : OPERATIONS[op];
+    }
+
+    /**
+     * Returns the value of a published slot.
+     *
+     * @param sequence published sequence
+     * @return the value
+     */
+    BigDecimal value(long sequence) {
+        int index = (int) sequence & mask;
+        BigDecimal decimal = decimals[index];
+        return decimal != null ? decimal : BigDecimal.valueOf(unscaled[index], scales[index]);
+    }
+
+    /**
+     * Returns the command of a published slot.
+     *
+     * @param sequence published sequence
+     * @return the command, null for an invalid line
+     */
+    Command command(long sequence) {
+        int index = (int) sequence & mask;
+        byte op = ops[index];
+        if (op == INVALID) {
+            return null;
+        }
+        BigDecimal decimal = decimals[index];
+        if (decimal != null) {
+            return new Command(OPERATIONS[op], decimal);
+        }
+        if (scales[index] == 0) {
+            return new LongCommand(OPERATIONS[op], unscaled[index]);
+        }
+        return new Command(OPERATIONS[op], BigDecimal.valueOf(unscaled[index], scales[index]));
+    }
+
+    /**
+     * Pushes the command of a published slot to the computation without
+     * creating a {@link Command} for it.
+     *
+     * @param sequence published sequence of a valid line
+     * @param computation computation to push the command to
+     */
+    void pushTo(long sequence, Computation computation) {
+        int index = (int) sequence & mask;
+        BigDecimal decimal = decimals[index];
+        if (decimal != null) {
+            computation.push(OPERATIONS[ops[index]], decimal);
+        } else {
+            computation.push(OPERATIONS[ops[index]], unscaled[index], scales[index]);
+        }
+    }
+
+    /**
+     * Hands the slots up to the given sequence back to the producer.
+     * Called by the consumer only.
+     *
+     * @param sequence last sequence to release
+     */
+    void release(long sequence) {
+        for (long s = head.get(); s <= sequence; s++) {
+            decimals[(int) s & mask] = null;
+        }
+        head.lazySet(sequence + 1);
+    }
+
+    /** @return average number of slots available when the consumer waited */
+    double getAverageDepth() {
+        return consumer.getAverageDepth();
+    }
+
+    /** @return largest number of slots available when the consumer waited */
+    long getMaxDepth() {
+        return consumer.maxDepth;
+    }
+
+    /**
+     * Waits for the other thread in a single idle round.
+     *
+     * @param rounds number of idle rounds so far
+     * @throws InterruptedException if interrupted
+     */
+    private void idle(int rounds) throws InterruptedException {
+        waitStrategy.idle(rounds);
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    /**
+     * Padding preceding the sequence value.
+     */
+    abstract static class LeftPadding {
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    /**
+     * Sequence value.
+     */
+    abstract static class Value extends LeftPadding {
+        volatile long value;
+    }
+
+    /**
+     * Sequence padded on both sides, so that it does not share a cache line
+     * with other frequently written data.
+     */
+    static final class Sequence extends Value {
+
+        /** Updater for lazy writes of the value. */
+        private static final AtomicLongFieldUpdater<Value> UPDATER
+                = AtomicLongFieldUpdater.newUpdater(Value.class, "value");
+
+        long p9, p10, p11, p12, p13, p14, p15;
+
+        /** @return the current value */
+        long get() {
+            return value;
+        }
+
+        /** @param newValue value to write without a full fence */
+        void lazySet(long newValue) {
+            UPDATER.lazySet(this, newValue);
+        }
+    }
+
+    /**
+     * Producer state.
+     */
+    abstract static class ProducerFields extends LeftPadding {
+
+        /** Sequence of the next slot to claim. */
+        long claimed;
+
+        /** Last head seen by the producer. */
+        long cachedHead;
+    }
+
+    /**
+     * Producer state padded on both sides, so that the consumer writing
+     * its own state does not invalidate it.
+     */
+    static final class ProducerCursor extends ProducerFields {
+        long p9, p10, p11, p12, p13, p14, p15;
+    }
+
+    /**
+     * Consumer state.
+     */
+    abstract static class ConsumerFields extends LeftPadding {
+
+        /** Last tail seen by the consumer. */
+        long cachedTail;
+
+        /** Number of depths recorded. */
+        long samples;
+
+        /** Sum of the depths recorded. */
+        long depthSum;
+
+        /** Largest depth recorded. */
+        long maxDepth;
+    }
+
+    /**
+     * Consumer state padded on both sides, so that the producer writing
+     * its own state does not invalidate it.
+     */
+    static final class ConsumerCursor extends ConsumerFields {
+        long p9, p10, p11, p12, p13, p14, p15;
+
+        /**
+         * Records the number of items available to the consumer.
+         *
+         * @param depth number of items available
+         */
+        void recordDepth(long depth) {
+            samples++;
+            depthSum += depth;
+            if (depth > maxDepth) {
+                maxDepth = depth;
+            }
+        }
+
+        /** @return average of the depths recorded */
+        double getAverageDepth() {
+            return samples == 0 ? 0 : (double) depthSum / samples;
+        }
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Evaluator compiling the commands of a computation into a plan, which
+ * is cached and reused whenever the same commands come again, no matter
+ * the value applied.
+ * <p>
+ * A plan is the flat array of commands left after folding every run
+ * of additions, subtractions and multiplications into a single
+ * multiplication and addition, the same way {@link FoldingComputation}
+ * does. Plans are kept in a least recently used cache of bounded size.
+ * A computation is compiled only when its commands come for the second
+ * time, the first time they are evaluated directly and only their hash
+ * is remembered, so that input without repeats costs about the same
+ * as plain evaluation.
+ * Computations longer than the plan length limit are evaluated directly,
+ * so that the cache cannot hold arbitrarily large plans. The same goes
+ * for computations which have {@link SpillingComputation spilled}, and for
+ * all the computations when rounding to a precision, as folding is exact.
+ * <p>
+ * The evaluator is thread-safe.
+ *
+ * @author janvojt
+ */
+public class CompilingEvaluator extends EvaluatorImpl {
+
+    /** Default number of cached plans. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /** Default maximum number of commands of a cached computation. */
+    public static final int DEFAULT_MAX_LENGTH = 4096;
+
+    /** Compiled plans by the commands they were compiled from. */
+    private final Map<ComputationKey, Command[]> plans;
+
+    /** Hashes of the commands seen once, indexed by their lowest bits. */
+    private final int[] seen;
+
+    /** Maximum number of commands of a cached computation. */
+    private final int maxLength;
+
+    /** Number of computations evaluated with a cached plan. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of computations evaluated without a cached plan. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Constructs an evaluator with the default cache size.
+     */
+    public CompilingEvaluator() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * Constructs an evaluator.
+     *
+     * @param capacity maximum number of cached plans
+     * @param maxLength maximum number of commands of a cached computation
+     */
+    public CompilingEvaluator(final int capacity, int maxLength) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+        }
+        this.maxLength = maxLength;
+        this.seen = new int[Integer.highestOneBit(Math.min(capacity, 1 << 26)) << 2];
+        this.plans = new LinkedHashMap<ComputationKey, Command[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ComputationKey, Command[]> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    @Override
+    protected BigDecimal evaluate(BigDecimal result, Computation computation) {
+        if (SpillingComputation.isSpilled(computation)) {
+            // far too long to cache, do not read it all into memory
+            return super.evaluate(result, computation);
+        }
+        if (!isExact()) {
+            // folding would skip the rounding of intermediate results
+            return super.evaluate(result, computation);
+        }
+        ComputationKey key = ComputationKey.drain(computation);
+        if (key.length() > maxLength) {
+            for (int i = 0; i < key.length(); i++) {
+                result = apply(result, key.get(i));
+            }
+            return result;
+        }
+
+        Command[] plan;
+        boolean repeated = false;
+        synchronized (plans) {
+            plan = plans.get(key);
+            if (plan == null) {
+                repeated = admit(key.hashCode());
+            }
+        }
+        if (plan == null) {
+            misses.incrementAndGet();
+            if (!repeated) {
+                // seen for the first time, not worth compiling yet
+                for (int i = 0; i < key.length(); i++) {
+                    result = apply(result, key.get(i));
+                }
+                return result;
+            }
+            plan = compile(key);
+            synchronized (plans) {
+                plans.put(key, plan);
+            }
+        } else {
+            hits.incrementAndGet();
+        }
+
+        for (Command command : plan) {
+            result = apply(result, command);
+        }
+        return result;
+    }
+
+    /**
+     * Remembers the hash of commands without a cached plan. Hashes of
+     * different commands may replace each other, so a repeat is sometimes
+     * missed and different commands are sometimes taken for a repeat,
+     * costing one compilation either way. Called holding the cache lock.
+     *
+     * @param hash hash of the commands
+     * @return whether the hash has been seen before
+     */
+    private boolean admit(int hash) {
+        int index = (hash ^ (hash >>> 16)) & (seen.length - 1);
+        if (seen[index] == hash) {
+            return true;
+        }
+        seen[index] = hash;
+        return false;
+    }
+
+    /**
+     * Compiles the commands into a plan.
+     *
+     * @param key commands to compile
+     * @return folded commands in the order of evaluation
+     */
+    private static Command[] compile(ComputationKey key) {
+        Computation folded = new FoldingComputation();
+        for (int i = 0; i < key.length(); i++) {
+            folded.pushCommand(key.get(i));
+        }
+        return ComputationKey.drain(folded).toArray();
+    }
+
+    /** @return number of computations evaluated with a cached plan */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** @return number of computations evaluated without a cached plan */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** @return number of cached plans */
+    public int getCacheSize() {
+        synchronized (plans) {
+            return plans.size();
+        }
+    }
+
+}
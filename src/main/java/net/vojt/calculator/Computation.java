@@ -32,6 +32,14 @@ import java.util.NoSuchElementException;
  */
 public class Computation {
     
+    /** Factory of plain computations. */
+    public static final ComputationFactory FACTORY = new ComputationFactory() {
+        @Override
+        public Computation createComputation() {
+            return new Computation();
+        }
+    };
+    
     /**
      * Queue for caching computational commands.
      * A queue is needed, because we cannot start the computation until we hit
@@ -44,6 +52,16 @@ public class Computation {
      */
     private BigDecimal initializer;
     
+    /**
+     * Command dequeued by the last {@link #advance()}.
+     */
+    private Command current;
+    
+    /**
+     * Facts about the commands pushed since the queue was last empty.
+     */
+    private final ComputationFacts facts = new ComputationFacts();
+    
     /**
      * Pushes a single {@link Command} onto the command queue.
      * In case APPLY command is passed as an argument, situation
@@ -56,10 +74,42 @@ public class Computation {
         if (Operation.APPLY.equals(command.getOperation())) {
             setInitializer(command.getValue());
         } else {
+            if (commands.isEmpty()) {
+                facts.reset();
+            }
+            if (command.isLongValue()) {
+                facts.record(command.getOperation(), command.getLongValue(), 0);
+            } else {
+                facts.record(command.getOperation(), command.getValue());
+            }
             commands.push(command);
         }
     }
     
+    /**
+     * Pushes a command with a value given by its unscaled value and scale.
+     * Subclasses may store the value without creating any objects.
+     * 
+     * @param operation command operation
+     * @param unscaled unscaled value
+     * @param scale value scale
+     */
+    public void push(Operation operation, long unscaled, int scale) {
+        pushCommand(scale == 0
+                ? new LongCommand(operation, unscaled)
+                : new Command(operation, BigDecimal.valueOf(unscaled, scale)));
+    }
+    
+    /**
+     * Pushes a command given by its operation and value.
+     * 
+     * @param operation command operation
+     * @param value command value
+     */
+    public void push(Operation operation, BigDecimal value) {
+        pushCommand(new Command(operation, value));
+    }
+    
     /**
      * Dequeues a single command obeying the FIFO principle.
      * 
@@ -79,6 +129,64 @@ public class Computation {
         return commands.isEmpty();
     }
 
+    /**
+     * Dequeues and drops the given number of commands.
+     * 
+     * @param n number of commands to drop
+     */
+    public void skip(long n) {
+        for (long i = 0; i < n; i++) {
+            popCommand();
+        }
+    }
+    
+    /**
+     * Returns the facts about the leading commands, which evaluators
+     * may use to avoid needless work. The facts are known only until
+     * the first command is dequeued.
+     * 
+     * @return the facts, null when not known
+     */
+    ComputationFacts getFacts() {
+        return !isEmpty() && commands.size() == facts.getCount() ? facts : null;
+    }
+
+    /**
+     * Dequeues a single command obeying the FIFO principle and makes it
+     * the current command. Unlike {@link #popCommand()} it lets subclasses
+     * hand out the current command without creating a {@link Command}.
+     * 
+     * @return whether there was a command to dequeue
+     */
+    public boolean advance() {
+        if (isEmpty()) {
+            current = null;
+            return false;
+        }
+        current = popCommand();
+        return true;
+    }
+    
+    /** @return operation of the current command */
+    public Operation currentOperation() {
+        return current.getOperation();
+    }
+    
+    /** @return value of the current command */
+    public BigDecimal currentValue() {
+        return current.getValue();
+    }
+    
+    /** @return whether the current command value is an integer kept as long */
+    public boolean isCurrentLong() {
+        return current.isLongValue();
+    }
+    
+    /** @return value of the current command as long, if {@link #isCurrentLong()} */
+    public long currentLong() {
+        return current.getLongValue();
+    }
+
     /** @return value initializing the computation sequence */
     public BigDecimal getInitializer() {
         return initializer;
@@ -92,6 +200,7 @@ public class Computation {
     /** Clears the command history. */
     public void clear() {
         commands.clear();
+        facts.reset();
     }
     
 }
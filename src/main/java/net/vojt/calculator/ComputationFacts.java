@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Facts about the leading commands of a computation, collected cheaply
+ * as the commands are pushed, which let an exact evaluation fail fast on
+ * a division by zero or skip the commands whose result is zeroed by
+ * a multiplication by zero.
+ * <p>
+ * Only the commands before the first division are taken into account,
+ * as exact division may fail on its own. Every other command is an affine
+ * map of the intermediate result, so their composition is kept in two
+ * forms. One is the composed map modulo a prime, telling for sure that
+ * an intermediate result is not zero, when its image is not. The other is
+ * the map of the result scale, {@code s -> max(s + shift, floor)}, as
+ * exact addition takes the larger scale and multiplication sums them.
+ * The absolute scales are summed as well, so that a scale overflow which
+ * would fail the evaluation can be ruled out.
+ *
+ * @author janvojt
+ */
+final class ComputationFacts {
+
+    /** Prime modulus of the composed map, any product of two residues fits a long. */
+    private static final long P = Integer.MAX_VALUE;
+
+    /** The modulus as a big integer. */
+    private static final BigInteger BIG_P = BigInteger.valueOf(P);
+
+    /** Largest number of scale digits in the tables of powers. */
+    private static final int TABLE_SIZE = 19;
+
+    /** Powers of ten modulo the prime. */
+    private static final long[] POWERS = new long[TABLE_SIZE];
+
+    /** Powers of the inverse of ten modulo the prime. */
+    private static final long[] INVERSE_POWERS = new long[TABLE_SIZE];
+
+    /** Scale floor of a map with no addition, below any real scale. */
+    private static final long NO_FLOOR = Long.MIN_VALUE;
+
+    static {
+        long inverse = BigInteger.TEN.modInverse(BIG_P).longValue();
+        POWERS[0] = 1;
+        INVERSE_POWERS[0] = 1;
+        for (int i = 1; i < TABLE_SIZE; i++) {
+            POWERS[i] = POWERS[i - 1] * 10 % P;
+            INVERSE_POWERS[i] = INVERSE_POWERS[i - 1] * inverse % P;
+        }
+    }
+
+    /** Number of commands recorded. */
+    private long count;
+
+    /** Whether a division was recorded, which ends the collection. */
+    private boolean divided;
+
+    /** Whether the first division was a division by zero. */
+    private boolean divisionByZero;
+
+    /** Multiplier of the composed map modulo the prime. */
+    private long factor = 1;
+
+    /** Addend of the composed map modulo the prime. */
+    private long addend;
+
+    /** Shift of the scale map. */
+    private long shift;
+
+    /** Floor of the scale map. */
+    private long floor = NO_FLOOR;
+
+    /** Sum of the absolute scales. */
+    private long scaleSum;
+
+    /** Number of leading commands ending with the last multiplication by zero. */
+    private long zeroPrefix;
+
+    /** Shift of the scale map of the zero prefix. */
+    private long zeroShift;
+
+    /** Floor of the scale map of the zero prefix. */
+    private long zeroFloor;
+
+    /** Sum of the absolute scales of the zero prefix. */
+    private long zeroScaleSum;
+
+    /**
+     * Forgets all the recorded commands.
+     */
+    void reset() {
+        count = 0;
+        divided = false;
+        divisionByZero = false;
+        factor = 1;
+        addend = 0;
+        shift = 0;
+        floor = NO_FLOOR;
+        scaleSum = 0;
+        zeroPrefix = 0;
+    }
+
+    /**
+     * Records a command with its value given as a decimal.
+     *
+     * @param operation command operation
+     * @param value command value
+     */
+    void record(Operation operation, BigDecimal value) {
+        if (divided) {
+            count++;
+        } else if (value.precision() <= LongCommand.MAX_DIGITS) {
+            record(operation, value.unscaledValue().longValue(), value.scale());
+        } else {
+            record(operation, value.unscaledValue().mod(BIG_P).longValue(), value.scale(), value.signum() == 0);
+        }
+    }
+
+    /**
+     * Records a command with its value given by the unscaled value and scale.
+     *
+     * @param operation command operation
+     * @param unscaled unscaled value
+     * @param scale value scale
+     */
+    void record(Operation operation, long unscaled, int scale) {
+        if (divided) {
+            count++;
+        } else {
+            record(operation, Math.floorMod(unscaled, P), scale, unscaled == 0);
+        }
+    }
+
+    /** @return number of commands recorded */
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * Tells whether the evaluation is sure to fail on a division by zero,
+     * as the first division divides by zero and the intermediate result
+     * before it is not zero.
+     *
+     * @param initializer value the computation is applied to
+     * @return whether the evaluation fails on a division by a zero
+     */
+    boolean isDivisionByZero(BigDecimal initializer) {
+        if (!divisionByZero || !fitsScale(initializer, scaleSum)) {
+            return false;
+        }
+        long x = residue(initializer);
+        return (multiply(factor, x) + addend) % P != 0;
+    }
+
+    /** @return number of leading commands which may be skipped as their result is zero */
+    long getZeroPrefix() {
+        return zeroPrefix;
+    }
+
+    /**
+     * Computes the intermediate result after the {@link #getZeroPrefix()
+     * zero prefix}, which is zero of the scale the exact evaluation would
+     * give.
+     *
+     * @param initializer value the computation is applied to
+     * @return the result, null when it cannot be told cheaply
+     */
+    BigDecimal getZeroPrefixResult(BigDecimal initializer) {
+        if (zeroPrefix == 0 || !fitsScale(initializer, zeroScaleSum)) {
+            return null;
+        }
+        long scale = Math.max(initializer.scale() + zeroShift, zeroFloor);
+        return BigDecimal.valueOf(0, (int) scale);
+    }
+
+    /**
+     * Records a command before any division.
+     *
+     * @param operation command operation
+     * @param residue value modulo the prime, disregarding the scale
+     * @param scale value scale
+     * @param zero whether the value is zero
+     */
+    private void record(Operation operation, long residue, int scale, boolean zero) {
+        count++;
+        if (Operation.DIVIDE.equals(operation)) {
+            divided = true;
+            divisionByZero = zero;
+            return;
+        }
+
+        long value = multiply(residue, scale >= 0 ? inversePower(scale) : power(-(long) scale));
+        scaleSum = Math.min(scaleSum + Math.abs((long) scale), Integer.MAX_VALUE + 1L);
+        switch (operation) {
+            case ADD :
+                addend = (addend + value) % P;
+                floor = Math.max(floor, scale);
+                break;
+            case SUBTRACT :
+                addend = (addend + P - value) % P;
+                floor = Math.max(floor, scale);
+                break;
+            case MULTIPLY :
+                factor = multiply(factor, value);
+                addend = multiply(addend, value);
+                shift += scale;
+                floor = floor == NO_FLOOR ? NO_FLOOR : floor + scale;
+                if (zero) {
+                    zeroPrefix = count;
+                    zeroShift = shift;
+                    zeroFloor = floor;
+                    zeroScaleSum = scaleSum;
+                }
+                break;
+            default :
+                break;
+        }
+    }
+
+    /**
+     * Checks that no intermediate scale can overflow, as the evaluation
+     * would fail then.
+     *
+     * @param initializer value the computation is applied to
+     * @param sum sum of the absolute scales of the commands
+     * @return whether all the intermediate scales fit into an int
+     */
+    private static boolean fitsScale(BigDecimal initializer, long sum) {
+        return Math.abs((long) initializer.scale()) + sum <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Computes the image of a decimal modulo the prime.
+     *
+     * @param value the decimal
+     * @return its residue
+     */
+    private static long residue(BigDecimal value) {
+        long unscaled = value.precision() <= LongCommand.MAX_DIGITS
+                ? Math.floorMod(value.unscaledValue().longValue(), P)
+                : value.unscaledValue().mod(BIG_P).longValue();
+        int scale = value.scale();
+        return multiply(unscaled, scale >= 0 ? inversePower(scale) : power(-(long) scale));
+    }
+
+    /**
+     * Multiplies two residues.
+     *
+     * @param x residue
+     * @param y residue
+     * @return their product modulo the prime
+     */
+    private static long multiply(long x, long y) {
+        return x * y % P;
+    }
+
+    /**
+     * Computes a power of ten modulo the prime.
+     *
+     * @param exponent non-negative exponent
+     * @return the power
+     */
+    private static long power(long exponent) {
+        return exponent < TABLE_SIZE ? POWERS[(int) exponent] : power(10, exponent);
+    }
+
+    /**
+     * Computes a power of the inverse of ten modulo the prime.
+     *
+     * @param exponent non-negative exponent
+     * @return the power
+     */
+    private static long inversePower(long exponent) {
+        return exponent < TABLE_SIZE ? INVERSE_POWERS[(int) exponent] : power(INVERSE_POWERS[1], exponent);
+    }
+
+    /**
+     * Computes a power modulo the prime by repeated squaring.
+     *
+     * @param base residue
+     * @param exponent non-negative exponent
+     * @return the power
+     */
+    private static long power(long base, long exponent) {
+        long result = 1;
+        for (long b = base, e = exponent; e > 0; e >>= 1) {
+            if ((e & 1) != 0) {
+                result = multiply(result, b);
+            }
+            b = multiply(b, b);
+        }
+        return result;
+    }
+
+}
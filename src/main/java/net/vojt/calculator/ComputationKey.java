@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.util.Arrays;
+
+/**
+ * Immutable fingerprint of the commands in a computation, usable as a key
+ * in hash maps. Two keys are equal when they hold the same operations with
+ * equal values, including the value scale.
+ *
+ * @author janvojt
+ */
+final class ComputationKey {
+
+    /** Commands in the order of evaluation. */
+    private final Command[] commands;
+
+    /** Precomputed hash code. */
+    private final int hash;
+
+    /**
+     * Constructs the key.
+     *
+     * @param commands commands in the order of evaluation
+     */
+    private ComputationKey(Command[] commands) {
+        this.commands = commands;
+        int h = 1;
+        for (Command command : commands) {
+            h = 31 * h + command.getOperation().hashCode();
+            h = 31 * h + command.getValue().hashCode();
+        }
+        this.hash = h;
+    }
+
+    /**
+     * Reads all the commands from the computation into a new key.
+     * The computation is left empty, except for its initializer.
+     *
+     * @param computation computation to read
+     * @return key of the computation commands
+     */
+    static ComputationKey drain(Computation computation) {
+        Command[] commands = new Command[16];
+        int length = 0;
+        while (!computation.isEmpty()) {
+            if (length == commands.length) {
+                commands = Arrays.copyOf(commands, length * 2);
+            }
+            commands[length++] = computation.popCommand();
+        }
+        return new ComputationKey(Arrays.copyOf(commands, length));
+    }
+
+    /** @return number of commands */
+    int length() {
+        return commands.length;
+    }
+
+    /**
+     * Returns a command of the key.
+     *
+     * @param i index of the command in the order of evaluation
+     * @return the command
+     */
+    Command get(int i) {
+        return commands[i];
+    }
+
+    /** @return copy of the commands in the order of evaluation */
+    Command[] toArray() {
+        return commands.clone();
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ComputationKey)) {
+            return false;
+        }
+        ComputationKey other = (ComputationKey) obj;
+        if (hash != other.hash || commands.length != other.commands.length) {
+            return false;
+        }
+        for (int i = 0; i < commands.length; i++) {
+            Command command = commands[i];
+            Command otherCommand = other.commands[i];
+            if (command.getOperation() != otherCommand.getOperation()
+                    || !command.getValue().equals(otherCommand.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
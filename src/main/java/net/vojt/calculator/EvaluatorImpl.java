@@ -20,13 +20,39 @@
 package net.vojt.calculator;
 
 import java.math.BigDecimal;
+import java.math.MathContext;
 
 /**
  * Evaluates the computation result.
+ * <p>
+ * Every operation is carried out within the {@link MathContext} of the
+ * evaluator. The default {@link MathContext#UNLIMITED unlimited} context
+ * evaluates exactly, a division with a non-terminating result fails.
+ * A context with a precision rounds every intermediate result, which
+ * bounds the cost of the operations on long computations.
  *
  * @author janvojt
  */
 public class EvaluatorImpl implements Evaluator {
+    
+    /** Precision and rounding of the operations. */
+    private volatile MathContext mathContext;
+    
+    /**
+     * Constructs an evaluator computing exactly.
+     */
+    public EvaluatorImpl() {
+        this(MathContext.UNLIMITED);
+    }
+    
+    /**
+     * Constructs an evaluator.
+     * 
+     * @param mathContext precision and rounding of the operations
+     */
+    public EvaluatorImpl(MathContext mathContext) {
+        setMathContext(mathContext);
+    }
 
     @Override
     public BigDecimal evaluate(Computation computation) {
@@ -39,27 +65,112 @@ public class EvaluatorImpl implements Evaluator {
             throw new RuntimeException("Computation sequence has an empty initializer!");
         }
         
+        return evaluate(skipIrrelevant(result, computation), computation);
+    }
+    
+    /**
+     * Uses the facts collected by the computation to fail fast on
+     * a division by zero, or to skip the leading commands whose result
+     * is zeroed by a multiplication by zero. The outcome is the same
+     * as if all the commands were applied. Only exact evaluation takes
+     * the shortcuts, as rounded intermediate results are not known
+     * without computing them.
+     * 
+     * @param initializer value the computation is applied to
+     * @param computation operation sequence to compute
+     * @return intermediate result after the skipped commands
+     * @throws ArithmeticException on a division by zero
+     */
+    protected BigDecimal skipIrrelevant(BigDecimal initializer, Computation computation) {
+        ComputationFacts facts = isExact() ? computation.getFacts() : null;
+        if (facts == null) {
+            return initializer;
+        }
+        if (facts.isDivisionByZero(initializer)) {
+            computation.clear();
+            throw new ArithmeticException("Division by zero");
+        }
+        BigDecimal zero = facts.getZeroPrefixResult(initializer);
+        if (zero == null) {
+            return initializer;
+        }
+        computation.skip(facts.getZeroPrefix());
+        return zero;
+    }
+    
+    /**
+     * Applies all the remaining operations in the given computation sequence
+     * to the intermediate result.
+     * 
+     * @param result intermediate result
+     * @param computation operation sequence to compute
+     * @return computation result
+     */
+    protected BigDecimal evaluate(BigDecimal result, Computation computation) {
+        
         // iteratively apply all the operations
-        while (!computation.isEmpty()) {
-            Command command = computation.popCommand();
-            switch (command.getOperation()) {
-                case ADD :
-                    result = result.add(command.getValue());
-                    break;
-                case SUBTRACT :
-                    result = result.subtract(command.getValue());
-                    break;
-                case MULTIPLY :
-                    result = result.multiply(command.getValue());
-                    break;
-                case DIVIDE :
-                    result = result.divide(command.getValue());
-                    break;
-                default :
-                    throw new RuntimeException("Unsupported operation : " + command.getOperation().toString());
-            }
+        while (computation.advance()) {
+            result = apply(result, computation.currentOperation(), computation.currentValue());
         }
         
         return result;
     }
+    
+    /**
+     * Applies a single operation to the intermediate result.
+     * 
+     * @param result intermediate result
+     * @param command command to apply
+     * @return new intermediate result
+     */
+    protected BigDecimal apply(BigDecimal result, Command command) {
+        return apply(result, command.getOperation(), command.getValue());
+    }
+    
+    /**
+     * Applies a single operation to the intermediate result.
+     * 
+     * @param result intermediate result
+     * @param operation operation to apply
+     * @param value operation argument
+     * @return new intermediate result
+     */
+    protected BigDecimal apply(BigDecimal result, Operation operation, BigDecimal value) {
+        MathContext mc = mathContext;
+        switch (operation) {
+            case ADD :
+                return result.add(value, mc);
+            case SUBTRACT :
+                return result.subtract(value, mc);
+            case MULTIPLY :
+                return result.multiply(value, mc);
+            case DIVIDE :
+                return result.divide(value, mc);
+            default :
+                throw new RuntimeException("Unsupported operation : " + operation.toString());
+        }
+    }
+
+    /** @return precision and rounding of the operations */
+    public MathContext getMathContext() {
+        return mathContext;
+    }
+
+    /**
+     * Sets the precision and rounding of the operations.
+     * 
+     * @param mathContext the context, {@link MathContext#UNLIMITED}
+     *      for exact evaluation
+     */
+    public final void setMathContext(MathContext mathContext) {
+        if (mathContext == null) {
+            throw new IllegalArgumentException("Math context must not be null.");
+        }
+        this.mathContext = mathContext;
+    }
+
+    /** @return whether the operations are exact, not rounded */
+    protected boolean isExact() {
+        return mathContext.getPrecision() == 0;
+    }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+
+/**
+ * A computation folding the commands as they arrive instead of buffering
+ * all of them until the apply command.
+ * <p>
+ * Any run of additions, subtractions and multiplications is an affine map
+ * {@code x -> x * factor + addend}, so only the factor and the addend are
+ * kept while the run is read. Exact decimal arithmetic gives the same value
+ * and also the same scale as applying the commands one by one. The scale
+ * of a division result depends on the value being divided though, so each
+ * division closes the run and is buffered together with the two folded
+ * commands. Memory used by a block is therefore bounded by the number
+ * of its divisions rather than by the number of its commands.
+ * <p>
+ * Evaluation reads the folded commands as {@link Operation#MULTIPLY}
+ * and {@link Operation#ADD} commands, so any {@link Evaluator} gives
+ * the same result as for a plain {@link Computation}, as long as it
+ * evaluates exactly. Rounding each intermediate result to a precision
+ * gives different results than rounding the folded ones.
+ *
+ * @author janvojt
+ */
+public class FoldingComputation extends Computation {
+
+    /** Factory of folding computations. */
+    public static final ComputationFactory FACTORY = new ComputationFactory() {
+        @Override
+        public Computation createComputation() {
+            return new FoldingComputation();
+        }
+    };
+
+    /** Product of the multipliers in the current run, null if none. */
+    private BigDecimal factor;
+
+    /** Addends in the current run scaled by later multipliers, null if none. */
+    private BigDecimal addend;
+
+    @Override
+    public void pushCommand(Command command) {
+        BigDecimal value = command.getValue();
+        switch (command.getOperation()) {
+            case ADD :
+                addend = addend == null ? value : addend.add(value);
+                break;
+            case SUBTRACT :
+                addend = addend == null ? value.negate() : addend.subtract(value);
+                break;
+            case MULTIPLY :
+                factor = factor == null ? value : factor.multiply(value);
+                if (addend != null) {
+                    addend = addend.multiply(value);
+                }
+                break;
+            case DIVIDE :
+                flush();
+                super.pushCommand(command);
+                break;
+            default :
+                super.pushCommand(command);
+        }
+    }
+
+    @Override
+    public Command popCommand() {
+        flush();
+        return super.popCommand();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        flush();
+        return super.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        factor = null;
+        addend = null;
+        super.clear();
+    }
+
+    /**
+     * Closes the current run by queuing its folded commands.
+     */
+    private void flush() {
+        if (factor != null) {
+            super.pushCommand(new Command(Operation.MULTIPLY, factor));
+            factor = null;
+        }
+        if (addend != null) {
+            super.pushCommand(new Command(Operation.ADD, addend));
+            addend = null;
+        }
+    }
+
+}
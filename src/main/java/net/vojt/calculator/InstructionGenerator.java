@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Generates instruction files together with the output expected
+ * from the calculator. Generation is deterministic for a given seed
+ * and configuration, so the same files may be generated repeatedly
+ * for load and regression testing.
+ * <p>
+ * Expected output is computed by {@link EvaluatorImpl} from the generated
+ * commands, so generated blocks are kept in memory one at a time.
+ *
+ * @author janvojt
+ */
+public class InstructionGenerator {
+
+    /** End of line character to use. */
+    private static final String EOL = "\n";
+
+    /** Output reported for a line which cannot be parsed. */
+    private static final String INVALID_OUTPUT = "ERROR: Invalid command syntax.";
+
+    /** Lines with invalid syntax to be mixed into the input. */
+    private static final String[] INVALID_LINES = {
+        "#### invalid line", "add", "power 2", "multiply two", "apply 1 2", "divide 1.2.3"
+    };
+
+    /** Pseudo-random generator. */
+    private Random random = new Random(0);
+
+    /** Approximate size of the generated input in bytes. */
+    private long size = 1024 * 1024;
+
+    /** Minimal number of commands in a block, not counting apply. */
+    private int minBlockLength = 0;
+
+    /** Maximal number of commands in a block, not counting apply. */
+    private int maxBlockLength = 20;
+
+    /** Skew of block lengths, values above one favour short blocks. */
+    private double blockSkew = 1;
+
+    /** Weights of operations indexed by operation ordinal. */
+    private final double[] weights = new double[Operation.values().length];
+
+    /** Maximal number of digits in the integer part of values. */
+    private int maxIntegerDigits = 3;
+
+    /** Maximal number of digits in the fractional part of values. */
+    private int maxScale = 2;
+
+    /** Probability of an invalid line before each command. */
+    private double invalidRate = 0;
+
+    /** Probability of a blank line before each command. */
+    private double blankRate = 0;
+
+    /** Reference evaluator for the expected output. */
+    private final Evaluator eval = new EvaluatorImpl();
+
+    /**
+     * Constructs the generator with default operation weights.
+     */
+    public InstructionGenerator() {
+        weights[Operation.ADD.ordinal()] = 4;
+        weights[Operation.SUBTRACT.ordinal()] = 4;
+        weights[Operation.MULTIPLY.ordinal()] = 2;
+        weights[Operation.DIVIDE.ordinal()] = 1;
+    }
+
+    /**
+     * Entry point generating the input and expected output files.
+     *
+     * @param args options followed by input and expected output paths
+     * @throws IOException in case of I/O error
+     */
+    public static void main(String[] args) throws IOException {
+        InstructionGenerator generator = new InstructionGenerator();
+        String[] files = new String[2];
+        int fileCount = 0;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.startsWith("--")) {
+                    if (i + 1 == args.length) {
+                        throw new IllegalArgumentException("Option " + arg + " requires a value.");
+                    }
+                    generator.setOption(arg, args[++i]);
+                } else if (fileCount < files.length) {
+                    files[fileCount++] = arg;
+                } else {
+                    throw new IllegalArgumentException("Unexpected argument: '" + arg + "'");
+                }
+            }
+            if (fileCount < files.length) {
+                throw new IllegalArgumentException("Usage: InstructionGenerator [--seed n] [--size n[K|M|G]]"
+                        + " [--blocks min-max] [--skew x] [--mix add=4,subtract=4,multiply=2,divide=1]"
+                        + " [--digits n] [--scale n] [--invalid rate] [--blank rate] input expected");
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            return;
+        }
+
+        try (Writer input = Files.newBufferedWriter(Paths.get(files[0]), StandardCharsets.US_ASCII);
+                Writer expected = Files.newBufferedWriter(Paths.get(files[1]), StandardCharsets.US_ASCII)) {
+            generator.generate(input, expected);
+        }
+    }
+
+    /**
+     * Generates blocks until the input reaches the configured size.
+     * The last block is always completed, so the input may be slightly
+     * larger.
+     *
+     * @param input output for the instructions
+     * @param expected output for the expected calculator output
+     * @throws IOException in case of I/O error
+     */
+    public void generate(Writer input, Writer expected) throws IOException {
+        StringBuilder inputBlock = new StringBuilder();
+        StringBuilder expectedBlock = new StringBuilder();
+        long written = 0;
+        while (written < size) {
+            generateBlock(inputBlock, expectedBlock);
+            input.append(inputBlock);
+            expected.append(expectedBlock);
+            written += inputBlock.length();
+            inputBlock.setLength(0);
+            expectedBlock.setLength(0);
+        }
+    }
+
+    /**
+     * Generates a single block of lines terminated by apply.
+     *
+     * @param input output for the instructions
+     * @param expected output for the expected calculator output,
+     * null if it is not needed
+     * @return number of generated input lines
+     */
+    public int generateBlock(StringBuilder input, StringBuilder expected) {
+        int lines = 0;
+        int length = minBlockLength
+                + (int) ((maxBlockLength - minBlockLength + 1) * Math.pow(random.nextDouble(), blockSkew));
+        Computation comp = new Computation();
+        for (int i = 0; i <= length; i++) {
+
+            // noise preceding the command
+            if (random.nextDouble() < invalidRate) {
+                input.append(INVALID_LINES[random.nextInt(INVALID_LINES.length)]).append(EOL);
+                appendExpected(expected, INVALID_OUTPUT);
+                lines++;
+            }
+            if (random.nextDouble() < blankRate) {
+                input.append(EOL);
+                appendExpected(expected, INVALID_OUTPUT);
+                lines++;
+            }
+
+            Operation operation = i == length ? Operation.APPLY : nextOperation();
+            String value = nextValue();
+            input.append(operation).append(' ').append(value).append(EOL);
+            lines++;
+            if (expected != null) {
+                comp.pushCommand(new Command(operation, new BigDecimal(value)));
+            }
+        }
+
+        if (expected != null) {
+            try {
+                appendExpected(expected, "Result is: " + eval.evaluate(comp).toString());
+            } catch (ArithmeticException ex) {
+                appendExpected(expected, "ERROR: " + ex.getMessage());
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Sets a single option given on the command line.
+     *
+     * @param option option name
+     * @param value option value
+     * @throws IllegalArgumentException in case of unknown option or invalid value
+     */
+    private void setOption(String option, String value) throws IllegalArgumentException {
+        try {
+            switch (option) {
+                case "--seed" :
+                    setSeed(Long.parseLong(value));
+                    break;
+                case "--size" :
+                    setSize(parseSize(value));
+                    break;
+                case "--blocks" :
+                    String[] bounds = value.split("-", 2);
+                    setBlockLength(Integer.parseInt(bounds[0]), Integer.parseInt(bounds[bounds.length - 1]));
+                    break;
+                case "--skew" :
+                    setBlockSkew(Double.parseDouble(value));
+                    break;
+                case "--mix" :
+                    for (String weight : value.split(",")) {
+                        String[] pair = weight.split("=", 2);
+                        setWeight(Operation.valueOf(pair[0].trim().toUpperCase()), Double.parseDouble(pair[1]));
+                    }
+                    break;
+                case "--digits" :
+                    setMaxIntegerDigits(Integer.parseInt(value));
+                    break;
+                case "--scale" :
+                    setMaxScale(Integer.parseInt(value));
+                    break;
+                case "--invalid" :
+                    setInvalidRate(Double.parseDouble(value));
+                    break;
+                case "--blank" :
+                    setBlankRate(Double.parseDouble(value));
+                    break;
+                default :
+                    throw new IllegalArgumentException("Unknown option: '" + option + "'");
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Invalid value of option " + option + ": '" + value + "'");
+        }
+    }
+
+    /**
+     * Parses size with an optional binary unit suffix.
+     *
+     * @param value size, e.g. 10G
+     * @return size in bytes
+     */
+    private static long parseSize(String value) {
+        String digits = value.toUpperCase();
+        long unit = 1;
+        switch (digits.charAt(digits.length() - 1)) {
+            case 'K' :
+                unit = 1L << 10;
+                break;
+            case 'M' :
+                unit = 1L << 20;
+                break;
+            case 'G' :
+                unit = 1L << 30;
+                break;
+            default :
+                return Long.parseLong(digits);
+        }
+        return Long.parseLong(digits.substring(0, digits.length() - 1)) * unit;
+    }
+
+    /** @param seed seed of the pseudo-random generator */
+    public void setSeed(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /** @param size approximate size of the generated input in bytes */
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    /**
+     * Sets the bounds of the number of commands in a block,
+     * not counting the apply command.
+     *
+     * @param min minimal number of commands
+     * @param max maximal number of commands
+     */
+    public void setBlockLength(int min, int max) {
+        if (min < 0 || max < min) {
+            throw new IllegalArgumentException("Invalid block length bounds " + min + "-" + max + ".");
+        }
+        this.minBlockLength = min;
+        this.maxBlockLength = max;
+    }
+
+    /**
+     * Sets the skew of block lengths. Lengths are uniformly distributed
+     * for skew one, higher skew favours short blocks with occasional
+     * long ones.
+     *
+     * @param skew skew of block lengths
+     */
+    public void setBlockSkew(double skew) {
+        if (skew <= 0) {
+            throw new IllegalArgumentException("Block skew must be positive.");
+        }
+        this.blockSkew = skew;
+    }
+
+    /**
+     * Sets the relative weight of an operation in the generated commands.
+     *
+     * @param operation operation other than apply
+     * @param weight relative weight, zero to leave the operation out
+     */
+    public void setWeight(Operation operation, double weight) {
+        if (operation == Operation.APPLY || weight < 0) {
+            throw new IllegalArgumentException("Invalid weight " + weight + " of operation " + operation + ".");
+        }
+        weights[operation.ordinal()] = weight;
+    }
+
+    /** @param maxIntegerDigits maximal number of digits in the integer part of values */
+    public void setMaxIntegerDigits(int maxIntegerDigits) {
+        if (maxIntegerDigits < 1) {
+            throw new IllegalArgumentException("Values need at least one integer digit.");
+        }
+        this.maxIntegerDigits = maxIntegerDigits;
+    }
+
+    /** @param maxScale maximal number of digits in the fractional part of values */
+    public void setMaxScale(int maxScale) {
+        if (maxScale < 0) {
+            throw new IllegalArgumentException("Scale cannot be negative.");
+        }
+        this.maxScale = maxScale;
+    }
+
+    /** @param invalidRate probability of an invalid line before each command */
+    public void setInvalidRate(double invalidRate) {
+        this.invalidRate = invalidRate;
+    }
+
+    /** @param blankRate probability of a blank line before each command */
+    public void setBlankRate(double blankRate) {
+        this.blankRate = blankRate;
+    }
+
+    /**
+     * Picks an operation according to the weights.
+     *
+     * @return operation other than apply
+     */
+    private Operation nextOperation() {
+        double total = 0;
+        for (double weight : weights) {
+            total += weight;
+        }
+        double pick = random.nextDouble() * total;
+        Operation[] operations = Operation.values();
+        for (int i = 0; i < weights.length; i++) {
+            pick -= weights[i];
+            if (pick < 0) {
+                return operations[i];
+            }
+        }
+        throw new IllegalStateException("No operation has a positive weight.");
+    }
+
+    /**
+     * Generates a decimal value.
+     *
+     * @return value as written in the input
+     */
+    private String nextValue() {
+        StringBuilder value = new StringBuilder();
+        if (random.nextInt(5) == 0) {
+            value.append('-');
+        }
+        int digits = 1 + random.nextInt(maxIntegerDigits);
+        value.append(random.nextInt(10));
+        for (int i = 1; i < digits; i++) {
+            value.append(random.nextInt(10));
+        }
+        int scale = random.nextInt(maxScale + 1);
+        if (scale > 0) {
+            value.append('.');
+            for (int i = 0; i < scale; i++) {
+                value.append(random.nextInt(10));
+            }
+        }
+        return value.toString();
+    }
+
+    /**
+     * Appends a line of the expected output.
+     *
+     * @param expected expected output, null if it is not needed
+     * @param line line to append
+     */
+    private static void appendExpected(StringBuilder expected, String line) {
+        if (expected != null) {
+            expected.append(line).append(EOL);
+        }
+    }
+
+}
@@ -23,11 +23,27 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
+import java.io.InterruptedIOException;
 import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Calculator working with {@link Reader input reader}
  * and {@link Writer output writer}.
+ * <p>
+ * Computations are evaluated on the calling thread by default. With
+ * {@link #setParallelism(int) parallelism} above one they are evaluated
+ * by a pool of threads while the input is being read, and the output
+ * is written in the original order. The {@link Evaluator} must be
+ * thread-safe in such case.
  *
  * @author janvojt
  */
@@ -36,6 +52,40 @@ public class InteractiveCalculator {
     /** End of line character to use. */
     private static final String EOL = "\n";
     
+    /** Prefix of a line with a result. */
+    protected static final String RESULT_PREFIX = "Result is: ";
+    
+    /** Prefix of a line with an error. */
+    protected static final String ERROR_PREFIX = "ERROR: ";
+    
+    /** Message reported for a line which could not be parsed. */
+    protected static final String INVALID_COMMAND = "Invalid command syntax.";
+    
+    /** Size of the output buffer in batch mode. */
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+    
+    /** Number of blocks in flight per thread used by default. */
+    private static final int DEFAULT_IN_FLIGHT_PER_THREAD = 16;
+    
+    /** Task doing nothing, used for output which is already known. */
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+    
+    /**
+     * Policy of flushing the output.
+     */
+    public enum OutputMode {
+        
+        /** Every line is flushed as soon as it is written. */
+        INTERACTIVE,
+        
+        /** Output is buffered and flushed when the buffer fills up. */
+        BATCH
+    }
+    
     /** Input with commands. */
     private Reader reader;
     
@@ -48,6 +98,42 @@ public class InteractiveCalculator {
     /** Parser for single-lined commands. */
     private CommandParser parser = new DecimalCommandParser();
     
+    /** Factory of computations filled from the input. */
+    private ComputationFactory computationFactory = Computation.FACTORY;
+    
+    /** Number of threads evaluating computations. */
+    private int parallelism = 1;
+    
+    /** Maximum number of blocks being evaluated or waiting for output. */
+    private int maxInFlight;
+    
+    /** Policy of flushing the output. */
+    private OutputMode outputMode = OutputMode.INTERACTIVE;
+    
+    /** Metrics of the processing, null when not collected. */
+    private CalculatorMetrics metrics;
+    
+    /** Number of results given, counted by the evaluating threads. */
+    private final LongAdder results = new LongAdder();
+    
+    /** Number of errors given, including invalid commands. */
+    private final LongAdder errors = new LongAdder();
+    
+    /** Output not written to the writer yet. */
+    private final StringBuilder output = new StringBuilder();
+    
+    /** Buffer for passing the output to the writer. */
+    private char[] outputChars;
+    
+    /** Computation being read from the input. */
+    private Computation comp;
+    
+    /** Pool evaluating computations, null when evaluating sequentially. */
+    private ExecutorService executor;
+    
+    /** Outputs of the blocks in flight in the input order. */
+    private Deque<Future<String>> pending;
+    
     /**
      * Starts the reading from input and the computing process itself.
      * 
@@ -59,18 +145,20 @@ public class InteractiveCalculator {
         validate();
         
         // start reading input
+        beginInput();
         try (BufferedReader bReader = new BufferedReader(reader)) {
             
-            // computation may be reused repeatedly
-            Computation comp = new Computation();
-            
             // read input line by line
             for (String line = bReader.readLine();
                     line != null;
                     line = bReader.readLine()) {
 
-                processLine(line, comp);
+                processLine(line);
             }
+            
+            finishOutput();
+        } finally {
+            endInput();
         }
     }
 
@@ -92,6 +180,11 @@ public class InteractiveCalculator {
         this.writer = writer;
     }
 
+    /** @return output writer */
+    protected Writer getWriter() {
+        return writer;
+    }
+
     /**
      * Setter may be used to change the default implementation
      * of {@link Evaluator}.
@@ -102,6 +195,11 @@ public class InteractiveCalculator {
         this.eval = eval;
     }
 
+    /** @return computation evaluator */
+    protected Evaluator getEval() {
+        return eval;
+    }
+
     /**
      * Setter may be used to change the default implementation
      * of {@link CommandParser}.
@@ -112,42 +210,316 @@ public class InteractiveCalculator {
         this.parser = parser;
     }
     
+    /**
+     * Setter may be used to change the default implementation
+     * of {@link Computation}, e.g. to {@link FoldingComputation}.
+     * 
+     * @param computationFactory factory of computations
+     */
+    public void setComputationFactory(ComputationFactory computationFactory) {
+        this.computationFactory = computationFactory;
+    }
+    
+    /** @return factory of computations */
+    protected ComputationFactory getComputationFactory() {
+        return computationFactory;
+    }
+    
+    /**
+     * Sets the policy of flushing the output. Every line is flushed
+     * in the {@link OutputMode#INTERACTIVE interactive mode}, which is
+     * the default. The {@link OutputMode#BATCH batch mode} writes
+     * the output in large chunks and flushes it once the input ends.
+     * 
+     * @param outputMode policy of flushing the output
+     */
+    public void setOutputMode(OutputMode outputMode) {
+        this.outputMode = outputMode;
+    }
+    
+    /**
+     * Sets the metrics to collect while processing the input.
+     * No metrics are collected by default.
+     * 
+     * @param metrics metrics to collect, null to collect none
+     */
+    public void setMetrics(CalculatorMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    /** @return metrics to collect, null when not collected */
+    protected CalculatorMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /** @return number of results given so far */
+    public long getResults() {
+        return results.sum();
+    }
+    
+    /** @return number of errors given so far, including invalid commands */
+    public long getErrors() {
+        return errors.sum();
+    }
+    
+    /**
+     * Sets the number of threads evaluating computations.
+     * Computations are evaluated on the calling thread by default.
+     * 
+     * @param parallelism number of evaluating threads
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive.");
+        }
+        this.parallelism = parallelism;
+    }
+    
+    /**
+     * Sets the maximum number of blocks being evaluated or waiting
+     * for their output. Reading of the input is suspended when the limit
+     * is reached, so that the memory usage stays bounded. By default
+     * the limit is proportional to the {@link #setParallelism(int)
+     * parallelism}.
+     * 
+     * @param maxInFlight maximum number of blocks in flight
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Maximum of blocks in flight must be positive.");
+        }
+        this.maxInFlight = maxInFlight;
+    }
+    
+    /**
+     * Prepares a new computation and the evaluating threads
+     * before reading the input.
+     */
+    protected void beginInput() {
+        comp = computationFactory.createComputation();
+        if (parallelism > 1) {
+            executor = new ForkJoinPool(parallelism);
+            pending = new ArrayDeque<>();
+        }
+    }
+    
+    /**
+     * Waits for the evaluation of all the blocks in flight
+     * and flushes all the output.
+     * 
+     * @throws IOException in case of I/O error
+     */
+    protected void finishOutput() throws IOException {
+        if (pending != null) {
+            while (!pending.isEmpty()) {
+                writePending();
+            }
+        }
+        flush();
+    }
+    
+    /**
+     * Releases the evaluating threads after reading the input.
+     */
+    protected void endInput() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+            pending = null;
+        }
+    }
+    
     /**
      * Parses a single line into {@link Command} and pushes it onto FIFO queue.
      * 
      * @param line single-lined command
-     * @param comp computation queue
      * @throws IOException in case of I/O error
      */
-    private void processLine(String line, Computation comp) throws IOException {
+    private void processLine(String line) throws IOException {
 
+        long start = metrics == null ? 0 : System.nanoTime();
+        Command command;
         try {
-            Command command = parser.parse(line);
-            comp.pushCommand(command);
-            if (Operation.APPLY.equals(command.getOperation())) {
-                processComputation(comp);
-            }
-
+            command = parser.parse(line);
         } catch (InvalidCommandSyntaxException ex) {
-            writeLn("ERROR: Invalid command syntax.");
+            if (metrics != null) {
+                metrics.recordParse(null, System.nanoTime() - start);
+            }
+            processInvalidCommand();
+            return;
+        }
+        if (metrics != null) {
+            metrics.recordParse(command.getOperation(), System.nanoTime() - start);
         }
+        processCommand(command);
 
     }
     
+    /**
+     * Pushes a parsed {@link Command} onto FIFO queue and evaluates
+     * the computation once the {@link Operation#APPLY apply command}
+     * is received.
+     * 
+     * @param command parsed command
+     * @throws IOException in case of I/O error
+     */
+    protected void processCommand(Command command) throws IOException {
+        comp.pushCommand(command);
+        if (Operation.APPLY.equals(command.getOperation())) {
+            processComputation();
+        }
+    }
+    
+    /**
+     * Pushes a command given by its unscaled value and scale onto FIFO
+     * queue without creating a {@link Command}, and evaluates
+     * the computation once the {@link Operation#APPLY apply command}
+     * is received.
+     * 
+     * @param operation command operation
+     * @param unscaled unscaled value
+     * @param scale value scale
+     * @throws IOException in case of I/O error
+     */
+    protected void processCommand(Operation operation, long unscaled, int scale) throws IOException {
+        comp.push(operation, unscaled, scale);
+        if (Operation.APPLY.equals(operation)) {
+            processComputation();
+        }
+    }
+    
+    /**
+     * Pushes a command given by its operation and value onto FIFO queue
+     * and evaluates the computation once the {@link Operation#APPLY apply
+     * command} is received.
+     * 
+     * @param operation command operation
+     * @param value command value
+     * @throws IOException in case of I/O error
+     */
+    protected void processCommand(Operation operation, BigDecimal value) throws IOException {
+        comp.push(operation, value);
+        if (Operation.APPLY.equals(operation)) {
+            processComputation();
+        }
+    }
+    
+    /**
+     * Reports a command which could not be parsed.
+     * 
+     * @throws IOException in case of I/O error
+     */
+    protected void processInvalidCommand() throws IOException {
+        errors.increment();
+        if (pending == null || pending.isEmpty()) {
+            writeLn(ERROR_PREFIX, INVALID_COMMAND);
+        } else {
+            // keep the order with the blocks in flight
+            FutureTask<String> error = new FutureTask<>(NOOP, ERROR_PREFIX + INVALID_COMMAND);
+            error.run();
+            enqueue(error);
+        }
+    }
+    
     /**
      * Processes the {@link Computation} after the
      * {@link Operation#APPLY apply command} has been received.
      * 
-     * @param comp computation FIFO queue
      * @throws IOException in case of I/O error
      */
-    private void processComputation(Computation comp) throws IOException {
+    private void processComputation() throws IOException {
+        if (executor == null) {
+            long start = metrics == null ? 0 : System.nanoTime();
+            try {
+                BigDecimal result = eval.evaluate(comp);
+                recordEvaluation(start, false);
+                writeLn(RESULT_PREFIX, result.toString());
+            } catch (ArithmeticException ex) {
+                recordEvaluation(start, true);
+                comp.clear();
+                writeLn(ERROR_PREFIX, ex.getMessage());
+            }
+        } else {
+            final Computation block = comp;
+            comp = computationFactory.createComputation();
+            enqueue(executor.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return evaluate(block);
+                }
+            }));
+        }
+    }
+    
+    /**
+     * Evaluates the computation and formats its output.
+     * 
+     * @param block computation FIFO queue
+     * @return output line
+     */
+    private String evaluate(Computation block) {
+        long start = metrics == null ? 0 : System.nanoTime();
         try {
-            BigDecimal result = eval.evaluate(comp);
-            writeLn("Result is: " + result.toString());
+            BigDecimal result = eval.evaluate(block);
+            recordEvaluation(start, false);
+            return RESULT_PREFIX + result.toString();
         } catch (ArithmeticException ex) {
-            comp.clear();
-            writeLn("ERROR: " + ex.getMessage());
+            recordEvaluation(start, true);
+            block.clear();
+            return ERROR_PREFIX + ex.getMessage();
+        }
+    }
+    
+    /**
+     * Counts an evaluated computation and records it into the metrics,
+     * if collected.
+     * 
+     * @param start time the evaluation started
+     * @param failed whether the evaluation failed in the arithmetic
+     */
+    private void recordEvaluation(long start, boolean failed) {
+        (failed ? errors : results).increment();
+        if (metrics != null) {
+            metrics.recordEvaluation(System.nanoTime() - start, failed);
+        }
+    }
+    
+    /**
+     * Adds output of a block to the blocks in flight, writing the oldest
+     * ones first if there are too many of them.
+     * 
+     * @param output future output of a block
+     * @throws IOException in case of I/O error
+     */
+    private void enqueue(Future<String> output) throws IOException {
+        int limit = maxInFlight > 0 ? maxInFlight : parallelism * DEFAULT_IN_FLIGHT_PER_THREAD;
+        while (pending.size() >= limit) {
+            writePending();
+        }
+        pending.add(output);
+    }
+    
+    /**
+     * Waits for the oldest block in flight and writes its output.
+     * 
+     * @throws IOException in case of I/O error
+     */
+    private void writePending() throws IOException {
+        Future<String> line = pending.remove();
+        try {
+            writeLn("", line.get());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for evaluation.");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
         }
     }
     
@@ -156,20 +528,48 @@ public class InteractiveCalculator {
      * 
      * @throws IllegalStateException in case of invalid input/output
      */
-    private void validate() throws IllegalStateException {
-        if (reader == null || writer == null) {
+    protected void validate() throws IllegalStateException {
+        if (!hasInput() || writer == null) {
             throw new IllegalStateException("Trying to run calculator without input/output.");
         }
     }
     
+    /** @return whether the input was set */
+    protected boolean hasInput() {
+        return reader != null;
+    }
+    
     /**
-     * Writes a single line to output writer and terminates it by EOL.
+     * Writes a single line to the output and terminates it by EOL.
+     * The line is flushed in the interactive mode, otherwise it is kept
+     * in the output buffer until the buffer fills up.
      * 
-     * @param line line to write
+     * @param prefix beginning of the line
+     * @param text rest of the line
      * @throws IOException in case of I/O error
      */
-    private void writeLn(String line) throws IOException {
-        writer.write(line + EOL);
+    private void writeLn(String prefix, String text) throws IOException {
+        output.append(prefix).append(text).append(EOL);
+        if (outputMode == OutputMode.INTERACTIVE || output.length() >= OUTPUT_BUFFER_SIZE) {
+            flush();
+        }
+    }
+    
+    /**
+     * Writes the buffered output to the output writer and flushes it.
+     * 
+     * @throws IOException in case of I/O error
+     */
+    private void flush() throws IOException {
+        int length = output.length();
+        if (length > 0) {
+            if (outputChars == null || outputChars.length < length) {
+                outputChars = new char[Math.max(length, OUTPUT_BUFFER_SIZE)];
+            }
+            output.getChars(0, length, outputChars, 0);
+            output.setLength(0);
+            writer.write(outputChars, 0, length);
+        }
         writer.flush();
     }
     
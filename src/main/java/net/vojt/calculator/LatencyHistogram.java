@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in nanoseconds with buckets of bounded relative
+ * width, in the manner of HDR histograms. Every power of two range is
+ * split into {@value #SUB_BUCKETS} buckets, so a value is reported
+ * at most about 6 % above its real value.
+ * <p>
+ * The histogram is thread-safe, recording is lock-free. The buckets and
+ * the totals are striped {@link LongAdder}s merged when read, so threads
+ * recording concurrently into the same buckets do not contend.
+ *
+ * @author janvojt
+ */
+public class LatencyHistogram {
+
+    /** Number of bits distinguishing the buckets of a power of two range. */
+    private static final int SUB_BITS = 4;
+
+    /** Number of buckets a power of two range is split into. */
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /** Number of buckets covering all the non-negative long values. */
+    private static final int BUCKETS = SUB_BUCKETS + (Long.SIZE - 1 - SUB_BITS) * SUB_BUCKETS;
+
+    /** Number of values recorded into each bucket. */
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+    /** Number of values recorded. */
+    private final LongAdder count = new LongAdder();
+
+    /** Sum of the values recorded. */
+    private final LongAdder sum = new LongAdder();
+
+    /** Largest value recorded, written only when it grows. */
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Constructs an empty histogram.
+     */
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a single value.
+     *
+     * @param nanos latency in nanoseconds, negative values count as zero
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts[bucket(value)].increment();
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /** @return number of values recorded */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /** @return mean of the values recorded, zero when empty */
+    public long getMean() {
+        long n = getCount();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    /** @return largest value recorded */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the value below or at which the given percentage
+     * of the recorded values lies.
+     *
+     * @param percentile percentage between 0 and 100
+     * @return highest value of the bucket holding the percentile,
+     *      zero when empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /** Discards all the recorded values. */
+    public void reset() {
+        for (LongAdder bucket : counts) {
+            bucket.reset();
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount()
+                + " mean=" + getMean()
+                + " p50=" + getValueAtPercentile(50)
+                + " p90=" + getValueAtPercentile(90)
+                + " p99=" + getValueAtPercentile(99)
+                + " p99.9=" + getValueAtPercentile(99.9)
+                + " max=" + getMax();
+    }
+
+    /**
+     * Finds the bucket of a value.
+     *
+     * @param value non-negative value
+     * @return index of the bucket
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Finds the highest value falling into a bucket.
+     *
+     * @param bucket index of the bucket
+     * @return highest value of the bucket
+     */
+    static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        long lowest = (SUB_BUCKETS | sub) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+}
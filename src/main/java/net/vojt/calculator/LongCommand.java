@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+
+/**
+ * Command with an integer value held as a primitive.
+ * The decimal value is created only when it is asked for.
+ *
+ * @author janvojt
+ */
+public class LongCommand extends Command {
+
+    /** Maximum number of decimal digits always fitting into a long. */
+    static final int MAX_DIGITS = 18;
+
+    /** Operation argument. */
+    private final long longValue;
+
+    /** Operation argument as a decimal, created lazily. */
+    private BigDecimal value;
+
+    /**
+     * Constructs the Command.
+     *
+     * @param operation operation to compute
+     * @param value operation argument
+     */
+    public LongCommand(final Operation operation, final long value) {
+        super(operation, null);
+        this.longValue = value;
+    }
+
+    @Override
+    public BigDecimal getValue() {
+        if (value == null) {
+            value = BigDecimal.valueOf(longValue);
+        }
+        return value;
+    }
+
+    @Override
+    public boolean isLongValue() {
+        return true;
+    }
+
+    @Override
+    public long getLongValue() {
+        return longValue;
+    }
+
+}
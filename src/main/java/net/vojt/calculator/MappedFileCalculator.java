@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Calculator reading its input from a memory-mapped file.
+ * The file is mapped in chunks and lines are found in the raw bytes,
+ * which are handed over to {@link AsciiCommandParser} without any charset
+ * decoding. Input is therefore expected to be ASCII text.
+ *
+ * @author janvojt
+ */
+public class MappedFileCalculator extends InteractiveCalculator {
+
+    /** Default size of a single mapped chunk. */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    /** Input file with commands. */
+    private FileChannel channel;
+
+    /** Size of a single mapped chunk. */
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    /** Offset of the first byte to read. */
+    private long regionStart;
+
+    /** Number of bytes to read, negative to read up to the end of the file. */
+    private long regionSize = -1;
+
+    /** Parser for commands given as bytes. */
+    private final AsciiCommandParser byteParser = new AsciiCommandParser();
+
+    /** Writer of the periodic checkpoints, null when not checkpointing. */
+    private Checkpointer checkpointer;
+
+    @Override
+    public void run() throws IOException {
+
+        // make sure channel/writer were correctly set
+        validate();
+
+        beginInput();
+        try {
+            long position = regionStart;
+            long size = regionSize < 0 ? channel.size() : regionStart + regionSize;
+            int mapSize = chunkSize;
+            while (position < size) {
+                long length = Math.min(mapSize, size - position);
+                boolean last = position + length == size;
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+                int consumed = processChunk(chunk, position, (int) length, last);
+                if (consumed == 0) {
+                    // a single line does not fit into the chunk
+                    if (mapSize == Integer.MAX_VALUE) {
+                        throw new IOException("Line at offset " + position + " is too long.");
+                    }
+                    mapSize = (int) Math.min(2L * mapSize, Integer.MAX_VALUE);
+                } else {
+                    position += consumed;
+                    mapSize = chunkSize;
+                }
+            }
+
+            finishOutput();
+            if (checkpointer != null) {
+                // the whole input is processed, including any invalid lines
+                // and commands left without an apply command
+                checkpointer.checkpoint(size);
+            }
+        } finally {
+            endInput();
+        }
+    }
+
+    /**
+     * Sets the input file channel. The file is read from its beginning,
+     * or from the start of the {@link #setRegion(long, long) region},
+     * regardless of the channel position.
+     *
+     * @param channel input file channel
+     */
+    public void setChannel(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Restricts the input to a region of the file. The region should start
+     * at the beginning of a line and end with the end of a line or of the file.
+     * The whole file is read by default.
+     *
+     * @param start offset of the first byte to read
+     * @param size number of bytes to read
+     */
+    public void setRegion(long start, long size) {
+        if (start < 0 || size < 0) {
+            throw new IllegalArgumentException("Invalid region: " + start + ", " + size);
+        }
+        this.regionStart = start;
+        this.regionSize = size;
+    }
+
+    /**
+     * Sets the writer of periodic checkpoints, which are due only after
+     * an apply command. A final checkpoint is written once the input ends.
+     * The output must be written to the file of the checkpointer.
+     *
+     * @param checkpointer writer of the checkpoints, null for none
+     */
+    public void setCheckpointer(Checkpointer checkpointer) {
+        this.checkpointer = checkpointer;
+    }
+
+    /**
+     * Sets the size of a single mapped chunk. Chunks are enlarged
+     * temporarily for lines which do not fit into them.
+     *
+     * @param chunkSize chunk size in bytes
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive.");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    protected boolean hasInput() {
+        return channel != null;
+    }
+
+    /**
+     * Processes all the complete lines in the mapped chunk.
+     * Line terminators are the same as for
+     * {@link java.io.BufferedReader#readLine()}.
+     *
+     * @param chunk mapped chunk
+     * @param position offset of the chunk in the file
+     * @param length chunk length
+     * @param last whether the chunk ends at the end of the file
+     * @return number of bytes consumed from the chunk
+     * @throws IOException in case of I/O error
+     */
+    private int processChunk(MappedByteBuffer chunk, long position, int length, boolean last) throws IOException {
+        int lineStart = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = chunk.get(i);
+            if (b == '\n') {
+                boolean apply = processLine(chunk, lineStart, i);
+                lineStart = i + 1;
+                if (apply) {
+                    completeBlock(position + lineStart);
+                }
+            } else if (b == '\r') {
+                if (i + 1 == length && !last) {
+                    // the line feed may follow in the next chunk
+                    break;
+                }
+                boolean apply = processLine(chunk, lineStart, i);
+                if (i + 1 < length && chunk.get(i + 1) == '\n') {
+                    i++;
+                }
+                lineStart = i + 1;
+                if (apply) {
+                    completeBlock(position + lineStart);
+                }
+            }
+        }
+
+        // last line need not be terminated
+        if (last && lineStart < length) {
+            boolean apply = processLine(chunk, lineStart, length);
+            lineStart = length;
+            if (apply) {
+                completeBlock(position + lineStart);
+            }
+        }
+
+        return lineStart;
+    }
+
+    /**
+     * Notes the end of a block, writing a checkpoint if it is due.
+     *
+     * @param offset input offset following the apply command
+     * @throws IOException in case of I/O error
+     */
+    private void completeBlock(long offset) throws IOException {
+        if (checkpointer != null && checkpointer.isDue()) {
+            finishOutput();
+            checkpointer.checkpoint(offset);
+        }
+    }
+
+    /**
+     * Parses a single line into {@link Command} and pushes it onto FIFO queue.
+     *
+     * @param chunk mapped chunk holding the line
+     * @param start index of the first byte of the line
+     * @param end index following the last byte of the line
+     * @return whether the line was an apply command
+     * @throws IOException in case of I/O error
+     */
+    private boolean processLine(MappedByteBuffer chunk, int start, int end) throws IOException {
+        CalculatorMetrics metrics = getMetrics();
+        long begin = metrics == null ? 0 : System.nanoTime();
+        Command command;
+        try {
+            command = byteParser.parse(chunk, start, end);
+        } catch (InvalidCommandSyntaxException ex) {
+            if (metrics != null) {
+                metrics.recordParse(null, System.nanoTime() - begin);
+            }
+            processInvalidCommand();
+            return false;
+        }
+        if (metrics != null) {
+            metrics.recordParse(command.getOperation(), System.nanoTime() - begin);
+        }
+        processCommand(command);
+        return Operation.APPLY.equals(command.getOperation());
+    }
+
+}
@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Stream decompressing a gzip file, inflating its members in parallel
+ * when they carry their compressed sizes.
+ * <p>
+ * A member written by {@link BlockGzipOutputStream}, or by any other
+ * BGZF writer, has its size in the {@code BC} subfield of its extra header
+ * field. Such members are located by reading their headers only and inflated
+ * as tasks of a {@link ForkJoinPool}, a limited number of them ahead
+ * of the member being read. The end of any other member is found only
+ * by inflating it, so from the first such member on the file is inflated
+ * sequentially by a background thread, still ahead of the reader.
+ * Concatenated members give the concatenation of their contents, just like
+ * {@link GZIPInputStream}.
+ *
+ * @author janvojt
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+    /** Size of the chunks the sequential members are inflated into. */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /** Number of chunks the background thread inflates ahead. */
+    private static final int CHUNKS_AHEAD = 16;
+
+    /** Number of members inflated ahead per thread of the pool. */
+    private static final int MEMBERS_AHEAD_PER_THREAD = 4;
+
+    /** Lowest number of members inflated ahead. */
+    private static final int MIN_MEMBERS_AHEAD = 16;
+
+    /** Size of the fixed part of the member header. */
+    private static final int HEADER_SIZE = 10;
+
+    /** Size of the member trailer: CRC-32 and size of the contents. */
+    private static final int TRAILER_SIZE = 8;
+
+    /** Header flag of the extra field. */
+    private static final int FEXTRA = 4;
+
+    /** Header flag of the file name. */
+    private static final int FNAME = 8;
+
+    /** Header flag of the comment. */
+    private static final int FCOMMENT = 16;
+
+    /** Header flag of the header CRC. */
+    private static final int FHCRC = 2;
+
+    /** Input file. */
+    private final FileChannel channel;
+
+    /** Pool inflating the members. */
+    private final ForkJoinPool pool;
+
+    /** Number of members inflated ahead. */
+    private final int membersAhead;
+
+    /** Size of the input file. */
+    private final long size;
+
+    /** Offset of the next member to schedule. */
+    private long position;
+
+    /** Members scheduled in the file order. */
+    private final Deque<ForkJoinTask<byte[]>> ahead = new ArrayDeque<>();
+
+    /** Chunks inflated by the background thread, null until it is started. */
+    private SpscQueue<byte[]> chunks;
+
+    /** Background thread inflating the members of unknown size. */
+    private Thread inflater;
+
+    /** Failure of the background thread. */
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+    /** Contents being read. */
+    private byte[] current = new byte[0];
+
+    /** Index of the next byte of the contents being read. */
+    private int index;
+
+    /** Number of members inflated in parallel. */
+    private long parallelMembers;
+
+    /**
+     * Constructs the stream inflating in the common pool.
+     *
+     * @param channel gzip file, closed with the stream
+     * @throws IOException in case of I/O error
+     */
+    public ParallelGzipInputStream(FileChannel channel) throws IOException {
+        this(channel, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructs the stream.
+     *
+     * @param channel gzip file, closed with the stream
+     * @param pool pool to inflate the members in
+     * @throws IOException in case of I/O error
+     */
+    public ParallelGzipInputStream(FileChannel channel, ForkJoinPool pool) throws IOException {
+        this.channel = channel;
+        this.pool = pool;
+        this.membersAhead = Math.max(MIN_MEMBERS_AHEAD, MEMBERS_AHEAD_PER_THREAD * pool.getParallelism());
+        this.size = channel.size();
+        if (!isGzip(channel)) {
+            throw new ZipException("Not in GZIP format");
+        }
+    }
+
+    /**
+     * Checks whether the file starts with the gzip magic bytes.
+     *
+     * @param file file to check
+     * @return whether the file is compressed
+     * @throws IOException in case of I/O error
+     */
+    public static boolean isGzip(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return isGzip(channel);
+        }
+    }
+
+    /**
+     * Checks whether the file starts with the gzip magic bytes.
+     *
+     * @param channel file to check
+     * @return whether the file is compressed
+     * @throws IOException in case of I/O error
+     */
+    public static boolean isGzip(FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(2);
+        while (magic.hasRemaining() && channel.read(magic, magic.position()) > 0) {
+            // keep reading
+        }
+        return magic.position() == 2
+                && (magic.get(0) & 0xff) == (GZIPInputStream.GZIP_MAGIC & 0xff)
+                && (magic.get(1) & 0xff) == GZIPInputStream.GZIP_MAGIC >>> 8;
+    }
+
+    /** @return number of members inflated in parallel so far */
+    public long getParallelMembers() {
+        return parallelMembers;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return current[index++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - index);
+        System.arraycopy(current, index, b, off, n);
+        index += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current.length - index;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (ForkJoinTask<byte[]> member : ahead) {
+            member.cancel(true);
+        }
+        ahead.clear();
+        if (inflater != null) {
+            inflater.interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * Makes sure there are contents to read.
+     *
+     * @return whether there are contents to read, false at the end of the file
+     * @throws IOException in case of I/O error or malformed input
+     */
+    private boolean fill() throws IOException {
+        while (index == current.length) {
+            if (chunks != null) {
+                byte[] chunk;
+                try {
+                    chunk = chunks.take();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while inflating.", ex);
+                }
+                if (chunk == null) {
+                    if (failure.get() != null) {
+                        throw failure.get();
+                    }
+                    return false;
+                }
+                current = chunk;
+                index = 0;
+                continue;
+            }
+
+            schedule();
+            ForkJoinTask<byte[]> member = ahead.poll();
+            if (member == null) {
+                if (position == size) {
+                    return false;
+                }
+                startInflater();
+                continue;
+            }
+            try {
+                current = member.join();
+            } catch (RuntimeException ex) {
+                // the pool wraps the exceptions of the members, maybe more than once
+                for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                }
+                throw ex;
+            }
+            index = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Schedules the members of known size following the ones scheduled.
+     *
+     * @throws IOException in case of I/O error
+     */
+    private void schedule() throws IOException {
+        while (ahead.size() < membersAhead && position < size) {
+            int memberSize = memberSize(position);
+            if (memberSize < 0) {
+                return;
+            }
+            if (position + memberSize > size) {
+                throw new ZipException("Truncated GZIP member at offset " + position);
+            }
+            final long offset = position;
+            final int length = memberSize;
+            ahead.add(pool.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return inflate(read(offset, length));
+                }
+            }));
+            parallelMembers++;
+            position += memberSize;
+        }
+    }
+
+    /**
+     * Starts the background thread inflating the rest of the file
+     * sequentially.
+     *
+     * @throws IOException in case of I/O error
+     */
+    private void startInflater() throws IOException {
+        channel.position(position);
+        final InputStream in = new GZIPInputStream(Channels.newInputStream(channel), CHUNK_SIZE);
+        chunks = new SpscQueue<>(CHUNKS_AHEAD);
+        inflater = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    byte[] chunk = new byte[CHUNK_SIZE];
+                    int length = 0;
+                    for (int n = in.read(chunk); n >= 0; n = in.read(chunk, length, chunk.length - length)) {
+                        length += n;
+                        if (length == chunk.length) {
+                            chunks.put(chunk);
+                            chunk = new byte[CHUNK_SIZE];
+                            length = 0;
+                        }
+                    }
+                    if (length > 0) {
+                        chunks.put(Arrays.copyOf(chunk, length));
+                    }
+                } catch (IOException ex) {
+                    failure.set(ex);
+                } catch (InterruptedException ex) {
+                    // the stream was closed
+                } finally {
+                    chunks.close();
+                }
+            }
+        }, "gzip-inflater");
+        inflater.setDaemon(true);
+        inflater.start();
+    }
+
+    /**
+     * Reads the size of the member from its {@code BC} extra subfield.
+     *
+     * @param offset offset of the member
+     * @return size of the member in bytes, negative if not given
+     * @throws IOException in case of I/O error or malformed header
+     */
+    private int memberSize(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(read(offset, (int) Math.min(HEADER_SIZE + 2, size - offset)));
+        if (header.limit() < HEADER_SIZE || (header.get(0) & 0xff) != 0x1f
+                || (header.get(1) & 0xff) != 0x8b || header.get(2) != 8) {
+            throw new ZipException("Not in GZIP format at offset " + offset);
+        }
+        if ((header.get(3) & FEXTRA) == 0 || header.limit() < HEADER_SIZE + 2) {
+            return -1;
+        }
+        int extraLength = unsignedShort(header.array(), HEADER_SIZE);
+        if (offset + HEADER_SIZE + 2 + extraLength > size) {
+            throw new ZipException("Truncated GZIP header at offset " + offset);
+        }
+        byte[] extra = read(offset + HEADER_SIZE + 2, extraLength);
+        for (int i = 0; i + 4 <= extraLength;) {
+            int length = unsignedShort(extra, i + 2);
+            if (extra[i] == 'B' && extra[i + 1] == 'C' && length == 2 && i + 6 <= extraLength) {
+                return unsignedShort(extra, i + 4) + 1;
+            }
+            i += 4 + length;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the bytes of the file.
+     *
+     * @param offset offset to read from
+     * @param length number of bytes to read
+     * @return the bytes
+     * @throws IOException in case of I/O error or end of file
+     */
+    private byte[] read(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, offset + buffer.position());
+            if (n < 0) {
+                throw new ZipException("Unexpected end of GZIP file.");
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Inflates a whole member, checking its size and CRC-32.
+     *
+     * @param member bytes of the member
+     * @return contents of the member
+     * @throws IOException in case of malformed member
+     */
+    static byte[] inflate(byte[] member) throws IOException {
+        int flags = member[3];
+        int start = HEADER_SIZE;
+        if ((flags & FEXTRA) != 0) {
+            start += 2 + unsignedShort(member, start);
+        }
+        if ((flags & FNAME) != 0) {
+            while (start < member.length && member[start++] != 0) {
+                // skip the file name
+            }
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (start < member.length && member[start++] != 0) {
+                // skip the comment
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            start += 2;
+        }
+        int end = member.length - TRAILER_SIZE;
+        if (start > end) {
+            throw new ZipException("Truncated GZIP member.");
+        }
+
+        long crc = unsignedInt(member, end);
+        long contentSize = unsignedInt(member, end + 4);
+        if (contentSize > Integer.MAX_VALUE - 8) {
+            throw new ZipException("GZIP member too large.");
+        }
+        byte[] contents = new byte[(int) contentSize];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(member, start, end - start);
+            int length = 0;
+            while (length < contents.length) {
+                int n = inflater.inflate(contents, length, contents.length - length);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new ZipException("GZIP member shorter than its size.");
+                }
+                length += n;
+            }
+            if (!inflater.finished() && (inflater.inflate(new byte[1]) > 0 || !inflater.finished())) {
+                throw new ZipException("GZIP member longer than its size.");
+            }
+        } catch (DataFormatException ex) {
+            throw new ZipException(ex.getMessage());
+        } finally {
+            inflater.end();
+        }
+
+        CRC32 checksum = new CRC32();
+        checksum.update(contents, 0, contents.length);
+        if (checksum.getValue() != crc) {
+            throw new ZipException("Corrupt GZIP member, CRC-32 mismatch.");
+        }
+        return contents;
+    }
+
+    /**
+     * Reads a little-endian unsigned short.
+     *
+     * @param bytes bytes to read from
+     * @param offset offset of the value
+     * @return the value
+     */
+    private static int unsignedShort(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8;
+    }
+
+    /**
+     * Reads a little-endian unsigned int.
+     *
+     * @param bytes bytes to read from
+     * @param offset offset of the value
+     * @return the value
+     */
+    private static long unsignedInt(byte[] bytes, int offset) {
+        return unsignedShort(bytes, offset) | (long) unsignedShort(bytes, offset + 2) << 16;
+    }
+
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+
+/**
+ * A computation collapsing every run of consecutive additions and
+ * subtractions into a single addition, and every run of consecutive
+ * multiplications into a single multiplication, as the commands arrive.
+ * <p>
+ * Unlike {@link FoldingComputation} it never carries an addition across
+ * a multiplication, so it costs a single exact operation per command
+ * collapsed. Exact decimal arithmetic gives the same value and also
+ * the same scale as applying the commands one by one: the scale of a sum
+ * is the largest scale of the addends and the scale of a product is the sum
+ * of the scales. Sums and products of integers are kept as long while they
+ * fit, so {@link TieredEvaluator} still sees them as integers. Rounding each
+ * intermediate result to a precision gives different results than rounding
+ * the collapsed ones.
+ * <p>
+ * Computations are created by a {@link PeepholeOptimizer}, which may
+ * disable collapsing and which counts the commands removed.
+ *
+ * @author janvojt
+ */
+public class PeepholeComputation extends Computation {
+
+    /** Optimizer this computation was created by. */
+    private final PeepholeOptimizer optimizer;
+
+    /** Operation of the collapsed run, ADD or MULTIPLY, null if none. */
+    private Operation run;
+
+    /** The first command of the current run. */
+    private Command first;
+
+    /** Number of commands in the current run. */
+    private int length;
+
+    /** Whether the collapsed value is kept as {@link #longValue}. */
+    private boolean isLong;
+
+    /** Collapsed integer value of the current run. */
+    private long longValue;
+
+    /** Collapsed decimal value of the current run. */
+    private BigDecimal value;
+
+    /** Number of commands given since the counters were last published. */
+    private long given;
+
+    /** Number of commands queued since the counters were last published. */
+    private long queued;
+
+    /**
+     * Constructs the computation.
+     *
+     * @param optimizer optimizer switching and counting the collapsing
+     */
+    PeepholeComputation(PeepholeOptimizer optimizer) {
+        this.optimizer = optimizer;
+    }
+
+    @Override
+    public void pushCommand(Command command) {
+        Operation operation = command.getOperation();
+        if (Operation.APPLY.equals(operation)) {
+            super.pushCommand(command);
+            return;
+        }
+        given++;
+        Operation kind = Operation.SUBTRACT.equals(operation) ? Operation.ADD : operation;
+        if (run != null && run.equals(kind)) {
+            collapse(command);
+        } else {
+            flush();
+            if (!Operation.DIVIDE.equals(kind) && optimizer.isEnabled()) {
+                start(kind, command);
+            } else {
+                queue(command);
+            }
+        }
+    }
+
+    @Override
+    public Command popCommand() {
+        flush();
+        return super.popCommand();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        flush();
+        if (super.isEmpty()) {
+            publish();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void clear() {
+        run = null;
+        first = null;
+        value = null;
+        super.clear();
+        publish();
+    }
+
+    /**
+     * Starts a new run with the given command.
+     *
+     * @param kind ADD or MULTIPLY
+     * @param command the first command of the run
+     */
+    private void start(Operation kind, Command command) {
+        run = kind;
+        first = command;
+        length = 1;
+        isLong = command.isLongValue();
+        longValue = isLong ? command.getLongValue() : 0;
+        if (isLong && Operation.SUBTRACT.equals(command.getOperation())) {
+            // the negation of the smallest long does not fit
+            isLong = longValue != Long.MIN_VALUE;
+            longValue = -longValue;
+        }
+        if (!isLong) {
+            value = signed(command);
+        }
+    }
+
+    /**
+     * Collapses the command into the current run.
+     *
+     * @param command command of the same kind as the run
+     */
+    private void collapse(Command command) {
+        if (!optimizer.isEnabled()) {
+            flush();
+            queue(command);
+            return;
+        }
+        length++;
+        if (isLong && command.isLongValue()) {
+            long operand = command.getLongValue();
+            try {
+                if (Operation.MULTIPLY.equals(run)) {
+                    longValue = Math.multiplyExact(longValue, operand);
+                } else if (Operation.SUBTRACT.equals(command.getOperation())) {
+                    longValue = Math.subtractExact(longValue, operand);
+                } else {
+                    longValue = Math.addExact(longValue, operand);
+                }
+                return;
+            } catch (ArithmeticException ex) {
+                // overflow, continue in decimal arithmetic
+            }
+        }
+        if (isLong) {
+            value = BigDecimal.valueOf(longValue);
+            isLong = false;
+        }
+        value = Operation.MULTIPLY.equals(run)
+                ? value.multiply(command.getValue())
+                : value.add(signed(command));
+    }
+
+    /**
+     * Closes the current run by queuing its collapsed command.
+     */
+    private void flush() {
+        if (run == null) {
+            return;
+        }
+        if (length == 1) {
+            queue(first);
+        } else if (isLong) {
+            queue(new LongCommand(run, longValue));
+        } else {
+            queue(new Command(run, value));
+        }
+        run = null;
+        first = null;
+        value = null;
+    }
+
+    /**
+     * Queues the command for evaluation.
+     *
+     * @param command command to queue
+     */
+    private void queue(Command command) {
+        queued++;
+        super.pushCommand(command);
+    }
+
+    /**
+     * Adds the commands given and removed since the last call
+     * to the counters of the optimizer. Counting them in the computation
+     * keeps the shared counters out of the path of every command.
+     */
+    private void publish() {
+        if (given > 0) {
+            optimizer.record(given, given - queued);
+            given = 0;
+            queued = 0;
+        }
+    }
+
+    /**
+     * Gives the value the command adds to the result.
+     *
+     * @param command addition, subtraction or multiplication
+     * @return the value, negated for a subtraction
+     */
+    private static BigDecimal signed(Command command) {
+        return Operation.SUBTRACT.equals(command.getOperation())
+                ? command.getValue().negate()
+                : command.getValue();
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Factory of {@link PeepholeComputation}s which collapse runs of consecutive
+ * additions and subtractions, or of consecutive multiplications, into
+ * a single command each as the commands arrive.
+ * <p>
+ * The optimizer may be {@link #setEnabled(boolean) disabled} at any time,
+ * its computations then queue the following commands as they are. It counts
+ * the commands its computations were given and the commands they removed,
+ * over all the computations it created. A computation adds to the counts
+ * once it is read through or cleared.
+ *
+ * @author janvojt
+ */
+public class PeepholeOptimizer implements ComputationFactory {
+
+    /** Whether runs of commands are collapsed. */
+    private volatile boolean enabled = true;
+
+    /** Number of commands given to the computations, not counting apply. */
+    private final LongAdder commands = new LongAdder();
+
+    /** Number of commands removed by collapsing them into others. */
+    private final LongAdder removed = new LongAdder();
+
+    @Override
+    public Computation createComputation() {
+        return new PeepholeComputation(this);
+    }
+
+    /** @return whether runs of commands are collapsed */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** @param enabled whether runs of commands are collapsed */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /** @return number of commands given to the computations, not counting apply */
+    public long getCommands() {
+        return commands.sum();
+    }
+
+    /** @return number of commands removed by collapsing them into others */
+    public long getRemoved() {
+        return removed.sum();
+    }
+
+    /** Resets the counters. */
+    public void reset() {
+        commands.reset();
+        removed.reset();
+    }
+
+    /**
+     * Counts the commands given to a computation.
+     *
+     * @param given number of commands given
+     * @param gone number of commands removed out of them
+     */
+    void record(long given, long gone) {
+        commands.add(given);
+        removed.add(gone);
+    }
+
+    @Override
+    public String toString() {
+        long given = getCommands();
+        long gone = getRemoved();
+        return String.format("Peephole optimizer removed %d of %d commands (%.1f%%)",
+                gone, given, given == 0 ? 0.0 : 100.0 * gone / given);
+    }
+
+}
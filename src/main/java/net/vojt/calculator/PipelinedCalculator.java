@@ -0,0 +1,588 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Calculator processing its input in a pipeline of stages running
+ * on separate threads, so that reading, parsing, evaluation and writing
+ * overlap. The stages are connected by bounded single-producer
+ * single-consumer queues:
+ * <ol>
+ * <li>read stage filling byte chunks from the input channel,</li>
+ * <li>parse stage splitting the chunks into lines and parsing them
+ * by {@link AsciiCommandParser} straight into the slots
+ * of a {@link CommandRingBuffer},</li>
+ * <li>evaluation stage collecting the commands into computations
+ * and formatting the results into output chunks,</li>
+ * <li>write stage on the calling thread writing the output chunks.</li>
+ * </ol>
+ * Chunks are recycled from the parse stage back to the read stage.
+ * Input is expected to be ASCII text. Computations are evaluated by
+ * a single thread, so the {@link Evaluator} need not be thread-safe.
+ * <p>
+ * Output is handed over to the write stage whenever the evaluation
+ * stage runs out of computations or the output chunk fills up, so
+ * results of a typed input are written right away.
+ *
+ * @author janvojt
+ */
+public class PipelinedCalculator extends InteractiveCalculator {
+
+    /** Default size of a single input chunk. */
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    /** Default capacity of the queues between the stages. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /** Number of command slots claimed by the parse stage at once. */
+    private static final int CLAIM_BATCH = 64;
+
+    /** Number of input chunks in flight. */
+    private static final int CHUNK_COUNT = 4;
+
+    /** Size of an output chunk handed over when full. */
+    private static final int OUTPUT_CHUNK_SIZE = 64 * 1024;
+
+    /** Operation code of the apply command. */
+    private static final byte APPLY = (byte) Operation.APPLY.ordinal();
+
+    /** Input channel with commands. */
+    private ReadableByteChannel channel;
+
+    /** Size of a single input chunk. */
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    /** Capacity of the queues between the stages. */
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    /** Way of waiting for the commands and for their slots. */
+    private WaitStrategy waitStrategy = WaitStrategy.PARK;
+
+    /** Filled input chunks passed from the read stage to the parse stage. */
+    private SpscQueue<ByteBuffer> chunks;
+
+    /** Processed input chunks passed back to the read stage. */
+    private SpscQueue<ByteBuffer> freeChunks;
+
+    /** Parsed commands passed to the evaluation stage. */
+    private CommandRingBuffer commands;
+
+    /** Formatted output passed to the write stage. */
+    private SpscQueue<String> output;
+
+    /** First failure of any of the stages. */
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /** Number of bytes read, maintained by the read stage. */
+    private long bytesRead;
+
+    /** Number of lines parsed, maintained by the parse stage. */
+    private long lines;
+
+    /** Number of computations evaluated, maintained by the evaluation stage. */
+    private long computations;
+
+    /** Time spent by the last run in nanoseconds. */
+    private long nanos;
+
+    @Override
+    public void run() throws IOException {
+
+        // make sure channel/writer were correctly set
+        validate();
+
+        chunks = new SpscQueue<>(CHUNK_COUNT);
+        freeChunks = new SpscQueue<>(CHUNK_COUNT);
+        commands = new CommandRingBuffer(queueCapacity, waitStrategy);
+        output = new SpscQueue<>(queueCapacity);
+        failure.set(null);
+        bytesRead = 0;
+        lines = 0;
+        computations = 0;
+
+        long start = System.nanoTime();
+        Thread[] stages = {
+            new Thread(new ReadStage(), "calculator-read"),
+            new Thread(new ParseStage(), "calculator-parse"),
+            new Thread(new EvaluationStage(), "calculator-evaluate")
+        };
+        for (Thread stage : stages) {
+            stage.setDaemon(true);
+            stage.start();
+        }
+
+        try {
+            Writer writer = getWriter();
+            for (String text = output.take(); text != null; text = output.take()) {
+                writer.write(text);
+                writer.flush();
+            }
+            if (failure.get() == null) {
+                for (Thread stage : stages) {
+                    stage.join();
+                }
+            }
+        } catch (InterruptedException ex) {
+            if (failure.get() == null) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, new InterruptedIOException("Interrupted while writing output."));
+            }
+        } catch (IOException | RuntimeException | Error ex) {
+            failure.compareAndSet(null, ex);
+        } finally {
+            for (Thread stage : stages) {
+                stage.interrupt();
+            }
+        }
+        nanos = System.nanoTime() - start;
+
+        Throwable cause = failure.get();
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * Sets the input channel. The channel is read from its current position.
+     *
+     * @param channel input channel
+     */
+    public void setChannel(ReadableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Sets the size of a single input chunk.
+     *
+     * @param chunkSize chunk size in bytes
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive.");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Sets the capacity of the queues passing commands
+     * and output between the stages.
+     *
+     * @param queueCapacity queue capacity
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive.");
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Sets the way of waiting for the parsed commands and for free slots
+     * for them. The default {@link WaitStrategy#PARK} suits most machines,
+     * spinning pays off only when every stage has a processor of its own.
+     *
+     * @param waitStrategy way of waiting
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    @Override
+    protected boolean hasInput() {
+        return channel != null;
+    }
+
+    /** @return number of bytes read by the last run */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /** @return number of lines parsed by the last run */
+    public long getLines() {
+        return lines;
+    }
+
+    /** @return number of computations evaluated by the last run */
+    public long getComputations() {
+        return computations;
+    }
+
+    /** @return time spent by the last run in nanoseconds */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * Returns the average number of elements waiting in the queue
+     * in front of a stage, whenever the stage took an element.
+     * Elements are commands for the evaluation stage, which takes
+     * all the waiting commands at once.
+     *
+     * @param stage stage reading from the queue
+     * @return average queue depth
+     */
+    public double getAverageQueueDepth(Stage stage) {
+        if (stage == Stage.EVALUATE) {
+            return commands == null ? 0 : commands.getAverageDepth();
+        }
+        SpscQueue<?> queue = queue(stage);
+        return queue == null ? 0 : queue.getAverageDepth();
+    }
+
+    /**
+     * Returns the largest number of elements waiting in the queue
+     * in front of a stage, whenever the stage took an element.
+     *
+     * @param stage stage reading from the queue
+     * @return largest queue depth
+     */
+    public long getMaxQueueDepth(Stage stage) {
+        if (stage == Stage.EVALUATE) {
+            return commands == null ? 0 : commands.getMaxDepth();
+        }
+        SpscQueue<?> queue = queue(stage);
+        return queue == null ? 0 : queue.getMaxDepth();
+    }
+
+    /**
+     * Finds the element queue in front of a stage.
+     *
+     * @param stage stage reading from the queue, other than evaluation
+     * @return the queue, null before the first run
+     */
+    private SpscQueue<?> queue(Stage stage) {
+        switch (stage) {
+            case PARSE :
+                return chunks;
+            case WRITE :
+                return output;
+            default :
+                throw new IllegalArgumentException("Stage has no input queue: " + stage);
+        }
+    }
+
+    /**
+     * Records the failure of a stage and stops the other stages.
+     *
+     * @param cause failure of the stage
+     */
+    private void fail(Throwable cause) {
+        if (failure.compareAndSet(null, cause)) {
+            // unblock the write stage, interrupting the others in turn
+            output.close();
+        }
+    }
+
+    /**
+     * Stages of the pipeline reading from a queue.
+     */
+    public enum Stage {
+
+        /** Stage splitting and parsing the input chunks. */
+        PARSE,
+
+        /** Stage evaluating complete computations. */
+        EVALUATE,
+
+        /** Stage writing the output. */
+        WRITE
+    }
+
+    /**
+     * Base of the stages running on their own threads.
+     */
+    private abstract class StageTask implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                process();
+            } catch (InterruptedException ex) {
+                // stopped by a failure elsewhere
+            } catch (IOException | RuntimeException | Error ex) {
+                fail(ex);
+            }
+        }
+
+        /**
+         * Processes the stage input until it ends.
+         *
+         * @throws IOException in case of I/O error
+         * @throws InterruptedException when stopped
+         */
+        abstract void process() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Stage reading the input into chunks.
+     */
+    private class ReadStage extends StageTask {
+
+        @Override
+        void process() throws IOException, InterruptedException {
+            int allocated = 0;
+            while (true) {
+                ByteBuffer chunk;
+                if (allocated < CHUNK_COUNT) {
+                    chunk = ByteBuffer.allocate(chunkSize);
+                    allocated++;
+                } else {
+                    chunk = freeChunks.take();
+                    chunk.clear();
+                }
+                int n = channel.read(chunk);
+                if (n < 0) {
+                    chunks.close();
+                    return;
+                }
+                bytesRead += n;
+                chunk.flip();
+                chunks.put(chunk);
+            }
+        }
+    }
+
+    /**
+     * Stage splitting the chunks into lines and parsing them
+     * into the command slots.
+     */
+    private class ParseStage extends StageTask {
+
+        /** Parser of commands given as bytes. */
+        private final AsciiCommandParser parser = new AsciiCommandParser();
+
+        /** Metrics to collect, null when not collected. */
+        private final CalculatorMetrics metrics = getMetrics();
+
+        /** Number of slots to claim at once. */
+        private final int batch = Math.min(CLAIM_BATCH, commands.capacity());
+
+        /** Sequence of the next slot to fill. */
+        private long next;
+
+        /** Sequence following the last claimed slot. */
+        private long claimEnd;
+
+        /** Sequence following the last published slot. */
+        private long publishEnd;
+
+        /** Beginning of a line continuing in the next chunk. */
+        private byte[] carry = new byte[256];
+
+        /** Length of the line beginning in the carry. */
+        private int carryLength;
+
+        /** Whether a line feed following a carriage return is to be skipped. */
+        private boolean skipLineFeed;
+
+        @Override
+        void process() throws InterruptedException {
+            for (ByteBuffer chunk = chunks.take(); chunk != null; chunk = chunks.take()) {
+                processChunk(chunk.array(), chunk.limit());
+                freeChunks.put(chunk);
+                publish();
+            }
+
+            // last line need not be terminated
+            if (carryLength > 0) {
+                processLine(carry, 0, carryLength);
+            }
+            publish();
+            commands.close();
+        }
+
+        /**
+         * Processes all the complete lines in the chunk. Line terminators
+         * are the same as for {@link java.io.BufferedReader#readLine()}.
+         *
+         * @param bytes chunk bytes
+         * @param end length of the chunk
+         * @throws InterruptedException when stopped
+         */
+        private void processChunk(byte[] bytes, int end) throws InterruptedException {
+            int lineStart = 0;
+            for (int i = 0; i < end; i++) {
+                byte b = bytes[i];
+                if (skipLineFeed) {
+                    skipLineFeed = false;
+                    if (b == '\n') {
+                        lineStart = i + 1;
+                        continue;
+                    }
+                }
+                if (b == '\n' || b == '\r') {
+                    if (carryLength > 0) {
+                        append(bytes, lineStart, i);
+                        processLine(carry, 0, carryLength);
+                        carryLength = 0;
+                    } else {
+                        processLine(bytes, lineStart, i);
+                    }
+                    skipLineFeed = b == '\r';
+                    lineStart = i + 1;
+                }
+            }
+            append(bytes, lineStart, end);
+        }
+
+        /**
+         * Appends a part of a line to the carry.
+         *
+         * @param bytes chunk bytes
+         * @param start index of the first byte to append
+         * @param end index following the last byte to append
+         */
+        private void append(byte[] bytes, int start, int end) {
+            int length = end - start;
+            if (carryLength + length > carry.length) {
+                carry = Arrays.copyOf(carry, Math.max(2 * carry.length, carryLength + length));
+            }
+            System.arraycopy(bytes, start, carry, carryLength, length);
+            carryLength += length;
+        }
+
+        /**
+         * Parses a single line into the next slot, claiming more slots
+         * when needed.
+         *
+         * @param bytes line bytes
+         * @param start index of the first byte of the line
+         * @param end index following the last byte of the line
+         * @throws InterruptedException when stopped
+         */
+        private void processLine(byte[] bytes, int start, int end) throws InterruptedException {
+            lines++;
+            if (next == claimEnd) {
+                // the evaluation stage may be waiting for the filled slots
+                publish();
+                next = commands.next(batch);
+                claimEnd = next + batch;
+            }
+            long begin = metrics == null ? 0 : System.nanoTime();
+            try {
+                parser.parse(bytes, start, end, commands, next);
+            } catch (InvalidCommandSyntaxException ex) {
+                commands.set(next, CommandRingBuffer.INVALID, 0, 0);
+            }
+            if (metrics != null) {
+                metrics.recordParse(commands.operation(next), System.nanoTime() - begin);
+            }
+            next++;
+        }
+
+        /**
+         * Publishes the filled slots.
+         */
+        private void publish() {
+            if (next > publishEnd) {
+                commands.publish(next - 1);
+                publishEnd = next;
+            }
+        }
+    }
+
+    /**
+     * Stage collecting the commands into computations, evaluating them
+     * and formatting the output.
+     */
+    private class EvaluationStage extends StageTask {
+
+        /** Output not handed over yet. */
+        private final StringBuilder text = new StringBuilder();
+
+        /** Metrics to collect, null when not collected. */
+        private final CalculatorMetrics metrics = getMetrics();
+
+        @Override
+        void process() throws InterruptedException {
+            Evaluator eval = getEval();
+            Computation comp = getComputationFactory().createComputation();
+            long next = 0;
+            for (long last = commands.waitFor(next); last >= 0; last = commands.waitFor(next)) {
+                for (; next <= last; next++) {
+                    byte op = commands.op(next);
+                    if (op == CommandRingBuffer.INVALID) {
+                        text.append(ERROR_PREFIX).append(INVALID_COMMAND).append('\n');
+                    } else {
+                        commands.pushTo(next, comp);
+                        if (op == APPLY) {
+                            evaluate(eval, comp);
+                        }
+                    }
+                    if (text.length() >= OUTPUT_CHUNK_SIZE) {
+                        output.put(text.toString());
+                        text.setLength(0);
+                    }
+                }
+                commands.release(last);
+
+                // hand over the output once there is nothing else to do
+                if (text.length() > 0 && !commands.isAvailable(next)) {
+                    output.put(text.toString());
+                    text.setLength(0);
+                }
+            }
+            if (text.length() > 0) {
+                output.put(text.toString());
+            }
+            output.close();
+        }
+
+        /**
+         * Evaluates the computation and formats its output.
+         *
+         * @param eval evaluator to use
+         * @param comp computation to evaluate
+         */
+        private void evaluate(Evaluator eval, Computation comp) {
+            computations++;
+            long start = metrics == null ? 0 : System.nanoTime();
+            try {
+                BigDecimal result = eval.evaluate(comp);
+                if (metrics != null) {
+                    metrics.recordEvaluation(System.nanoTime() - start, false);
+                }
+                text.append(RESULT_PREFIX).append(result.toString()).append('\n');
+            } catch (ArithmeticException ex) {
+                if (metrics != null) {
+                    metrics.recordEvaluation(System.nanoTime() - start, true);
+                }
+                comp.clear();
+                text.append(ERROR_PREFIX).append(ex.getMessage()).append('\n');
+            }
+        }
+    }
+
+}
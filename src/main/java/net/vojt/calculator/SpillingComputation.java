@@ -0,0 +1,445 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.NoSuchElementException;
+
+/**
+ * A computation keeping a bounded number of commands on the heap and
+ * spilling the rest into a temporary file, so that a computation of any
+ * length can be buffered until its "apply" command.
+ * <p>
+ * Commands up to the threshold are kept as in a plain {@link Computation}.
+ * Once the threshold is passed, all the following commands are encoded
+ * through an off-heap buffer into a temporary file, which is read back
+ * the same way by the {@link #advance() cursor} as the computation is
+ * evaluated. The file is deleted as soon as it is read or the computation
+ * is {@link #clear() cleared}. I/O errors are reported as
+ * {@link UncheckedIOException}.
+ *
+ * @author janvojt
+ */
+public class SpillingComputation extends Computation {
+
+    /** Default number of commands kept on the heap. */
+    public static final int DEFAULT_THRESHOLD = 1 << 20;
+
+    /** Factory of spilling computations with the default threshold. */
+    public static final ComputationFactory FACTORY = factory(DEFAULT_THRESHOLD);
+
+    /** Size of the off-heap buffers for writing and reading the file. */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /** Record kind of a value kept as an unscaled long and scale. */
+    private static final byte LONG_VALUE = 0;
+
+    /** Record kind of a value kept as unscaled bytes and scale. */
+    private static final byte DECIMAL_VALUE = 1;
+
+    /** Size of the longest record header, op, kind, long and scale. */
+    private static final int HEADER_SIZE = 2 + 8 + 4;
+
+    /** All the operations indexed by their ordinal. */
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    /** Number of commands kept on the heap. */
+    private final int threshold;
+
+    /** Directory for the temporary file. */
+    private final Path directory;
+
+    /** Number of commands on the heap. */
+    private int heapCount;
+
+    /** Temporary file with spilled commands, null when not spilling. */
+    private FileChannel spill;
+
+    /** Buffer of encoded commands not written into the file yet. */
+    private ByteBuffer writeBuffer;
+
+    /** Buffer of commands read from the file and not decoded yet. */
+    private ByteBuffer readBuffer;
+
+    /** File position the write buffer is written to. */
+    private long writePosition;
+
+    /** File position the read buffer is filled from. */
+    private long readPosition;
+
+    /** Number of spilled commands not read yet. */
+    private long spilledCount;
+
+    /** Whether the current command comes from the file. */
+    private boolean spilledCurrent;
+
+    /** Operation of the current spilled command. */
+    private Operation currentOperation;
+
+    /** Unscaled value of the current spilled command. */
+    private long currentUnscaled;
+
+    /** Scale of the current spilled command. */
+    private int currentScale;
+
+    /** Value of the current spilled command, if not fitting into a long. */
+    private BigDecimal currentDecimal;
+
+    /**
+     * Constructs a computation with the default threshold spilling
+     * into the default temporary directory.
+     */
+    public SpillingComputation() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Constructs a computation spilling into the default temporary directory.
+     *
+     * @param threshold number of commands kept on the heap
+     */
+    public SpillingComputation(int threshold) {
+        this(threshold, Paths.get(System.getProperty("java.io.tmpdir")));
+    }
+
+    /**
+     * Constructs a computation.
+     *
+     * @param threshold number of commands kept on the heap
+     * @param directory directory for the temporary file
+     */
+    public SpillingComputation(int threshold, Path directory) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Spill threshold must not be negative: " + threshold);
+        }
+        this.threshold = threshold;
+        this.directory = directory;
+    }
+
+    /**
+     * Creates a factory of spilling computations.
+     *
+     * @param threshold number of commands kept on the heap
+     * @return the factory
+     */
+    public static ComputationFactory factory(final int threshold) {
+        return new ComputationFactory() {
+            @Override
+            public Computation createComputation() {
+                return new SpillingComputation(threshold);
+            }
+        };
+    }
+
+    /**
+     * Checks whether the computation is a spilling one with commands
+     * in its file, so that callers can avoid reading it all into memory.
+     *
+     * @param computation computation to check
+     * @return whether the computation has spilled
+     */
+    static boolean isSpilled(Computation computation) {
+        return computation instanceof SpillingComputation
+                && ((SpillingComputation) computation).isSpilled();
+    }
+
+    /** @return whether there are commands in the temporary file */
+    public boolean isSpilled() {
+        return spilledCount > 0;
+    }
+
+    @Override
+    public void pushCommand(Command command) {
+        if (Operation.APPLY.equals(command.getOperation())) {
+            setInitializer(command.getValue());
+        } else if (spilledCount == 0 && heapCount < threshold) {
+            super.pushCommand(command);
+            heapCount++;
+        } else if (command.isLongValue()) {
+            spill(command.getOperation(), command.getLongValue(), 0);
+        } else {
+            spill(command.getOperation(), command.getValue());
+        }
+    }
+
+    @Override
+    public void push(Operation operation, long unscaled, int scale) {
+        if (Operation.APPLY.equals(operation) || (spilledCount == 0 && heapCount < threshold)) {
+            super.push(operation, unscaled, scale);
+        } else {
+            spill(operation, unscaled, scale);
+        }
+    }
+
+    @Override
+    public void push(Operation operation, BigDecimal value) {
+        if (Operation.APPLY.equals(operation) || (spilledCount == 0 && heapCount < threshold)) {
+            super.push(operation, value);
+        } else {
+            spill(operation, value);
+        }
+    }
+
+    @Override
+    public Command popCommand() {
+        if (heapCount > 0) {
+            heapCount--;
+            return super.popCommand();
+        }
+        if (!readSpilled()) {
+            throw new NoSuchElementException();
+        }
+        return currentDecimal == null && currentScale == 0
+                ? new LongCommand(currentOperation, currentUnscaled)
+                : new Command(currentOperation, spilledValue());
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return heapCount == 0 && spilledCount == 0;
+    }
+
+    @Override
+    public boolean advance() {
+        if (heapCount > 0) {
+            spilledCurrent = false;
+            return super.advance();
+        }
+        spilledCurrent = readSpilled();
+        return spilledCurrent;
+    }
+
+    @Override
+    public Operation currentOperation() {
+        return spilledCurrent ? currentOperation : super.currentOperation();
+    }
+
+    @Override
+    public BigDecimal currentValue() {
+        return spilledCurrent ? spilledValue() : super.currentValue();
+    }
+
+    @Override
+    public boolean isCurrentLong() {
+        return spilledCurrent
+                ? currentDecimal == null && currentScale == 0
+                : super.isCurrentLong();
+    }
+
+    @Override
+    public long currentLong() {
+        return spilledCurrent ? currentUnscaled : super.currentLong();
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        heapCount = 0;
+        closeSpill();
+    }
+
+    /**
+     * Appends a command with a value fitting into a long to the file.
+     *
+     * @param operation command operation
+     * @param unscaled unscaled value
+     * @param scale value scale
+     */
+    private void spill(Operation operation, long unscaled, int scale) {
+        ByteBuffer buffer = reserve(HEADER_SIZE);
+        buffer.put((byte) operation.ordinal());
+        buffer.put(LONG_VALUE);
+        buffer.putLong(unscaled);
+        buffer.putInt(scale);
+        spilledCount++;
+    }
+
+    /**
+     * Appends a command with any value to the file.
+     *
+     * @param operation command operation
+     * @param value command value
+     */
+    private void spill(Operation operation, BigDecimal value) {
+        BigInteger unscaled = value.unscaledValue();
+        if (unscaled.bitLength() < Long.SIZE) {
+            spill(operation, unscaled.longValue(), value.scale());
+            return;
+        }
+
+        byte[] bytes = unscaled.toByteArray();
+        ByteBuffer buffer = reserve(HEADER_SIZE);
+        buffer.put((byte) operation.ordinal());
+        buffer.put(DECIMAL_VALUE);
+        buffer.putInt(value.scale());
+        buffer.putInt(bytes.length);
+        for (int offset = 0; offset < bytes.length; ) {
+            int length = Math.min(bytes.length - offset, buffer.remaining());
+            buffer.put(bytes, offset, length);
+            offset += length;
+            if (offset < bytes.length) {
+                buffer = reserve(1);
+            }
+        }
+        spilledCount++;
+    }
+
+    /**
+     * Reads the next spilled command into the current command fields.
+     *
+     * @return whether there was a spilled command to read
+     */
+    private boolean readSpilled() {
+        if (spilledCount == 0) {
+            closeSpill();
+            return false;
+        }
+        spilledCount--;
+
+        ByteBuffer buffer = fill(2);
+        currentOperation = OPERATIONS[buffer.get()];
+        if (buffer.get() == LONG_VALUE) {
+            buffer = fill(12);
+            currentUnscaled = buffer.getLong();
+            currentScale = buffer.getInt();
+            currentDecimal = null;
+        } else {
+            buffer = fill(8);
+            currentScale = buffer.getInt();
+            byte[] bytes = new byte[buffer.getInt()];
+            for (int offset = 0; offset < bytes.length; ) {
+                buffer = fill(1);
+                int length = Math.min(bytes.length - offset, buffer.remaining());
+                buffer.get(bytes, offset, length);
+                offset += length;
+            }
+            currentDecimal = new BigDecimal(new BigInteger(bytes), currentScale);
+        }
+        return true;
+    }
+
+    /** @return value of the last spilled command read */
+    private BigDecimal spilledValue() {
+        return currentDecimal != null
+                ? currentDecimal
+                : BigDecimal.valueOf(currentUnscaled, currentScale);
+    }
+
+    /**
+     * Makes room for writing into the write buffer, opening the file
+     * and writing out the buffer as needed.
+     *
+     * @param size number of bytes needed, at most the buffer size
+     * @return the write buffer
+     */
+    private ByteBuffer reserve(int size) {
+        try {
+            if (spill == null) {
+                Path file = Files.createTempFile(directory, "calculator", ".spill");
+                spill = FileChannel.open(file, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+                if (writeBuffer == null) {
+                    writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                    readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                }
+                writeBuffer.clear();
+                readBuffer.clear();
+                readBuffer.limit(0);
+                writePosition = 0;
+                readPosition = 0;
+            }
+            if (writeBuffer.remaining() < size) {
+                flush();
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Could not spill the computation.", ex);
+        }
+        return writeBuffer;
+    }
+
+    /**
+     * Makes the given number of bytes available in the read buffer,
+     * reading them from the file or taking them from the write buffer.
+     *
+     * @param size number of bytes needed, at most the header size
+     * @return the read buffer
+     */
+    private ByteBuffer fill(int size) {
+        if (readBuffer.remaining() >= size) {
+            return readBuffer;
+        }
+        try {
+            // commands may not be written out yet
+            flush();
+            readBuffer.compact();
+            while (readBuffer.position() < size) {
+                int read = spill.read(readBuffer, readPosition);
+                if (read < 0) {
+                    throw new IOException("Spilled commands are truncated.");
+                }
+                readPosition += read;
+            }
+            readBuffer.flip();
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Could not read the spilled computation.", ex);
+        }
+        return readBuffer;
+    }
+
+    /**
+     * Writes out the write buffer.
+     *
+     * @throws IOException in case of I/O error
+     */
+    private void flush() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            writePosition += spill.write(writeBuffer, writePosition);
+        }
+        writeBuffer.clear();
+    }
+
+    /**
+     * Closes and thereby deletes the temporary file, if any.
+     */
+    private void closeSpill() {
+        spilledCount = 0;
+        spilledCurrent = false;
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Could not delete the spilled computation.", ex);
+            } finally {
+                spill = null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+/**
+ * Bounded queue passing elements from a single producer thread
+ * to a single consumer thread. The producer {@link #close() closes}
+ * the queue after its last element.
+ * <p>
+ * Waiting threads follow {@link WaitStrategy#PARK}, checking for
+ * interruption in between. The sequences and the consumer state are padded
+ * against false sharing the same way as in {@link CommandRingBuffer}.
+ *
+ * @param <E> type of the elements
+ * @author janvojt
+ */
+final class SpscQueue<E> {
+
+    /** Elements indexed by their sequence modulo capacity. */
+    private final Object[] buffer;
+
+    /** Mask giving the buffer index of a sequence. */
+    private final int mask;
+
+    /** Sequence of the next element to take. */
+    private final CommandRingBuffer.Sequence head = new CommandRingBuffer.Sequence();
+
+    /** Sequence of the next element to put. */
+    private final CommandRingBuffer.Sequence tail = new CommandRingBuffer.Sequence();
+
+    /** Whether the producer has put its last element. */
+    private volatile boolean closed;
+
+    /** Queue depths seen by the consumer. */
+    private final CommandRingBuffer.ConsumerCursor consumer = new CommandRingBuffer.ConsumerCursor();
+
+    /**
+     * Constructs the queue.
+     *
+     * @param capacity minimum capacity, rounded up to a power of two
+     */
+    SpscQueue(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid queue capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.buffer = new Object[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Puts the element, waiting while the queue is full.
+     * Called by the producer only.
+     *
+     * @param element element to put
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void put(E element) throws InterruptedException {
+        long t = tail.get();
+        for (int rounds = 0; t - head.get() == buffer.length; rounds++) {
+            idle(rounds);
+        }
+        buffer[(int) t & mask] = element;
+        tail.lazySet(t + 1);
+    }
+
+    /**
+     * Takes the oldest element, waiting while the queue is empty.
+     * Called by the consumer only.
+     *
+     * @return the oldest element, null when the queue is closed and empty
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @SuppressWarnings("unchecked")
+    E take() throws InterruptedException {
+        long h = head.get();
+        long t = tail.get();
+        for (int rounds = 0; t == h; rounds++) {
+            if (closed) {
+                // elements put before closing are visible now
+                t = tail.get();
+                if (t == h) {
+                    return null;
+                }
+                break;
+            }
+            idle(rounds);
+            t = tail.get();
+        }
+
+        consumer.recordDepth(t - h);
+
+        int index = (int) h & mask;
+        E element = (E) buffer[index];
+        buffer[index] = null;
+        head.lazySet(h + 1);
+        return element;
+    }
+
+    /**
+     * Marks that no more elements will be put.
+     * Called by the producer only.
+     */
+    void close() {
+        closed = true;
+    }
+
+    /** @return whether there are no elements to take */
+    boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    /** @return number of elements taken */
+    long getTaken() {
+        return consumer.samples;
+    }
+
+    /** @return average number of elements waiting when an element was taken */
+    double getAverageDepth() {
+        return consumer.getAverageDepth();
+    }
+
+    /** @return largest number of elements waiting when an element was taken */
+    int getMaxDepth() {
+        return (int) consumer.maxDepth;
+    }
+
+    /**
+     * Waits for the other thread in a single idle round.
+     *
+     * @param rounds number of idle rounds so far
+     * @throws InterruptedException if interrupted
+     */
+    private static void idle(int rounds) throws InterruptedException {
+        WaitStrategy.PARK.idle(rounds);
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+}
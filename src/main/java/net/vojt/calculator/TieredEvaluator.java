@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * Evaluates the computation in exact long arithmetic while all the values
+ * are integers, falling back to {@link BigDecimal} arithmetic on overflow,
+ * a fractional value or a division with a remainder.
+ * <p>
+ * Integers of scale zero are operated with as long as the intermediate
+ * result stays an integer of scale zero in decimal arithmetic too,
+ * so the result is the same as from {@link EvaluatorImpl}. Long arithmetic
+ * is used only when exact or when the precision holds any long, as no long
+ * result would be rounded then.
+ *
+ * @author janvojt
+ */
+public class TieredEvaluator extends EvaluatorImpl {
+
+    /** Number of digits of the longest long value. */
+    private static final int LONG_DIGITS = 19;
+
+    /**
+     * Constructs an evaluator computing exactly.
+     */
+    public TieredEvaluator() {
+        super();
+    }
+
+    /**
+     * Constructs an evaluator.
+     *
+     * @param mathContext precision and rounding of the operations
+     */
+    public TieredEvaluator(MathContext mathContext) {
+        super(mathContext);
+    }
+
+    @Override
+    public BigDecimal evaluate(Computation computation) {
+
+        BigDecimal initializer = computation.getInitializer();
+        int precision = getMathContext().getPrecision();
+        if (initializer == null || (precision > 0 && precision < LONG_DIGITS)) {
+            return super.evaluate(computation);
+        }
+        initializer = skipIrrelevant(initializer, computation);
+        if (!Command.isLong(initializer)) {
+            return evaluate(initializer, computation);
+        }
+
+        // iteratively apply the operations as long as possible
+        long result = initializer.longValue();
+        while (computation.advance()) {
+            if (computation.isCurrentLong()) {
+                long value = computation.currentLong();
+                try {
+                    switch (computation.currentOperation()) {
+                        case ADD :
+                            result = Math.addExact(result, value);
+                            continue;
+                        case SUBTRACT :
+                            result = Math.subtractExact(result, value);
+                            continue;
+                        case MULTIPLY :
+                            result = Math.multiplyExact(result, value);
+                            continue;
+                        case DIVIDE :
+                            if (value != 0 && result % value == 0 && !(result == Long.MIN_VALUE && value == -1)) {
+                                result /= value;
+                                continue;
+                            }
+                            break;
+                        default :
+                            break;
+                    }
+                } catch (ArithmeticException ex) {
+                    // overflow, the operation is repeated in decimal arithmetic
+                }
+            }
+
+            // finish the computation in decimal arithmetic
+            BigDecimal decimal = apply(BigDecimal.valueOf(result), computation.currentOperation(), computation.currentValue());
+            return evaluate(decimal, computation);
+        }
+
+        return BigDecimal.valueOf(result);
+    }
+
+}
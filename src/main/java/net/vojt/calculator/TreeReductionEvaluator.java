@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Evaluates long computations by reducing their commands in parallel.
+ * <p>
+ * Any run of additions, subtractions and multiplications is an affine map
+ * {@code x -> x * factor + addend}, and composition of the maps is
+ * associative. A run at least as long as the threshold is therefore split
+ * in halves by {@link RecursiveTask}s, the halves are reduced into maps
+ * on the threads of a {@link ForkJoinPool} and the maps are composed back
+ * on the way up. Only the map of the whole run is applied to the intermediate
+ * result. Balanced composition also keeps the operands of the exact products
+ * of similar size, which multiplies long values faster than adding a short
+ * operand at a time, even on a single thread.
+ * <p>
+ * Exact decimal arithmetic gives the same value and also the same scale
+ * as applying the commands one by one, see {@link FoldingComputation}.
+ * The scale of a division result depends on the value being divided though,
+ * so each division closes the run and is applied to the intermediate result
+ * in order, failing just like {@link EvaluatorImpl} does. Rounding
+ * an intermediate result cannot be moved across the other commands,
+ * so an evaluator with a precision applies all the commands one by one.
+ * So does the evaluator for a computation which has
+ * {@link SpillingComputation spilled}, as reducing it would read all
+ * of its commands back into memory.
+ *
+ * @author janvojt
+ */
+public class TreeReductionEvaluator extends EvaluatorImpl {
+
+    /** Default number of commands in a run worth reducing in parallel. */
+    public static final int DEFAULT_THRESHOLD = 1 << 14;
+
+    /** Number of commands reduced by a single task without splitting. */
+    private static final int LEAF_SIZE = 512;
+
+    /** Initial number of commands the buffers hold. */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Number of commands in a run worth reducing in parallel. */
+    private final int threshold;
+
+    /** Pool the runs are reduced in. */
+    private final ForkJoinPool pool;
+
+    /**
+     * Constructs an evaluator computing exactly, reducing runs of the default
+     * length in the common pool.
+     */
+    public TreeReductionEvaluator() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Constructs an evaluator computing exactly, reducing in the common pool.
+     *
+     * @param threshold number of commands in a run worth reducing in parallel
+     */
+    public TreeReductionEvaluator(int threshold) {
+        this(threshold, ForkJoinPool.commonPool(), MathContext.UNLIMITED);
+    }
+
+    /**
+     * Constructs an evaluator.
+     *
+     * @param threshold number of commands in a run worth reducing in parallel
+     * @param pool pool the runs are reduced in
+     * @param mathContext precision and rounding of the operations
+     */
+    public TreeReductionEvaluator(int threshold, ForkJoinPool pool, MathContext mathContext) {
+        super(mathContext);
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Invalid threshold: " + threshold);
+        }
+        if (pool == null) {
+            throw new IllegalArgumentException("Pool must not be null.");
+        }
+        this.threshold = threshold;
+        this.pool = pool;
+    }
+
+    @Override
+    protected BigDecimal evaluate(BigDecimal result, Computation computation) {
+        if (!isExact()) {
+            return super.evaluate(result, computation);
+        }
+        if (SpillingComputation.isSpilled(computation)) {
+            // far too long to hold in memory, apply the commands as they are read
+            return super.evaluate(result, computation);
+        }
+
+        Operation[] operations = new Operation[INITIAL_CAPACITY];
+        BigDecimal[] values = new BigDecimal[INITIAL_CAPACITY];
+        int count = 0;
+        while (computation.advance()) {
+            Operation operation = computation.currentOperation();
+            if (Operation.DIVIDE.equals(operation)) {
+                result = reduce(result, operations, values, count);
+                result = apply(result, operation, computation.currentValue());
+                count = 0;
+                continue;
+            }
+            if (count == operations.length) {
+                operations = Arrays.copyOf(operations, 2 * count);
+                values = Arrays.copyOf(values, 2 * count);
+            }
+            operations[count] = operation;
+            values[count++] = computation.currentValue();
+        }
+        return reduce(result, operations, values, count);
+    }
+
+    /**
+     * Applies a run of commands without division to the intermediate result.
+     *
+     * @param result intermediate result
+     * @param operations operations of the run
+     * @param values operation arguments
+     * @param count number of commands in the run
+     * @return new intermediate result
+     */
+    private BigDecimal reduce(BigDecimal result, Operation[] operations, BigDecimal[] values, int count) {
+        if (count < threshold) {
+            for (int i = 0; i < count; i++) {
+                result = apply(result, operations[i], values[i]);
+            }
+            return result;
+        }
+        return pool.invoke(new Reduction(operations, values, 0, count)).apply(result);
+    }
+
+    /**
+     * Affine map {@code x -> x * factor + addend}. Either part may be
+     * missing, as multiplying by one or adding zero could change the scale.
+     */
+    private static final class AffineMap {
+
+        /** Product of the multipliers, null if none. */
+        private final BigDecimal factor;
+
+        /** Addends scaled by later multipliers, null if none. */
+        private final BigDecimal addend;
+
+        /**
+         * Constructs the map.
+         *
+         * @param factor product of the multipliers, null if none
+         * @param addend addends scaled by later multipliers, null if none
+         */
+        AffineMap(BigDecimal factor, BigDecimal addend) {
+            this.factor = factor;
+            this.addend = addend;
+        }
+
+        /**
+         * Composes the map with the map applied after it.
+         *
+         * @param next map applied after this one
+         * @return the composed map
+         */
+        AffineMap andThen(AffineMap next) {
+            BigDecimal scaled = addend == null || next.factor == null ? addend : addend.multiply(next.factor);
+            return new AffineMap(multiply(factor, next.factor), add(scaled, next.addend));
+        }
+
+        /**
+         * Applies the map to the value.
+         *
+         * @param x value to map
+         * @return mapped value
+         */
+        BigDecimal apply(BigDecimal x) {
+            return add(multiply(x, factor), addend);
+        }
+
+        /** @return product of the values, either of them null if missing */
+        private static BigDecimal multiply(BigDecimal x, BigDecimal y) {
+            return x == null ? y : y == null ? x : x.multiply(y);
+        }
+
+        /** @return sum of the values, either of them null if missing */
+        private static BigDecimal add(BigDecimal x, BigDecimal y) {
+            return x == null ? y : y == null ? x : x.add(y);
+        }
+
+    }
+
+    /**
+     * Reduces a range of commands into an affine map, splitting ranges
+     * longer than {@link #LEAF_SIZE} in halves.
+     */
+    private static final class Reduction extends RecursiveTask<AffineMap> {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Operations of the run, additions, subtractions and multiplications. */
+        private final Operation[] operations;
+
+        /** Operation arguments. */
+        private final BigDecimal[] values;
+
+        /** Index of the first command in the range. */
+        private final int from;
+
+        /** Index following the last command in the range. */
+        private final int to;
+
+        /**
+         * Constructs the task.
+         *
+         * @param operations operations of the run
+         * @param values operation arguments
+         * @param from index of the first command in the range
+         * @param to index following the last command in the range
+         */
+        Reduction(Operation[] operations, BigDecimal[] values, int from, int to) {
+            this.operations = operations;
+            this.values = values;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected AffineMap compute() {
+            if (to - from <= LEAF_SIZE) {
+                return fold();
+            }
+            int middle = (from + to) >>> 1;
+            Reduction left = new Reduction(operations, values, from, middle);
+            left.fork();
+            AffineMap right = new Reduction(operations, values, middle, to).compute();
+            return left.join().andThen(right);
+        }
+
+        /**
+         * Folds the range one command at a time.
+         *
+         * @return map of the range
+         */
+        private AffineMap fold() {
+            BigDecimal factor = null;
+            BigDecimal addend = null;
+            for (int i = from; i < to; i++) {
+                BigDecimal value = values[i];
+                switch (operations[i]) {
+                    case ADD :
+                        addend = addend == null ? value : addend.add(value);
+                        break;
+                    case SUBTRACT :
+                        addend = addend == null ? value.negate() : addend.subtract(value);
+                        break;
+                    case MULTIPLY :
+                        factor = factor == null ? value : factor.multiply(value);
+                        if (addend != null) {
+                            addend = addend.multiply(value);
+                        }
+                        break;
+                    default :
+                        throw new RuntimeException("Unsupported operation : " + operations[i].toString());
+                }
+            }
+            return new AffineMap(factor, addend);
+        }
+
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ways of waiting for the other side of a {@link CommandRingBuffer}.
+ *
+ * @author janvojt
+ */
+public enum WaitStrategy {
+
+    /**
+     * Spins on the processor, lowest latency. Only suitable when both
+     * threads have a processor of their own.
+     */
+    BUSY_SPIN {
+        @Override
+        void idle(int rounds) {
+        }
+    },
+
+    /** Spins shortly, then yields the processor to other threads. */
+    YIELD {
+        @Override
+        void idle(int rounds) {
+            if (rounds >= SPIN_ROUNDS) {
+                Thread.yield();
+            }
+        }
+    },
+
+    /**
+     * Spins shortly, yields for a while and finally parks the thread
+     * for short periods. Uses the least processor time when idle.
+     */
+    PARK {
+        @Override
+        void idle(int rounds) {
+            if (rounds >= YIELD_ROUNDS) {
+                LockSupport.parkNanos(PARK_NANOS);
+            } else if (rounds >= SPIN_ROUNDS) {
+                Thread.yield();
+            }
+        }
+    };
+
+    /** Number of idle rounds spent spinning. */
+    private static final int SPIN_ROUNDS = 100;
+
+    /** Number of idle rounds spent yielding, including spinning. */
+    private static final int YIELD_ROUNDS = 200;
+
+    /** Time to park for in a single idle round. */
+    private static final long PARK_NANOS = 50000;
+
+    /**
+     * Waits for the other thread in a single idle round.
+     *
+     * @param rounds number of idle rounds so far
+     */
+    abstract void idle(int rounds);
+
+}
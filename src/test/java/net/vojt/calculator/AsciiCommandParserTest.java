@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test suite for {@link AsciiCommandParser}.
+ *
+ * @author janvojt
+ */
+public class AsciiCommandParserTest {
+
+    /** Tested instance. */
+    private AsciiCommandParser parser;
+
+    @Before
+    public void setUp() {
+        // create separate parser for each test for independent testing
+        parser = new AsciiCommandParser();
+    }
+
+    /**
+     * Test parsing an integer.
+     *
+     * @throws InvalidCommandSyntaxException
+     */
+    @Test
+    public void testParseInteger() throws InvalidCommandSyntaxException {
+        Command command = parser.parse("subtract 54");
+        assertEquals(Operation.SUBTRACT, command.getOperation());
+        assertEquals(new BigDecimal(54), command.getValue());
+    }
+
+    /**
+     * Test parsing a decimal number.
+     *
+     * @throws InvalidCommandSyntaxException
+     */
+    @Test
+    public void testParseDecimal() throws InvalidCommandSyntaxException {
+        Command command = parser.parse("add 54.05");
+        assertEquals(Operation.ADD, command.getOperation());
+        assertEquals(new BigDecimal("54.05"), command.getValue());
+    }
+
+    /**
+     * Test parsing a localized number.
+     *
+     * @throws InvalidCommandSyntaxException
+     */
+    @Test
+    public void testParseLocal() throws InvalidCommandSyntaxException {
+        Command command = parser.parse("add 54" + getDecimalSeparator() + "05");
+        assertEquals(Operation.ADD, command.getOperation());
+        assertEquals(new BigDecimal("54.05"), command.getValue());
+    }
+
+    /**
+     * Test parsing a command with comma as a decimal separator.
+     *
+     * @throws InvalidCommandSyntaxException
+     */
+    @Test
+    public void testParseCommaSeparator() throws InvalidCommandSyntaxException {
+
+        // set czech locale so we get a parser with different decimal separator
+        parser.setLocale(Locale.forLanguageTag("cs-CZ"));
+
+        // test the new parser with comma as the decimal separator
+        Command command = parser.parse("add 54,05");
+        assertEquals(Operation.ADD, command.getOperation());
+        assertEquals(new BigDecimal("54.05"), command.getValue());
+
+        // test that the point still works
+        Command command2 = parser.parse("add 54.05");
+        assertEquals(Operation.ADD, command2.getOperation());
+        assertEquals(new BigDecimal("54.05"), command2.getValue());
+    }
+
+    /**
+     * Test parsing a command from a window in a byte array.
+     *
+     * @throws InvalidCommandSyntaxException
+     */
+    @Test
+    public void testParseBytes() throws InvalidCommandSyntaxException {
+        byte[] bytes = "add 1\nMultiply -2.50\napply 3".getBytes(StandardCharsets.US_ASCII);
+        Command command = parser.parse(bytes, 6, 20);
+        assertEquals(Operation.MULTIPLY, command.getOperation());
+        assertEquals(new BigDecimal("-2.50"), command.getValue());
+    }
+
+    /**
+     * Test that the results match {@link DecimalCommandParser}.
+     *
+     * @throws InvalidCommandSyntaxException
+     */
+    @Test
+    public void testParseSameAsDecimalParser() throws InvalidCommandSyntaxException {
+        CommandParser reference = new DecimalCommandParser();
+        String[] commands = {
+            "apply 0", "  ADD\t+7 ", "divide -0.000", "multiply 5.", "add .5",
+            "subtract 1e3", "add 1.5E-2", "multiply 12345678901234567890.12345",
+            "divide 000000000000000000001"
+        };
+        for (String line : commands) {
+            Command expected = reference.parse(line);
+            Command command = parser.parse(line);
+            assertEquals(line, expected.getOperation(), command.getOperation());
+            assertEquals(line, expected.getValue(), command.getValue());
+        }
+    }
+
+    /**
+     * Test rejecting commands with invalid syntax.
+     */
+    @Test
+    public void testParseInvalid() {
+        String[] commands = {
+            "", "   ", "add", "add 1 2", "power 2", "add x", "add 1.2.3",
+            "add -", "add .", "add 1e"
+        };
+        for (String line : commands) {
+            try {
+                parser.parse(line);
+                fail("Command '" + line + "' should be rejected.");
+            } catch (InvalidCommandSyntaxException ex) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Test parsing straight into ring slots.
+     *
+     * @throws InvalidCommandSyntaxException
+     * @throws InterruptedException
+     */
+    @Test
+    public void testParseIntoRing() throws InvalidCommandSyntaxException, InterruptedException {
+        byte[] bytes = "multiply -12.5\nadd 1234567890123456789\n".getBytes(StandardCharsets.US_ASCII);
+        CommandRingBuffer ring = new CommandRingBuffer(2, WaitStrategy.PARK);
+        long first = ring.next(2);
+        parser.parse(bytes, 0, 14, ring, first);
+        parser.parse(bytes, 15, bytes.length - 1, ring, first + 1);
+
+        assertEquals(Operation.MULTIPLY, ring.operation(first));
+        assertEquals(new BigDecimal("-12.5"), ring.value(first));
+        assertEquals(Operation.ADD, ring.operation(first + 1));
+        assertEquals(new BigDecimal("1234567890123456789"), ring.value(first + 1));
+    }
+
+    /**
+     * Fetch decimal separator from locale.
+     *
+     * @return decimal separator
+     */
+    private char getDecimalSeparator() {
+        DecimalFormat format = (DecimalFormat) DecimalFormat.getInstance();
+        DecimalFormatSymbols symbols = format.getDecimalFormatSymbols();
+        return symbols.getDecimalSeparator();
+    }
+
+}
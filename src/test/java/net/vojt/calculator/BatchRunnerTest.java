@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Test suite for {@link BatchRunner}.
+ *
+ * @author janvojt
+ */
+public class BatchRunnerTest {
+
+    /** Temporary directory with the inputs and outputs. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Directory with copies of the test resource inputs. */
+    private Path inputDirectory;
+
+    /** Directory of the output files. */
+    private Path outputDirectory;
+
+    @Before
+    public void setUp() throws IOException, URISyntaxException {
+        inputDirectory = folder.newFolder("in").toPath();
+        outputDirectory = folder.getRoot().toPath().resolve("out");
+        Path resources = Paths.get(BatchRunnerTest.class.getResource("/in").toURI());
+        Path nested = Files.createDirectory(inputDirectory.resolve("nested"));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(resources)) {
+            for (Path file : files) {
+                Files.copy(file, inputDirectory.resolve(file.getFileName()));
+            }
+        }
+        Files.copy(resources.resolve("complex.txt"), nested.resolve("complex.txt"));
+    }
+
+    /**
+     * Test that every file of a directory gets the same output as from
+     * {@link InteractiveCalculator}, with the files split into tiny regions.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testRunDirectory() throws IOException {
+        BatchRunner runner = new BatchRunner(outputDirectory);
+        runner.setParallelism(4);
+        runner.setSplitSize(16);
+        List<BatchRunner.FileSummary> summaries = runner.run(Collections.singletonList(inputDirectory.toString()));
+
+        assertEquals(14, summaries.size());
+        for (BatchRunner.FileSummary summary : summaries) {
+            assertNull(summary.getFailure());
+            Path relative = inputDirectory.relativize(summary.getInput());
+            assertEquals(outputDirectory.resolve(relative + BatchRunner.OUTPUT_SUFFIX), summary.getOutput());
+
+            String expected = interactiveOutput(summary.getInput());
+            assertEquals(expected, new String(Files.readAllBytes(summary.getOutput()), StandardCharsets.UTF_8));
+            assertEquals(count(expected, InteractiveCalculator.RESULT_PREFIX), summary.getResults());
+            assertEquals(count(expected, InteractiveCalculator.ERROR_PREFIX), summary.getErrors());
+            assertEquals(Files.size(summary.getInput()), summary.getBytes());
+        }
+    }
+
+    /**
+     * Test splitting the files at the blocks of their indexes, the sidecar
+     * indexes written by the first run are not taken for inputs by the second.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testRunIndexed() throws IOException {
+        BatchRunner runner = new BatchRunner(outputDirectory);
+        runner.setParallelism(4);
+        runner.setSplitSize(16);
+        runner.setIndexed(true);
+        for (int run = 0; run < 2; run++) {
+            List<BatchRunner.FileSummary> summaries = runner.run(Collections.singletonList(inputDirectory.toString()));
+            assertEquals(14, summaries.size());
+            for (BatchRunner.FileSummary summary : summaries) {
+                assertNull(summary.getFailure());
+                assertEquals(interactiveOutput(summary.getInput()),
+                        new String(Files.readAllBytes(summary.getOutput()), StandardCharsets.UTF_8));
+            }
+        }
+        assertTrue(Files.exists(BlockIndex.sidecar(inputDirectory.resolve("nested/complex.txt"))));
+    }
+
+    /**
+     * Test that a compressed file gets the same output as uncompressed.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testRunCompressed() throws IOException {
+        Path plain = inputDirectory.resolve("complex.txt");
+        Path compressed = folder.newFolder("compressed").toPath().resolve("complex.txt.gz");
+        try (OutputStream out = new BlockGzipOutputStream(Files.newOutputStream(compressed))) {
+            Files.copy(plain, out);
+        }
+
+        BatchRunner runner = new BatchRunner(outputDirectory);
+        runner.setSplitSize(16);
+        List<BatchRunner.FileSummary> summaries = runner.run(Collections.singletonList(compressed.toString()));
+        assertEquals(1, summaries.size());
+        assertNull(summaries.get(0).getFailure());
+        String expected = interactiveOutput(plain);
+        assertEquals(expected,
+                new String(Files.readAllBytes(summaries.get(0).getOutput()), StandardCharsets.UTF_8));
+        assertEquals(count(expected, InteractiveCalculator.RESULT_PREFIX), summaries.get(0).getResults());
+        assertEquals(count(expected, InteractiveCalculator.ERROR_PREFIX), summaries.get(0).getErrors());
+    }
+
+    /**
+     * Test glob patterns, a missing file and a pattern matching nothing.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testRunPatterns() throws IOException {
+        BatchRunner runner = new BatchRunner(outputDirectory);
+        String missing = inputDirectory.resolve("missing.txt").toString();
+        List<BatchRunner.FileSummary> summaries = runner.run(Arrays.asList(
+                inputDirectory + "/example-*.txt", inputDirectory + "/**/complex.txt", missing));
+
+        assertEquals(5, summaries.size());
+        assertEquals(outputDirectory.resolve("example-1.txt" + BatchRunner.OUTPUT_SUFFIX), summaries.get(0).getOutput());
+        assertEquals(outputDirectory.resolve("nested/complex.txt" + BatchRunner.OUTPUT_SUFFIX), summaries.get(3).getOutput());
+        for (int i = 0; i < 4; i++) {
+            assertNull(summaries.get(i).getFailure());
+        }
+        assertNotNull(summaries.get(4).getFailure());
+
+        try {
+            runner.run(Collections.singletonList(inputDirectory + "/*.none"));
+            fail("Pattern matching nothing must be reported.");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * Test finding the split points right after the apply commands.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testSplitPoint() throws IOException {
+        String text = "add 1\r\napply 2\r\nadd 3\napplied\napply 4\rmultiply 5\napply 6";
+        Path file = folder.newFile("split.txt").toPath();
+        Files.write(file, text.getBytes(StandardCharsets.US_ASCII));
+        AsciiCommandParser parser = new AsciiCommandParser();
+        long size = text.length();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            assertEquals(text.indexOf("add 3"), BatchRunner.splitPoint(channel, 1, size, parser));
+            assertEquals(text.indexOf("add 3"), BatchRunner.splitPoint(channel, text.indexOf("apply 2"), size, parser));
+            assertEquals(text.indexOf("multiply"), BatchRunner.splitPoint(channel, text.indexOf("pply 2"), size, parser));
+            assertEquals(size, BatchRunner.splitPoint(channel, text.indexOf("apply 6") + 1, size, parser));
+        }
+    }
+
+    /**
+     * Computes the output of the file with {@link InteractiveCalculator}.
+     *
+     * @param file input file
+     * @return the output
+     * @throws IOException
+     */
+    private static String interactiveOutput(Path file) throws IOException {
+        StringWriter writer = new StringWriter();
+        InteractiveCalculator calculator = new InteractiveCalculator();
+        calculator.setReader(new StringReader(new String(Files.readAllBytes(file), StandardCharsets.US_ASCII)));
+        calculator.setWriter(writer);
+        calculator.run();
+        return writer.toString();
+    }
+
+    /**
+     * Counts the lines starting with the prefix.
+     *
+     * @param output calculator output
+     * @param prefix line prefix
+     * @return number of lines
+     */
+    private static long count(String output, String prefix) {
+        long count = 0;
+        for (String line : output.split("\n")) {
+            if (line.startsWith(prefix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+}
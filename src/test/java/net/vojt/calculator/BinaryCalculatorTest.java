@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+ * Tests suite for {@link BinaryConverter} and {@link BinaryCalculator}
+ * comparing the replayed output with {@link InteractiveCalculator}
+ * on test resources.
+ *
+ * @author janvojt
+ */
+@RunWith(Parameterized.class)
+public class BinaryCalculatorTest {
+
+    /** Path to test resource directory with input files. */
+    private static final URL INPUT_DIR = BinaryCalculatorTest.class.getResource("/in");
+
+    /** Buffer sizes to test with, tiny buffers split the records. */
+    private static final int[] BUFFER_SIZES = {1, 3, BinaryCalculator.DEFAULT_BUFFER_SIZE};
+
+    /** Input file. */
+    private final Path filePath;
+
+    /** Size of the input buffer. */
+    private final int bufferSize;
+
+    /**
+     * Setup parameters for each test.
+     *
+     * @param filePath path to input file
+     * @param bufferSize size of the input buffer
+     */
+    public BinaryCalculatorTest(Path filePath, int bufferSize) {
+        this.filePath = filePath;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Factory for test parameters.
+     *
+     * @return input files combined with buffer sizes
+     * @throws IOException
+     * @throws URISyntaxException
+     */
+    @Parameterized.Parameters
+    public static Collection<Object[]> testFileset() throws IOException, URISyntaxException {
+        List<Object[]> params = new ArrayList<>();
+        Path dirPath = Paths.get(INPUT_DIR.toURI());
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(dirPath)) {
+            for (Path path : directoryStream) {
+                for (int bufferSize : BUFFER_SIZES) {
+                    params.add(new Object[] {path, bufferSize});
+                }
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Test that the converted file gives the same output as the text file.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testRun() throws IOException {
+
+        // expected output from the text
+        Writer expected = new StringWriter();
+        InteractiveCalculator reference = new InteractiveCalculator();
+        try (Reader reader = new FileReader(filePath.toFile())) {
+            reference.setReader(reader);
+            reference.setWriter(expected);
+            reference.run();
+        }
+
+        String text = new String(Files.readAllBytes(filePath), StandardCharsets.US_ASCII);
+        assertEquals(expected.toString(), replay(text, bufferSize));
+    }
+
+    /**
+     * Test values which do not fit into a long and various scales.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testValues() throws IOException {
+        String text = "add 123456789012345678901234567890.5\n"
+                + "subtract -9223372036854775808\n"
+                + "multiply 1E+5\n"
+                + "divide 0.0008\n"
+                + "add -0.000\n"
+                + "apply -98765432109876543210\n";
+        Writer expected = new StringWriter();
+        InteractiveCalculator reference = new InteractiveCalculator();
+        reference.setReader(new StringReader(text));
+        reference.setWriter(expected);
+        reference.run();
+
+        assertEquals(expected.toString(), replay(text, bufferSize));
+    }
+
+    /**
+     * Test that input in another format is rejected.
+     */
+    @Test
+    public void testNotBinary() {
+        BinaryCalculator calculator = new BinaryCalculator();
+        calculator.setBufferSize(bufferSize);
+        calculator.setChannel(Channels.newChannel(new ByteArrayInputStream(
+                "add 1\napply 2\n".getBytes(StandardCharsets.US_ASCII))));
+        calculator.setWriter(new StringWriter());
+        try {
+            calculator.run();
+            fail("Text input must be rejected.");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * Converts the text into the binary format and replays it.
+     *
+     * @param text instructions in the text format
+     * @param bufferSize size of the input buffer
+     * @return output of the replay
+     * @throws IOException
+     */
+    private static String replay(String text, int bufferSize) throws IOException {
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        new BinaryConverter().convert(new StringReader(text), Channels.newChannel(binary));
+
+        Writer writer = new StringWriter();
+        BinaryCalculator calculator = new BinaryCalculator();
+        calculator.setBufferSize(bufferSize);
+        calculator.setChannel(Channels.newChannel(new ByteArrayInputStream(binary.toByteArray())));
+        calculator.setWriter(writer);
+        calculator.run();
+        return writer.toString();
+    }
+
+}
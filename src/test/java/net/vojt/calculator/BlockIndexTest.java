@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Test suite for {@link BlockIndex}.
+ *
+ * @author janvojt
+ */
+public class BlockIndexTest {
+
+    /** Input with all the line terminators, an invalid line and a trailing command. */
+    private static final String TEXT = "add 1\r\napply 2\r\nadd 3\napplied\napply 4\rmultiply 5\napply 6\nadd 7";
+
+    /** Temporary directory with the inputs and the indexes. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test the offsets and the numbers of lines of the blocks.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testBuild() throws IOException {
+        BlockIndex index = BlockIndex.build(write("blocks.txt", TEXT));
+
+        assertEquals(3, index.getBlockCount());
+        assertEquals(0, index.getOffset(0));
+        assertEquals(2, index.getLines(0));
+        assertEquals(TEXT.indexOf("add 3"), index.getOffset(1));
+        assertEquals(3, index.getLines(1));
+        assertEquals(TEXT.indexOf("multiply"), index.getOffset(2));
+        assertEquals(2, index.getLines(2));
+        assertEquals(TEXT.indexOf("add 7"), index.getEnd());
+
+        assertEquals(0, index.nextBoundary(0));
+        assertEquals(TEXT.indexOf("add 3"), index.nextBoundary(1));
+        assertEquals(TEXT.indexOf("multiply"), index.nextBoundary(TEXT.indexOf("multiply")));
+        assertEquals(TEXT.indexOf("add 7"), index.nextBoundary(TEXT.indexOf("apply 6")));
+        assertEquals(TEXT.length(), index.nextBoundary(TEXT.indexOf("add 7") + 1));
+
+        try {
+            index.getOffset(3);
+            fail("Block out of range must be rejected.");
+        } catch (IndexOutOfBoundsException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that an index whose sidecar cannot be written is still given,
+     * with the reason kept.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testSidecarNotWritten() throws IOException {
+        Path input = write("blocks.txt", TEXT);
+        Path sidecar = BlockIndex.sidecar(input);
+        // a directory in place of the temporary file cannot be written
+        Path blocking = Files.createDirectories(sidecar.resolveSibling(sidecar.getFileName() + ".tmp"));
+        Files.createFile(blocking.resolve("keep"));
+
+        BlockIndex index = BlockIndex.open(input);
+        assertEquals(3, index.getBlockCount());
+        assertEquals(TEXT.indexOf("multiply"), index.getOffset(2));
+        assertNotNull(index.getWriteFailure());
+        assertFalse(Files.exists(sidecar));
+    }
+
+    /**
+     * Test writing and reading the sidecar, which is not used
+     * once the input changes.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testSidecar() throws IOException {
+        Path input = write("blocks.txt", TEXT);
+        Path sidecar = BlockIndex.sidecar(input);
+        assertNull(BlockIndex.read(sidecar, input));
+
+        BlockIndex built = BlockIndex.open(input);
+        assertTrue(BlockIndex.isSidecar(sidecar));
+        assertFalse(BlockIndex.isSidecar(input));
+        BlockIndex read = BlockIndex.read(sidecar, input);
+        assertNotNull(read);
+        assertEquals(built.getBlockCount(), read.getBlockCount());
+        assertEquals(built.getEnd(), read.getEnd());
+        for (int i = 0; i < built.getBlockCount(); i++) {
+            assertEquals(built.getOffset(i), read.getOffset(i));
+            assertEquals(built.getLines(i), read.getLines(i));
+        }
+
+        // an appended block makes the sidecar stale
+        Files.write(input, (TEXT + "\napply 8").getBytes(StandardCharsets.US_ASCII));
+        Files.setLastModifiedTime(input, FileTime.fromMillis(Files.getLastModifiedTime(input).toMillis() + 1000));
+        assertNull(BlockIndex.read(sidecar, input));
+        assertEquals(4, BlockIndex.open(input).getBlockCount());
+        assertEquals(4, BlockIndex.read(sidecar, input).getBlockCount());
+
+        Files.write(sidecar, "garbage".getBytes(StandardCharsets.US_ASCII));
+        assertNull(BlockIndex.read(sidecar, input));
+    }
+
+    /**
+     * Test that every block read at its offset gives the same output
+     * as the block text alone.
+     *
+     * @throws IOException
+     * @throws URISyntaxException
+     */
+    @Test
+    public void testSeek() throws IOException, URISyntaxException {
+        Path input = Paths.get(BlockIndexTest.class.getResource("/in/many-blocks.txt").toURI());
+        String text = new String(Files.readAllBytes(input), StandardCharsets.US_ASCII);
+        BlockIndex index = BlockIndex.build(input);
+        assertTrue(index.getBlockCount() > 1);
+
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            for (int i = 0; i < index.getBlockCount(); i++) {
+                long start = index.getOffset(i);
+                long end = i + 1 < index.getBlockCount() ? index.getOffset(i + 1) : index.getEnd();
+
+                StringWriter expected = new StringWriter();
+                InteractiveCalculator interactive = new InteractiveCalculator();
+                interactive.setReader(new StringReader(text.substring((int) start, (int) end)));
+                interactive.setWriter(expected);
+                interactive.run();
+
+                StringWriter actual = new StringWriter();
+                MappedFileCalculator mapped = new MappedFileCalculator();
+                mapped.setChannel(channel);
+                mapped.setRegion(start, end - start);
+                mapped.setWriter(actual);
+                mapped.run();
+                assertEquals(expected.toString(), actual.toString());
+            }
+        }
+    }
+
+    /**
+     * Writes the text into a new file.
+     *
+     * @param name file name
+     * @param text file contents
+     * @return the file
+     * @throws IOException
+     */
+    private Path write(String name, String text) throws IOException {
+        Path file = folder.getRoot().toPath().resolve(name);
+        Files.write(file, text.getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import static net.vojt.calculator.ComputationAssert.computation;
+import static org.junit.Assert.*;
+
+/**
+ * Test suite for {@link CachingEvaluator}.
+ *
+ * @author janvojt
+ */
+public class CachingEvaluatorTest {
+
+    /** Tested instance. */
+    private CachingEvaluator evaluator;
+
+    @Before
+    public void setUp() {
+        evaluator = new CachingEvaluator(new EvaluatorImpl(), 10);
+    }
+
+    /**
+     * Test that a repeated computation is answered from the cache
+     * and leaves the computation drained.
+     */
+    @Test
+    public void testCacheHit() {
+        List<Command> commands = new ArrayList<>();
+        commands.add(new Command(Operation.ADD, new BigDecimal(2)));
+        commands.add(new Command(Operation.MULTIPLY, new BigDecimal(3)));
+
+        assertEquals(new BigDecimal(9), evaluator.evaluate(computation(commands, BigDecimal.ONE)));
+        Computation computation = computation(commands, BigDecimal.ONE);
+        assertEquals(new BigDecimal(9), evaluator.evaluate(computation));
+        assertTrue(computation.isEmpty());
+        assertEquals(1, evaluator.getHits());
+        assertEquals(1, evaluator.getMisses());
+        assertEquals(0.5, evaluator.getHitRatio(), 0);
+    }
+
+    /**
+     * Test that a different initializer is a miss.
+     */
+    @Test
+    public void testDifferentInitializer() {
+        List<Command> commands = new ArrayList<>();
+        commands.add(new Command(Operation.ADD, new BigDecimal(2)));
+
+        assertEquals(new BigDecimal(3), evaluator.evaluate(computation(commands, BigDecimal.ONE)));
+        assertEquals(new BigDecimal("3.0"), evaluator.evaluate(computation(commands, new BigDecimal("1.0"))));
+        assertEquals(0, evaluator.getHits());
+        assertEquals(2, evaluator.getMisses());
+    }
+
+    /**
+     * Test that an arithmetic failure is remembered.
+     */
+    @Test
+    public void testCachedError() {
+        List<Command> commands = new ArrayList<>();
+        commands.add(new Command(Operation.DIVIDE, BigDecimal.ZERO));
+
+        String message = null;
+        for (int i = 0; i < 2; i++) {
+            try {
+                evaluator.evaluate(computation(commands, BigDecimal.ONE));
+                fail("Division by zero must fail.");
+            } catch (ArithmeticException ex) {
+                if (message == null) {
+                    message = ex.getMessage();
+                } else {
+                    assertEquals(message, ex.getMessage());
+                }
+            }
+        }
+        assertEquals(1, evaluator.getHits());
+    }
+
+    /**
+     * Test that the cache weight stays within the limit.
+     */
+    @Test
+    public void testEviction() {
+        List<Command> commands = new ArrayList<>();
+        commands.add(new Command(Operation.ADD, BigDecimal.ONE));
+        commands.add(new Command(Operation.ADD, BigDecimal.ONE));
+        for (int i = 0; i < 5; i++) {
+            evaluator.evaluate(computation(commands, new BigDecimal(i)));
+        }
+        assertEquals(3, evaluator.getCacheSize());
+        assertEquals(9, evaluator.getCacheWeight());
+
+        // the oldest result was evicted
+        evaluator.evaluate(computation(commands, BigDecimal.ZERO));
+        assertEquals(0, evaluator.getHits());
+    }
+
+}
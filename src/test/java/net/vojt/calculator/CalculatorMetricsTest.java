@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test suite for {@link CalculatorMetrics}.
+ *
+ * @author janvojt
+ */
+public class CalculatorMetricsTest {
+
+    /** Input with all kinds of lines. */
+    private static final String INPUT = "add 2\nmultiply 3\napply 1\nfoo\ndivide 0\napply 5\nsubtract 1\napply 2\n";
+
+    /**
+     * Test metrics collected by the calculator reading lines.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testInteractiveCalculator() throws IOException {
+        CalculatorMetrics metrics = new CalculatorMetrics();
+        InteractiveCalculator calculator = new InteractiveCalculator();
+        calculator.setReader(new StringReader(INPUT));
+        calculator.setWriter(new StringWriter());
+        calculator.setMetrics(metrics);
+        calculator.run();
+        assertMetrics(metrics);
+    }
+
+    /**
+     * Test metrics collected by the pipelined calculator.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testPipelinedCalculator() throws IOException {
+        CalculatorMetrics metrics = new CalculatorMetrics();
+        PipelinedCalculator calculator = new PipelinedCalculator();
+        calculator.setChannel(Channels.newChannel(new ByteArrayInputStream(
+                INPUT.getBytes(StandardCharsets.US_ASCII))));
+        calculator.setWriter(new StringWriter());
+        calculator.setMetrics(metrics);
+        calculator.run();
+        assertMetrics(metrics);
+    }
+
+    /**
+     * Test reading the metrics over JMX.
+     *
+     * @throws JMException
+     */
+    @Test
+    public void testRegister() throws JMException {
+        ObjectName name = new ObjectName(CalculatorMetrics.DEFAULT_OBJECT_NAME + ",name=test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try (CalculatorMetrics metrics = new CalculatorMetrics()) {
+            metrics.register(name);
+            metrics.recordParse(Operation.ADD, 100);
+            metrics.recordParse(null, 50);
+            metrics.recordEvaluation(1000, true);
+
+            assertEquals(2L, server.getAttribute(name, "Lines"));
+            assertEquals(1L, server.getAttribute(name, "SyntaxErrors"));
+            assertEquals(1L, server.getAttribute(name, "ArithmeticErrors"));
+            TabularData commands = (TabularData) server.getAttribute(name, "Commands");
+            CompositeData add = commands.get(new Object[] {"ADD"});
+            assertEquals(1L, add.get("value"));
+            TabularData latency = (TabularData) server.getAttribute(name, "EvaluationLatency");
+            assertEquals(1000L, latency.get(new Object[] {"max"}).get("value"));
+
+            server.invoke(name, "reset", null, null);
+            assertEquals(0L, server.getAttribute(name, "Lines"));
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    /**
+     * Checks the metrics collected from the {@link #INPUT}.
+     *
+     * @param metrics collected metrics
+     */
+    private static void assertMetrics(CalculatorMetrics metrics) {
+        assertEquals(8, metrics.getLines());
+        assertEquals(3, metrics.getCommands(Operation.APPLY));
+        assertEquals(1, metrics.getCommands(Operation.DIVIDE));
+        assertEquals(1, metrics.getSyntaxErrors());
+        assertEquals(3, metrics.getApplyBlocks());
+        assertEquals(1, metrics.getArithmeticErrors());
+        assertEquals(8, metrics.getParseHistogram().getCount());
+        assertEquals(3, metrics.getEvaluationHistogram().getCount());
+        assertTrue(metrics.toString().contains("syntax errors: 1"));
+    }
+
+}
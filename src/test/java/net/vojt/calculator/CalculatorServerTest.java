@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test suite for {@link CalculatorServer} talking to it over loopback.
+ *
+ * @author janvojt
+ */
+public class CalculatorServerTest {
+
+    /** Tested instance. */
+    private CalculatorServer server;
+
+    /** Address the server listens on. */
+    private InetSocketAddress address;
+
+    /** Thread running the server. */
+    private Thread thread;
+
+    @Before
+    public void setUp() {
+        server = new CalculatorServer();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        server.shutdown();
+        if (thread != null) {
+            thread.join(10000);
+        }
+    }
+
+    /**
+     * Test that clients served at the same time get the same output
+     * as from files.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentClients() throws Exception {
+        start();
+        Path inputDir = Paths.get(getClass().getResource("/in").toURI());
+        Path outputDir = Paths.get(getClass().getResource("/out").toURI());
+
+        List<Path> inputs = new ArrayList<>();
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(inputDir)) {
+            for (Path path : directoryStream) {
+                inputs.add(path);
+            }
+        }
+
+        // all the clients send their input before any of them reads
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (Path input : inputs) {
+                Socket socket = new Socket(address.getAddress(), address.getPort());
+                sockets.add(socket);
+                socket.getOutputStream().write(Files.readAllBytes(input));
+                socket.shutdownOutput();
+            }
+            for (int i = 0; i < inputs.size(); i++) {
+                Path expected = outputDir.resolve(inputs.get(i).getFileName());
+                assertEquals(inputs.get(i).toString(),
+                        new String(Files.readAllBytes(expected), StandardCharsets.US_ASCII).trim(),
+                        readAll(sockets.get(i)).trim());
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * Test that all the results are delivered when the output limit
+     * stops the reading.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testBackpressure() throws IOException {
+        server.setMaxOutput(16);
+        start();
+
+        StringBuilder input = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            input.append("add 1\napply ").append(i).append('\n');
+            expected.append("Result is: ").append(i + 1).append('\n');
+        }
+        assertEquals(expected.toString(), exchange(input.toString()));
+    }
+
+    /**
+     * Test that a line over the length limit is reported
+     * and the session continues.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testLineTooLong() throws IOException {
+        server.setMaxLineLength(1024);
+        start();
+
+        StringBuilder input = new StringBuilder("add ");
+        for (int i = 0; i < 5000; i++) {
+            input.append('1');
+        }
+        input.append("\r\napply 2");
+        assertEquals("ERROR: Invalid command syntax.\nResult is: 2\n", exchange(input.toString()));
+    }
+
+    /**
+     * Test that a session failing unexpectedly is closed with an error
+     * and the other sessions keep being served.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testFailingSession() throws IOException {
+        final Evaluator delegate = new EvaluatorImpl();
+        server.setEval(new Evaluator() {
+            @Override
+            public BigDecimal evaluate(Computation computation) {
+                BigDecimal result = delegate.evaluate(computation);
+                if (result.compareTo(BigDecimal.valueOf(13)) == 0) {
+                    throw new IllegalStateException("Unlucky result.");
+                }
+                return result;
+            }
+        });
+        start();
+
+        try (Socket healthy = new Socket(address.getAddress(), address.getPort())) {
+            OutputStream healthyOut = healthy.getOutputStream();
+            healthyOut.write("add 1\napply 1\n".getBytes(StandardCharsets.US_ASCII));
+
+            assertEquals("Result is: 1\nERROR: Internal error, closing the session.\n",
+                    exchange("add 1\napply 0\nadd 3\napply 10\napply 2\n"));
+
+            healthyOut.write("apply 5\n".getBytes(StandardCharsets.US_ASCII));
+            healthy.shutdownOutput();
+            assertEquals("Result is: 2\nResult is: 5\n", readAll(healthy));
+        }
+        assertEquals("Result is: 12\n", exchange("apply 12"));
+    }
+
+    /**
+     * Test that a long evaluation does not hold up the other sessions
+     * and its result is delivered in order once it completes.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLongEvaluation() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Evaluator delegate = new EvaluatorImpl();
+        server.setParallelism(2);
+        server.setEval(new Evaluator() {
+            @Override
+            public BigDecimal evaluate(Computation computation) {
+                BigDecimal result = delegate.evaluate(computation);
+                if (result.compareTo(BigDecimal.valueOf(7)) == 0) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return result;
+            }
+        });
+        start();
+
+        try (Socket slow = new Socket(address.getAddress(), address.getPort())) {
+            slow.getOutputStream().write("apply 7\nadd 1\napply 2\n".getBytes(StandardCharsets.US_ASCII));
+            slow.shutdownOutput();
+
+            assertEquals("Result is: 3\n", exchange("add 2\napply 1"));
+            release.countDown();
+            assertEquals("Result is: 7\nResult is: 3\n", readAll(slow));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    /**
+     * Starts the server on a loopback port.
+     *
+     * @throws IOException
+     */
+    private void start() throws IOException {
+        address = server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.run();
+                } catch (IOException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        });
+        thread.start();
+    }
+
+    /**
+     * Sends the input to the server and reads all of its output.
+     *
+     * @param input commands to send
+     * @return output of the server
+     * @throws IOException
+     */
+    private String exchange(String input) throws IOException {
+        try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+            socket.getOutputStream().write(input.getBytes(StandardCharsets.US_ASCII));
+            socket.shutdownOutput();
+            return readAll(socket);
+        }
+    }
+
+    /**
+     * Reads the socket until the server closes the connection.
+     *
+     * @param socket connection to the server
+     * @return all the data read
+     * @throws IOException
+     */
+    private static String readAll(Socket socket) throws IOException {
+        socket.setSoTimeout(10000);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        InputStream in = socket.getInputStream();
+        byte[] buffer = new byte[4096];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            output.write(buffer, 0, n);
+        }
+        return new String(output.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+}
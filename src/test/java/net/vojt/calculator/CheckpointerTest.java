@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Test suite for {@link Checkpointer} and {@link Checkpoint}.
+ *
+ * @author janvojt
+ */
+public class CheckpointerTest {
+
+    /** Temporary directory with the output and checkpoint files. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test reading back a written checkpoint.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testWriteRead() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("checkpoint");
+        assertNull(Checkpoint.read(file));
+
+        new Checkpoint(10, 20, 30).write(file);
+        new Checkpoint(15, 25, 30).write(file);
+        Checkpoint checkpoint = Checkpoint.read(file);
+        assertEquals(15, checkpoint.getInputOffset());
+        assertEquals(25, checkpoint.getOutputOffset());
+        assertEquals(30, checkpoint.getInputSize());
+        assertEquals(1, folder.getRoot().list().length);
+
+        Files.write(file, "15 x".getBytes(StandardCharsets.US_ASCII));
+        try {
+            Checkpoint.read(file);
+            fail("Malformed checkpoint must be reported.");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that a run interrupted after a few checkpoints and resumed
+     * from the last one gives the same output as an uninterrupted run.
+     *
+     * @throws IOException
+     * @throws URISyntaxException
+     */
+    @Test
+    public void testResume() throws IOException, URISyntaxException {
+        Path input = Paths.get(CheckpointerTest.class.getResource("/in/many-blocks.txt").toURI());
+        Path output = folder.getRoot().toPath().resolve("output");
+        Path file = folder.getRoot().toPath().resolve("checkpoint");
+
+        // checkpoint after every block, failing after the third one
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            Checkpointer checkpointer = new Checkpointer(file, out, in.size(), 1, TimeUnit.NANOSECONDS) {
+                @Override
+                public void checkpoint(long inputOffset) throws IOException {
+                    super.checkpoint(inputOffset);
+                    if (getCount() == 3) {
+                        throw new IOException("Crash");
+                    }
+                }
+            };
+            MappedFileCalculator calculator = new MappedFileCalculator();
+            calculator.setChannel(in);
+            calculator.setWriter(Channels.newWriter(out, StandardCharsets.UTF_8.newEncoder(), -1));
+            calculator.setCheckpointer(checkpointer);
+            try {
+                calculator.run();
+                fail("Crash expected.");
+            } catch (IOException ex) {
+                assertEquals("Crash", ex.getMessage());
+            }
+            // output written after the checkpoint is discarded on resume
+            out.write(ByteBuffer.wrap("garbage".getBytes(StandardCharsets.US_ASCII)));
+        }
+
+        Checkpoint checkpoint = Checkpoint.read(file);
+        assertTrue(checkpoint.getInputOffset() > 0);
+        assertTrue(checkpoint.getInputOffset() < checkpoint.getInputSize());
+
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE)) {
+            out.truncate(checkpoint.getOutputOffset());
+            out.position(checkpoint.getOutputOffset());
+            Checkpointer checkpointer = new Checkpointer(file, out, in.size(), 1, TimeUnit.HOURS);
+            MappedFileCalculator calculator = new MappedFileCalculator();
+            calculator.setChannel(in);
+            calculator.setRegion(checkpoint.getInputOffset(), in.size() - checkpoint.getInputOffset());
+            calculator.setWriter(Channels.newWriter(out, StandardCharsets.UTF_8.newEncoder(), -1));
+            calculator.setCheckpointer(checkpointer);
+            calculator.run();
+            assertEquals(1, checkpointer.getCount());
+        }
+
+        Checkpoint last = Checkpoint.read(file);
+        assertEquals(last.getInputSize(), last.getInputOffset());
+        assertEquals(Files.size(output), last.getOutputOffset());
+
+        Writer expected = new StringWriter();
+        InteractiveCalculator reference = new InteractiveCalculator();
+        try (Reader reader = new FileReader(input.toFile())) {
+            reference.setReader(reader);
+            reference.setWriter(expected);
+            reference.run();
+        }
+        assertEquals(expected.toString(), new String(Files.readAllBytes(output), StandardCharsets.UTF_8));
+    }
+
+}
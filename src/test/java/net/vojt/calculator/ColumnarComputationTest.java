@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test suite for {@link ColumnarComputation}.
+ *
+ * @author janvojt
+ */
+public class ColumnarComputationTest {
+
+    /**
+     * Test that commands are read in the order they were pushed,
+     * both as commands and through the cursor.
+     */
+    @Test
+    public void testOrder() {
+        Computation computation = new ColumnarComputation();
+        BigDecimal big = new BigDecimal("123456789012345678901234567890.5");
+        computation.push(Operation.ADD, 7, 0);
+        computation.push(Operation.MULTIPLY, 125, 2);
+        computation.push(Operation.SUBTRACT, big);
+        computation.pushCommand(new Command(Operation.DIVIDE, new BigDecimal("1E+3")));
+        computation.pushCommand(new Command(Operation.APPLY, BigDecimal.TEN));
+        assertEquals(BigDecimal.TEN, computation.getInitializer());
+
+        Command command = computation.popCommand();
+        assertEquals(Operation.ADD, command.getOperation());
+        assertTrue(command.isLongValue());
+        assertEquals(7, command.getLongValue());
+
+        assertTrue(computation.advance());
+        assertEquals(Operation.MULTIPLY, computation.currentOperation());
+        assertFalse(computation.isCurrentLong());
+        assertEquals(new BigDecimal("1.25"), computation.currentValue());
+
+        assertTrue(computation.advance());
+        assertEquals(Operation.SUBTRACT, computation.currentOperation());
+        assertSame(big, computation.currentValue());
+
+        assertTrue(computation.advance());
+        assertEquals(Operation.DIVIDE, computation.currentOperation());
+        assertEquals(new BigDecimal("1E+3"), computation.currentValue());
+
+        // the scale marking side table values is a valid scale as well
+        BigDecimal extreme = BigDecimal.valueOf(1, Integer.MIN_VALUE);
+        computation.push(Operation.ADD, extreme);
+        computation.push(Operation.ADD, 1, Integer.MIN_VALUE);
+        assertEquals(extreme, computation.popCommand().getValue());
+        assertEquals(extreme, computation.popCommand().getValue());
+
+        assertTrue(computation.isEmpty());
+        assertFalse(computation.advance());
+    }
+
+    /**
+     * Test that the computation is reused after it is read or cleared.
+     */
+    @Test
+    public void testReuse() {
+        Computation computation = new ColumnarComputation();
+        for (int block = 0; block < 3; block++) {
+            for (int i = 0; i < 100; i++) {
+                computation.push(Operation.ADD, block + i, 0);
+                computation.push(Operation.MULTIPLY, new BigDecimal("1E+30"));
+            }
+            if (block == 1) {
+                computation.clear();
+                assertTrue(computation.isEmpty());
+                continue;
+            }
+            for (int i = 0; i < 100; i++) {
+                assertEquals(block + i, computation.popCommand().getLongValue());
+                assertEquals(new BigDecimal("1E+30"), computation.popCommand().getValue());
+            }
+            assertTrue(computation.isEmpty());
+        }
+    }
+
+    /**
+     * Test that random computations give the same results as plain
+     * computations with both the decimal and the tiered evaluator.
+     */
+    @Test
+    public void testSameAsPlainComputation() {
+        for (Evaluator evaluator : new Evaluator[] {new EvaluatorImpl(), new TieredEvaluator()}) {
+            ComputationAssert.assertSameAs(evaluator, evaluator, ColumnarComputation.FACTORY, 2000, 12);
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test suite for {@link CommandRingBuffer}.
+ *
+ * @author janvojt
+ */
+public class CommandRingBufferTest {
+
+    /** Number of commands passed between threads. */
+    private static final int COUNT = 100000;
+
+    /**
+     * Test reading back the stored slots.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testSlots() throws InterruptedException {
+        CommandRingBuffer ring = new CommandRingBuffer(3, WaitStrategy.PARK);
+        assertEquals(4, ring.capacity());
+
+        long first = ring.next(3);
+        ring.set(first, new LongCommand(Operation.ADD, 7));
+        ring.set(first + 1, (byte) Operation.MULTIPLY.ordinal(), 125, 2);
+        ring.set(first + 2, CommandRingBuffer.INVALID, 0, 0);
+        assertFalse(ring.isAvailable(first));
+        ring.publish(first + 2);
+
+        assertEquals(first + 2, ring.waitFor(first));
+        Command command = ring.command(first);
+        assertEquals(Operation.ADD, command.getOperation());
+        assertTrue(command.isLongValue());
+        assertEquals(7, command.getLongValue());
+        assertEquals(Operation.MULTIPLY, ring.operation(first + 1));
+        assertEquals(new BigDecimal("1.25"), ring.value(first + 1));
+        assertNull(ring.command(first + 2));
+        ring.release(first + 2);
+
+        // the slots are reused after wrapping around
+        long second = ring.next(2);
+        assertEquals(3, second);
+        ring.set(second, (byte) Operation.DIVIDE.ordinal(), new BigDecimal("1E+100"));
+        ring.set(second + 1, (byte) Operation.APPLY.ordinal(), 1, 0);
+        ring.publish(second + 1);
+        ring.close();
+
+        assertEquals(second + 1, ring.waitFor(second));
+        assertEquals(new BigDecimal("1E+100"), ring.value(second));
+        assertEquals(BigDecimal.ONE, ring.value(second + 1));
+        ring.release(second + 1);
+        assertEquals(-1, ring.waitFor(second + 2));
+    }
+
+    /**
+     * Test passing commands between threads with all the wait strategies.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testTransfer() throws InterruptedException {
+        // spinning threads may share a single processor, keep it short
+        transfer(new CommandRingBuffer(64, WaitStrategy.BUSY_SPIN), 1000);
+        transfer(new CommandRingBuffer(64, WaitStrategy.YIELD), COUNT);
+        transfer(new CommandRingBuffer(64, WaitStrategy.PARK), COUNT);
+    }
+
+    /**
+     * Passes commands from a producer thread in batches of varying size
+     * and checks their order.
+     *
+     * @param ring ring to use
+     * @param count number of commands to pass
+     * @throws InterruptedException
+     */
+    private void transfer(final CommandRingBuffer ring, final int count) throws InterruptedException {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int sent = 0;
+                    for (int batch = 1; sent < count; batch = batch % ring.capacity() + 1) {
+                        int n = Math.min(batch, count - sent);
+                        long first = ring.next(n);
+                        for (int i = 0; i < n; i++) {
+                            ring.set(first + i, (byte) Operation.ADD.ordinal(), sent++, 0);
+                        }
+                        ring.publish(first + n - 1);
+                    }
+                    ring.close();
+                } catch (Throwable ex) {
+                    failure.set(ex);
+                }
+            }
+        });
+        producer.start();
+
+        long next = 0;
+        for (long last = ring.waitFor(next); last >= 0; last = ring.waitFor(next)) {
+            for (; next <= last; next++) {
+                assertEquals(BigDecimal.valueOf(next), ring.value(next));
+            }
+            ring.release(last);
+        }
+        producer.join();
+        assertNull(failure.get());
+        assertEquals(count, next);
+    }
+
+}
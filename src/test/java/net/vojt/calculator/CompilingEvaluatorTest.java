@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import static net.vojt.calculator.ComputationAssert.computation;
+import static org.junit.Assert.*;
+
+/**
+ * Test suite for {@link CompilingEvaluator}.
+ *
+ * @author janvojt
+ */
+public class CompilingEvaluatorTest {
+
+    /** Tested instance. */
+    private CompilingEvaluator evaluator;
+
+    /** Reference evaluator. */
+    private Evaluator reference;
+
+    @Before
+    public void setUp() {
+        evaluator = new CompilingEvaluator(4, 100);
+        reference = new EvaluatorImpl();
+    }
+
+    /**
+     * Test that repeated commands are compiled on their second sighting
+     * and reuse the cached plan afterwards.
+     */
+    @Test
+    public void testCacheHit() {
+        List<Command> commands = new ArrayList<>();
+        commands.add(new Command(Operation.ADD, new BigDecimal(2)));
+        commands.add(new Command(Operation.MULTIPLY, new BigDecimal(3)));
+
+        assertEquals(new BigDecimal(9), evaluator.evaluate(computation(commands, BigDecimal.ONE)));
+        assertEquals(0, evaluator.getCacheSize());
+        assertEquals(new BigDecimal(12), evaluator.evaluate(computation(commands, new BigDecimal(2))));
+        assertEquals(1, evaluator.getCacheSize());
+        assertEquals(new BigDecimal(15), evaluator.evaluate(computation(commands, new BigDecimal(3))));
+        assertEquals(2, evaluator.getMisses());
+        assertEquals(1, evaluator.getHits());
+    }
+
+    /**
+     * Test that commands seen only once are not compiled.
+     */
+    @Test
+    public void testNoRepeats() {
+        for (int i = 0; i < 100; i++) {
+            List<Command> commands = new ArrayList<>();
+            commands.add(new LongCommand(Operation.ADD, i));
+            evaluator.evaluate(computation(commands, BigDecimal.ONE));
+        }
+        assertTrue(evaluator.getCacheSize() < 4);
+        assertEquals(100, evaluator.getMisses());
+        assertEquals(0, evaluator.getHits());
+    }
+
+    /**
+     * Test that values differing in scale only give different plans.
+     */
+    @Test
+    public void testCacheMissOnScale() {
+        List<Command> commands = new ArrayList<>();
+        commands.add(new Command(Operation.MULTIPLY, new BigDecimal("2")));
+        List<Command> scaled = new ArrayList<>();
+        scaled.add(new Command(Operation.MULTIPLY, new BigDecimal("2.0")));
+
+        for (int i = 0; i < 2; i++) {
+            assertEquals(new BigDecimal("2"), evaluator.evaluate(computation(commands, BigDecimal.ONE)));
+            assertEquals(new BigDecimal("2.0"), evaluator.evaluate(computation(scaled, BigDecimal.ONE)));
+        }
+        assertEquals(2, evaluator.getCacheSize());
+        assertEquals(4, evaluator.getMisses());
+        assertEquals(0, evaluator.getHits());
+    }
+
+    /**
+     * Test that the least recently used plan is evicted.
+     */
+    @Test
+    public void testEviction() {
+        for (int i = 0; i < 6; i++) {
+            List<Command> commands = new ArrayList<>();
+            commands.add(new LongCommand(Operation.ADD, i));
+            evaluator.evaluate(computation(commands, BigDecimal.ONE));
+            evaluator.evaluate(computation(commands, BigDecimal.ONE));
+        }
+        assertEquals(4, evaluator.getCacheSize());
+
+        List<Command> commands = new ArrayList<>();
+        commands.add(new LongCommand(Operation.ADD, 0));
+        evaluator.evaluate(computation(commands, BigDecimal.ONE));
+        assertEquals(13, evaluator.getMisses());
+        assertEquals(0, evaluator.getHits());
+    }
+
+    /**
+     * Test that computations over the length limit are not cached.
+     */
+    @Test
+    public void testLongComputation() {
+        List<Command> commands = new ArrayList<>();
+        for (int i = 0; i < 101; i++) {
+            commands.add(new LongCommand(Operation.ADD, 1));
+        }
+        assertEquals(new BigDecimal(101), evaluator.evaluate(computation(commands, BigDecimal.ZERO)));
+        assertEquals(0, evaluator.getCacheSize());
+    }
+
+    /**
+     * Test that random computations give the same results
+     * as {@link EvaluatorImpl}, including repeated ones.
+     */
+    @Test
+    public void testSameAsEvaluatorImpl() {
+        Random random = new Random(42);
+        List<List<Command>> blocks = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            blocks.add(ComputationAssert.randomCommands(random, 8));
+        }
+        for (int i = 0; i < 2000; i++) {
+            List<Command> commands = blocks.get(random.nextInt(blocks.size()));
+            BigDecimal initializer = ComputationAssert.randomValue(random);
+            assertEquals(ComputationAssert.evaluate(reference, computation(commands, initializer)),
+                    ComputationAssert.evaluate(evaluator, computation(commands, initializer)));
+        }
+        assertTrue(evaluator.getHits() > 0);
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.*;
+
+/**
+ * Random computations and assertions shared by the test suites
+ * of computations and evaluators.
+ *
+ * @author janvojt
+ */
+final class ComputationAssert {
+
+    /**
+     * Values used in random computations, including zeros of various scales,
+     * values around the long and int limits and ones not fitting into a long.
+     */
+    static final String[] VALUES = {
+        "0", "0.00", "0E+1", "0E+2", "1", "-1", "2", "2.5", "-0.125", "3", "4", "-7", "10", "1E+2", "1E-3",
+        "7.000", "1000000007", "2147483647", "4294967294", "4294967296", "999999999999999999",
+        "-999999999999999999", "9223372036854775807", "-9223372036854775808",
+        "-123456789012345678901234567890", "0.1234567890123456789"
+    };
+
+    private ComputationAssert() {
+    }
+
+    /**
+     * Picks a random value.
+     *
+     * @param random source of randomness
+     * @return one of the {@link #VALUES}
+     */
+    static BigDecimal randomValue(Random random) {
+        return new BigDecimal(VALUES[random.nextInt(VALUES.length)]);
+    }
+
+    /**
+     * Generates random commands other than apply. Integers fitting
+     * into a long are sometimes given as {@link LongCommand}s.
+     *
+     * @param random source of randomness
+     * @param maxLength limit of the number of commands, exclusive
+     * @return the commands
+     */
+    static List<Command> randomCommands(Random random, int maxLength) {
+        List<Command> commands = new ArrayList<>();
+        int length = random.nextInt(maxLength);
+        for (int i = 0; i < length; i++) {
+            Operation operation = Operation.values()[1 + random.nextInt(Operation.values().length - 1)];
+            BigDecimal value = randomValue(random);
+            commands.add(Command.isLong(value) && random.nextBoolean()
+                    ? new LongCommand(operation, value.longValue())
+                    : new Command(operation, value));
+        }
+        return commands;
+    }
+
+    /**
+     * Creates a plain computation from the commands.
+     *
+     * @param commands commands preceding apply
+     * @param initializer applied value
+     * @return computation
+     */
+    static Computation computation(List<Command> commands, BigDecimal initializer) {
+        Computation computation = new Computation();
+        for (Command command : commands) {
+            computation.pushCommand(command);
+        }
+        computation.setInitializer(initializer);
+        return computation;
+    }
+
+    /**
+     * Evaluates the computation into its textual output.
+     *
+     * @param evaluator evaluator to use
+     * @param computation computation to evaluate
+     * @return result or error message
+     */
+    static String evaluate(Evaluator evaluator, Computation computation) {
+        try {
+            return evaluator.evaluate(computation).toString();
+        } catch (ArithmeticException ex) {
+            return ex.getMessage();
+        }
+    }
+
+    /**
+     * Asserts that random blocks give the same output when pushed into
+     * computations of the factory and evaluated by the evaluator, as when
+     * pushed into plain computations and evaluated by the reference.
+     * Every block ends with the apply command and the tested computation
+     * is cleared after it.
+     *
+     * @param reference evaluator of the plain computations
+     * @param evaluator evaluator of the tested computations
+     * @param factory factory of the tested computations
+     * @param blocks number of blocks to try
+     * @param maxLength limit of the number of commands before apply, exclusive
+     */
+    static void assertSameAs(Evaluator reference, Evaluator evaluator, ComputationFactory factory,
+            int blocks, int maxLength) {
+        Random random = new Random(42);
+        for (int i = 0; i < blocks; i++) {
+            List<Command> commands = randomCommands(random, maxLength);
+            commands.add(new Command(Operation.APPLY, randomValue(random)));
+            Computation plain = new Computation();
+            Computation tested = factory.createComputation();
+            for (Command command : commands) {
+                plain.pushCommand(command);
+                tested.pushCommand(command);
+            }
+            assertEquals("Block " + i, evaluate(reference, plain), evaluate(evaluator, tested));
+            tested.clear();
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test suite for {@link ComputationFacts} and their use by the evaluators.
+ *
+ * @author janvojt
+ */
+public class ComputationFactsTest {
+
+    /** Number of commands of a computation too long to evaluate exactly. */
+    private static final int LONG_BLOCK = 200000;
+
+    /**
+     * Test that a long computation multiplied by zero is not evaluated
+     * before the multiplication.
+     */
+    @Test(timeout = 10000)
+    public void testSkipBeforeMultiplyByZero() {
+        for (Computation computation : longBlock()) {
+            computation.push(Operation.MULTIPLY, new BigDecimal("0.0"));
+            computation.push(Operation.ADD, 7, 0);
+            computation.setInitializer(new BigDecimal("1.0"));
+            // scale of the zero is the sum of all the multiplier scales
+            BigDecimal result = new EvaluatorImpl().evaluate(computation);
+            assertEquals(LONG_BLOCK + 2, result.scale());
+            assertEquals(BigInteger.valueOf(7), result.toBigInteger());
+        }
+    }
+
+    /**
+     * Test that a long computation ending with a division by zero fails
+     * without being evaluated.
+     */
+    @Test(timeout = 10000)
+    public void testFailOnDivisionByZero() {
+        for (Computation computation : longBlock()) {
+            computation.push(Operation.DIVIDE, 0, 0);
+            computation.setInitializer(BigDecimal.ONE);
+            try {
+                new TieredEvaluator().evaluate(computation);
+                fail("Division by zero expected.");
+            } catch (ArithmeticException ex) {
+                assertEquals("Division by zero", ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Test that the facts are forgotten once commands are read.
+     */
+    @Test
+    public void testFactsForgotten() {
+        Computation computation = new Computation();
+        computation.push(Operation.ADD, 1, 0);
+        computation.push(Operation.DIVIDE, 0, 0);
+        assertNotNull(computation.getFacts());
+        computation.popCommand();
+        assertNull(computation.getFacts());
+
+        // the next block starts with fresh facts
+        computation.popCommand();
+        computation.push(Operation.MULTIPLY, 0, 0);
+        assertEquals(1, computation.getFacts().getZeroPrefix());
+    }
+
+    /**
+     * Test that random computations give the same results
+     * as applying the commands one by one.
+     */
+    @Test
+    public void testSameAsApplyingCommands() {
+        Evaluator[] evaluators = {new EvaluatorImpl(), new TieredEvaluator()};
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            Computation[] computations = {new Computation(), new ColumnarComputation(), new FoldingComputation()};
+            Computation reference = new Computation();
+            int length = random.nextInt(10);
+            for (int j = 0; j < length; j++) {
+                Operation operation = Operation.values()[1 + random.nextInt(Operation.values().length - 1)];
+                BigDecimal value = ComputationAssert.randomValue(random);
+                if (random.nextBoolean()) {
+                    value = value.negate();
+                }
+                for (Computation computation : computations) {
+                    computation.push(operation, value);
+                }
+                reference.push(operation, value);
+            }
+            BigDecimal initializer = ComputationAssert.randomValue(random);
+            String expected = applyAll(reference, initializer);
+            for (Computation computation : computations) {
+                computation.setInitializer(initializer);
+                assertEquals(expected, ComputationAssert.evaluate(evaluators[i % evaluators.length], computation));
+                computation.clear();
+            }
+        }
+    }
+
+    /**
+     * Creates computations of all kinds with a long block of commands,
+     * whose exact evaluation takes very long.
+     *
+     * @return the computations
+     */
+    private static Computation[] longBlock() {
+        Computation[] computations = {new Computation(), new ColumnarComputation()};
+        for (Computation computation : computations) {
+            for (int i = 0; i < LONG_BLOCK; i++) {
+                computation.push(Operation.MULTIPLY, 15, 1);
+            }
+        }
+        return computations;
+    }
+
+    /**
+     * Applies the commands one by one, the way the evaluator did before
+     * collecting any facts.
+     *
+     * @param computation computation to read
+     * @param initializer value applied
+     * @return result or error message
+     */
+    private static String applyAll(Computation computation, BigDecimal initializer) {
+        BigDecimal result = initializer;
+        try {
+            while (!computation.isEmpty()) {
+                Command command = computation.popCommand();
+                BigDecimal value = command.getValue();
+                switch (command.getOperation()) {
+                    case ADD :
+                        result = result.add(value);
+                        break;
+                    case SUBTRACT :
+                        result = result.subtract(value);
+                        break;
+                    case MULTIPLY :
+                        result = result.multiply(value);
+                        break;
+                    default :
+                        result = result.divide(value);
+                        break;
+                }
+            }
+            return result.toString();
+        } catch (ArithmeticException ex) {
+            return ex.getMessage();
+        }
+    }
+
+}
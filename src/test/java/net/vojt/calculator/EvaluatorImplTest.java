@@ -20,6 +20,8 @@
 package net.vojt.calculator;
 
 import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -147,4 +149,56 @@ public class EvaluatorImplTest {
         evaluator.evaluate(computation);
     }
     
+    /**
+     * Test non-terminating division rounded to a precision.
+     */
+    @Test
+    public void testEvaluateDividePrecision() {
+        
+        // define the computation
+        Computation computation = new Computation();
+        computation.pushCommand(new Command(Operation.DIVIDE, new BigDecimal(3)));
+        computation.setInitializer(BigDecimal.ONE);
+        
+        // test the evaluator
+        evaluator = new EvaluatorImpl(new MathContext(5, RoundingMode.HALF_UP));
+        assertEquals(new BigDecimal("0.33333"), evaluator.evaluate(computation));
+    }
+    
+    /**
+     * Test non-terminating division failing in exact mode.
+     */
+    @Test(expected = ArithmeticException.class)
+    public void testEvaluateDivideExact() {
+        
+        // define the computation
+        Computation computation = new Computation();
+        computation.pushCommand(new Command(Operation.DIVIDE, new BigDecimal(3)));
+        computation.setInitializer(BigDecimal.ONE);
+        
+        // test the evaluator
+        evaluator.evaluate(computation);
+    }
+    
+    /**
+     * Test that rounding bounds the digits of a long multiplication chain.
+     */
+    @Test
+    public void testEvaluateMultiplyPrecision() {
+        
+        // define the computation
+        Computation computation = new Computation();
+        for (int i = 0; i < 1000; i++) {
+            computation.pushCommand(new Command(Operation.MULTIPLY, new BigDecimal("1.01")));
+        }
+        computation.setInitializer(BigDecimal.ONE);
+        
+        // test the evaluator
+        evaluator = new EvaluatorImpl(MathContext.DECIMAL64);
+        BigDecimal result = evaluator.evaluate(computation);
+        assertEquals(16, result.precision());
+        MathContext digits = new MathContext(12);
+        assertEquals(new BigDecimal("1.01").pow(1000).round(digits), result.round(digits));
+    }
+    
 }
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test suite for {@link FoldingComputation}.
+ *
+ * @author janvojt
+ */
+public class FoldingComputationTest {
+
+    /**
+     * Test that a long run without division is folded into two commands.
+     */
+    @Test
+    public void testFoldRun() {
+        Computation computation = new FoldingComputation();
+        for (int i = 0; i < 1000; i++) {
+            computation.pushCommand(new Command(Operation.ADD, BigDecimal.ONE));
+            computation.pushCommand(new Command(Operation.MULTIPLY, BigDecimal.ONE));
+        }
+
+        int count = 0;
+        while (!computation.isEmpty()) {
+            computation.popCommand();
+            count++;
+        }
+        assertEquals(2, count);
+    }
+
+    /**
+     * Test that random computations give the same results as when
+     * the commands are applied one by one.
+     */
+    @Test
+    public void testSameAsPlainComputation() {
+        Evaluator evaluator = new EvaluatorImpl();
+        ComputationAssert.assertSameAs(evaluator, evaluator, FoldingComputation.FACTORY, 2000, 12);
+    }
+
+}
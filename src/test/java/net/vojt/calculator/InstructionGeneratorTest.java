@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test suite for {@link InstructionGenerator}.
+ *
+ * @author janvojt
+ */
+public class InstructionGeneratorTest {
+
+    /** Tested instance. */
+    private InstructionGenerator generator;
+
+    @Before
+    public void setUp() {
+        generator = createGenerator();
+    }
+
+    /**
+     * Test that the same seed generates the same files.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testDeterministic() throws IOException {
+        StringWriter input = new StringWriter();
+        StringWriter expected = new StringWriter();
+        generator.generate(input, expected);
+
+        StringWriter input2 = new StringWriter();
+        StringWriter expected2 = new StringWriter();
+        createGenerator().generate(input2, expected2);
+
+        assertEquals(input.toString(), input2.toString());
+        assertEquals(expected.toString(), expected2.toString());
+        assertTrue(input.toString().length() >= 64 * 1024);
+    }
+
+    /**
+     * Test that the calculator gives the expected output.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testExpectedOutput() throws IOException {
+        StringWriter input = new StringWriter();
+        StringWriter expected = new StringWriter();
+        generator.generate(input, expected);
+
+        StringWriter output = new StringWriter();
+        InteractiveCalculator calculator = new InteractiveCalculator();
+        calculator.setReader(new StringReader(input.toString()));
+        calculator.setWriter(output);
+        calculator.run();
+
+        assertEquals(expected.toString(), output.toString());
+    }
+
+    /**
+     * Creates a generator with noise in the input.
+     *
+     * @return configured generator
+     */
+    private static InstructionGenerator createGenerator() {
+        InstructionGenerator generator = new InstructionGenerator();
+        generator.setSeed(7);
+        generator.setSize(64 * 1024);
+        generator.setBlockLength(0, 30);
+        generator.setBlockSkew(2);
+        generator.setInvalidRate(0.02);
+        generator.setBlankRate(0.01);
+        return generator;
+    }
+
+}
@@ -137,6 +137,146 @@ public class InteractiveCalculatorTest {
         assertEquals(expected, writer.toString().trim());
     }
     
+    /**
+     * Test of run method with batched output for the testing file set.
+     * 
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testRunBatch() throws IOException {
+            
+        Reader reader = new FileReader(filePath.toFile());
+        final int[] flushes = new int[1];
+        Writer writer = new StringWriter() {
+            @Override
+            public void flush() {
+                flushes[0]++;
+            }
+        };
+
+        calculator.setReader(reader);
+        calculator.setWriter(writer);
+        calculator.setOutputMode(InteractiveCalculator.OutputMode.BATCH);
+        calculator.run();
+
+        String expected = readFileToString(new File(
+                OUTPUT_DIR.getPath(),
+                filePath.getFileName().toString()
+        ));
+
+        assertEquals(expected, writer.toString().trim());
+        assertEquals(1, flushes[0]);
+    }
+    
+    /**
+     * Test of run method with parallel evaluation for the testing file set,
+     * counting the results and errors.
+     * 
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testRunParallel() throws IOException {
+            
+        Reader reader = new FileReader(filePath.toFile());
+        Writer writer = new StringWriter();
+
+        calculator.setReader(reader);
+        calculator.setWriter(writer);
+        calculator.setParallelism(4);
+        calculator.setMaxInFlight(3);
+        calculator.run();
+
+        String expected = readFileToString(new File(
+                OUTPUT_DIR.getPath(),
+                filePath.getFileName().toString()
+        ));
+
+        assertEquals(expected, writer.toString().trim());
+        long results = 0;
+        long errors = 0;
+        for (String line : expected.split("\n")) {
+            results += line.startsWith(InteractiveCalculator.RESULT_PREFIX) ? 1 : 0;
+            errors += line.startsWith(InteractiveCalculator.ERROR_PREFIX) ? 1 : 0;
+        }
+        assertEquals(results, calculator.getResults());
+        assertEquals(errors, calculator.getErrors());
+    }
+    
+    /**
+     * Test of run method folding commands as they arrive for the testing
+     * file set.
+     * 
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testRunStreaming() throws IOException {
+            
+        Reader reader = new FileReader(filePath.toFile());
+        Writer writer = new StringWriter();
+
+        calculator.setReader(reader);
+        calculator.setWriter(writer);
+        calculator.setComputationFactory(FoldingComputation.FACTORY);
+        calculator.run();
+
+        String expected = readFileToString(new File(
+                OUTPUT_DIR.getPath(),
+                filePath.getFileName().toString()
+        ));
+
+        assertEquals(expected, writer.toString().trim());
+    }
+    
+    /**
+     * Test of run method storing commands in compact arrays for the testing
+     * file set.
+     * 
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testRunColumnar() throws IOException {
+            
+        Reader reader = new FileReader(filePath.toFile());
+        Writer writer = new StringWriter();
+
+        calculator.setReader(reader);
+        calculator.setWriter(writer);
+        calculator.setComputationFactory(ColumnarComputation.FACTORY);
+        calculator.run();
+
+        String expected = readFileToString(new File(
+                OUTPUT_DIR.getPath(),
+                filePath.getFileName().toString()
+        ));
+
+        assertEquals(expected, writer.toString().trim());
+    }
+    
+    /**
+     * Test of run method collapsing runs of commands for the testing
+     * file set.
+     * 
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testRunPeephole() throws IOException {
+            
+        Reader reader = new FileReader(filePath.toFile());
+        Writer writer = new StringWriter();
+
+        calculator.setReader(reader);
+        calculator.setWriter(writer);
+        calculator.setComputationFactory(new PeepholeOptimizer());
+        calculator.run();
+
+        String expected = readFileToString(new File(
+                OUTPUT_DIR.getPath(),
+                filePath.getFileName().toString()
+        ));
+
+        assertEquals(expected, writer.toString().trim());
+    }
+    
     /**
      * Converts given file into a string with the file contents.
      * 
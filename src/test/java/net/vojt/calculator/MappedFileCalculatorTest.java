@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+ * Tests suite for {@link MappedFileCalculator} comparing its output
+ * with {@link InteractiveCalculator} on test resources.
+ *
+ * @author janvojt
+ */
+@RunWith(Parameterized.class)
+public class MappedFileCalculatorTest {
+
+    /** Path to test resource directory with input files. */
+    private static final URL INPUT_DIR = MappedFileCalculatorTest.class.getResource("/in");
+
+    /** Chunk sizes to test with, tiny chunks force lines across chunks. */
+    private static final int[] CHUNK_SIZES = {1, 3, MappedFileCalculator.DEFAULT_CHUNK_SIZE};
+
+    /** Input file. */
+    private final Path filePath;
+
+    /** Size of the mapped chunks. */
+    private final int chunkSize;
+
+    /**
+     * Setup parameters for each test.
+     *
+     * @param filePath path to input file
+     * @param chunkSize size of the mapped chunks
+     */
+    public MappedFileCalculatorTest(Path filePath, int chunkSize) {
+        this.filePath = filePath;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Factory for test parameters.
+     *
+     * @return input files combined with chunk sizes
+     * @throws IOException
+     * @throws URISyntaxException
+     */
+    @Parameterized.Parameters
+    public static Collection<Object[]> testFileset() throws IOException, URISyntaxException {
+        List<Object[]> params = new ArrayList<>();
+        Path dirPath = Paths.get(INPUT_DIR.toURI());
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(dirPath)) {
+            for (Path path : directoryStream) {
+                for (int chunkSize : CHUNK_SIZES) {
+                    params.add(new Object[] {path, chunkSize});
+                }
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Test that the mapped file gives the same output as the reader.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testRun() throws IOException {
+
+        // expected output from the reader
+        Writer expected = new StringWriter();
+        InteractiveCalculator reference = new InteractiveCalculator();
+        try (Reader reader = new FileReader(filePath.toFile())) {
+            reference.setReader(reader);
+            reference.setWriter(expected);
+            reference.run();
+        }
+
+        // output from the mapped file
+        Writer writer = new StringWriter();
+        MappedFileCalculator calculator = new MappedFileCalculator();
+        calculator.setChunkSize(chunkSize);
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            calculator.setChannel(channel);
+            calculator.setWriter(writer);
+            calculator.run();
+        }
+
+        assertEquals(expected.toString(), writer.toString());
+    }
+
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Test suite for {@link ParallelGzipInputStream} and {@link BlockGzipOutputStream}.
+ *
+ * @author janvojt
+ */
+public class ParallelGzipInputStreamTest {
+
+    /** Temporary directory with the compressed files. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Pool inflating the members. */
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Test that blocks of compressible and incompressible contents
+     * are inflated in parallel and are readable by {@link GZIPInputStream}.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testBlocks() throws IOException {
+        Random random = new Random(42);
+        byte[] contents = new byte[5 * BlockGzipOutputStream.BLOCK_SIZE + 123];
+        random.nextBytes(contents);
+        Arrays.fill(contents, BlockGzipOutputStream.BLOCK_SIZE, 3 * BlockGzipOutputStream.BLOCK_SIZE, (byte) 'x');
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = new BlockGzipOutputStream(compressed)) {
+            out.write(contents, 0, 7);
+            out.write(contents[7]);
+            out.write(contents, 8, contents.length - 8);
+        }
+        Path file = write("blocks.gz", compressed.toByteArray());
+
+        try (ParallelGzipInputStream in = open(file)) {
+            assertArrayEquals(contents, readAll(in));
+            // five full blocks, the last one and the empty one
+            assertEquals(7, in.getParallelMembers());
+        }
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+            assertArrayEquals(contents, readAll(in));
+        }
+    }
+
+    /**
+     * Test members of unknown size following the blocks.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testMembers() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        compressed.write(blockGzip("add 1\napply 2\n"));
+        compressed.write(gzip("multiply 3\n"));
+        compressed.write(gzip("apply 4\n"));
+        compressed.write(blockGzip("add 5\napply 6\n"));
+        Path file = write("members.gz", compressed.toByteArray());
+
+        try (ParallelGzipInputStream in = open(file)) {
+            assertEquals("add 1\napply 2\nmultiply 3\napply 4\nadd 5\napply 6\n",
+                    new String(readAll(in), StandardCharsets.US_ASCII));
+            assertEquals(2, in.getParallelMembers());
+        }
+    }
+
+    /**
+     * Test rejecting a file which is not compressed and a corrupt member.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testMalformed() throws IOException {
+        Path plain = write("plain.txt", "apply 1\n".getBytes(StandardCharsets.US_ASCII));
+        assertFalse(ParallelGzipInputStream.isGzip(plain));
+        try {
+            open(plain).close();
+            fail("Uncompressed file must be rejected.");
+        } catch (ZipException ex) {
+            // expected
+        }
+
+        byte[] member = blockGzip("apply 1\n");
+        // flip a bit of the CRC-32
+        member[member.length - 8 - 28] ^= 1;
+        try (ParallelGzipInputStream in = open(write("corrupt.gz", member))) {
+            readAll(in);
+            fail("Corrupt member must be rejected.");
+        } catch (ZipException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that every test input gives the same output compressed
+     * as uncompressed.
+     *
+     * @throws IOException
+     * @throws URISyntaxException
+     */
+    @Test
+    public void testResults() throws IOException, URISyntaxException {
+        Path resources = Paths.get(ParallelGzipInputStreamTest.class.getResource("/in").toURI());
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(resources)) {
+            for (Path file : files) {
+                String text = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII);
+                Path compressed = write(file.getFileName() + ".gz", blockGzip(text));
+
+                StringWriter expected = new StringWriter();
+                InteractiveCalculator plain = new InteractiveCalculator();
+                plain.setReader(new StringReader(text));
+                plain.setWriter(expected);
+                plain.run();
+
+                StringWriter actual = new StringWriter();
+                InteractiveCalculator inflated = new InteractiveCalculator();
+                try (InputStream in = open(compressed)) {
+                    inflated.setReader(new InputStreamReader(in, StandardCharsets.US_ASCII));
+                    inflated.setWriter(actual);
+                    inflated.run();
+                }
+                assertEquals(file.getFileName().toString(), expected.toString(), actual.toString());
+            }
+        }
+    }
+
+    /**
+     * Opens the compressed file.
+     *
+     * @param file compressed file
+     * @return stream inflating the file
+     * @throws IOException
+     */
+    private ParallelGzipInputStream open(Path file) throws IOException {
+        return new ParallelGzipInputStream(FileChannel.open(file, StandardOpenOption.READ), pool);
+    }
+
+    /**
+     * Writes the bytes into a new file.
+     *
+     * @param name file name
+     * @param bytes file contents
+     * @return the file
+     * @throws IOException
+     */
+    private Path write(String name, byte[] bytes) throws IOException {
+        Path file = folder.getRoot().toPath().resolve(name);
+        Files.write(file, bytes);
+        return file;
+    }
+
+    /**
+     * Compresses the text with {@link BlockGzipOutputStream}.
+     *
+     * @param text text to compress
+     * @return the compressed bytes
+     * @throws IOException
+     */
+    private static byte[] blockGzip(String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = new BlockGzipOutputStream(bytes)) {
+            out.write(text.getBytes(StandardCharsets.US_ASCII));
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Compresses the text with {@link GZIPOutputStream}.
+     *
+     * @param text text to compress
+     * @return the compressed bytes
+     * @throws IOException
+     */
+    private static byte[] gzip(String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(text.getBytes(StandardCharsets.US_ASCII));
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads the stream to its end.
+     *
+     * @param in stream to read
+     * @return all the bytes read
+     * @throws IOException
+     */
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            bytes.write(buffer, 0, n);
+        }
+        return bytes.toByteArray();
+    }
+
+}
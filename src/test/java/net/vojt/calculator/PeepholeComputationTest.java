@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test suite for {@link PeepholeComputation}.
+ *
+ * @author janvojt
+ */
+public class PeepholeComputationTest {
+
+    /** Optimizer creating the tested computations. */
+    private PeepholeOptimizer optimizer;
+
+    @Before
+    public void setUp() {
+        optimizer = new PeepholeOptimizer();
+    }
+
+    /**
+     * Test that runs of additions and multiplications are collapsed
+     * and counted, while divisions are kept.
+     */
+    @Test
+    public void testCollapseRuns() {
+        Computation computation = optimizer.createComputation();
+        computation.pushCommand(new LongCommand(Operation.ADD, 1));
+        computation.pushCommand(new LongCommand(Operation.SUBTRACT, 2));
+        computation.pushCommand(new Command(Operation.ADD, new BigDecimal("3.50")));
+        computation.pushCommand(new LongCommand(Operation.MULTIPLY, 2));
+        computation.pushCommand(new LongCommand(Operation.MULTIPLY, 5));
+        computation.pushCommand(new LongCommand(Operation.DIVIDE, 4));
+        computation.pushCommand(new LongCommand(Operation.DIVIDE, 5));
+        computation.pushCommand(new LongCommand(Operation.SUBTRACT, 7));
+
+        assertCommand(Operation.ADD, new BigDecimal("2.50"), computation.popCommand());
+        Command product = computation.popCommand();
+        assertCommand(Operation.MULTIPLY, BigDecimal.TEN, product);
+        assertTrue(product.isLongValue());
+        assertCommand(Operation.DIVIDE, BigDecimal.valueOf(4), computation.popCommand());
+        assertCommand(Operation.DIVIDE, BigDecimal.valueOf(5), computation.popCommand());
+        assertCommand(Operation.SUBTRACT, BigDecimal.valueOf(7), computation.popCommand());
+        assertTrue(computation.isEmpty());
+
+        assertEquals(8, optimizer.getCommands());
+        assertEquals(3, optimizer.getRemoved());
+    }
+
+    /**
+     * Test that long values falling out of the long range continue
+     * in decimal arithmetic.
+     */
+    @Test
+    public void testOverflow() {
+        Computation computation = optimizer.createComputation();
+        computation.pushCommand(new LongCommand(Operation.SUBTRACT, Long.MIN_VALUE));
+        computation.pushCommand(new LongCommand(Operation.ADD, 1));
+        computation.pushCommand(new LongCommand(Operation.MULTIPLY, Long.MAX_VALUE));
+        computation.pushCommand(new LongCommand(Operation.MULTIPLY, Long.MAX_VALUE));
+
+        assertCommand(Operation.ADD, new BigDecimal("9223372036854775809"), computation.popCommand());
+        assertCommand(Operation.MULTIPLY, BigDecimal.valueOf(Long.MAX_VALUE).pow(2), computation.popCommand());
+    }
+
+    /**
+     * Test that commands are queued as they are while the optimizer
+     * is disabled.
+     */
+    @Test
+    public void testDisabled() {
+        Computation computation = optimizer.createComputation();
+        computation.pushCommand(new LongCommand(Operation.ADD, 1));
+        computation.pushCommand(new LongCommand(Operation.ADD, 2));
+        optimizer.setEnabled(false);
+        computation.pushCommand(new LongCommand(Operation.ADD, 3));
+        computation.pushCommand(new LongCommand(Operation.ADD, 4));
+
+        assertCommand(Operation.ADD, BigDecimal.valueOf(3), computation.popCommand());
+        assertCommand(Operation.ADD, BigDecimal.valueOf(3), computation.popCommand());
+        assertCommand(Operation.ADD, BigDecimal.valueOf(4), computation.popCommand());
+        assertTrue(computation.isEmpty());
+        assertEquals(4, optimizer.getCommands());
+        assertEquals(1, optimizer.getRemoved());
+    }
+
+    /**
+     * Test that random computations give the same results as when
+     * the commands are applied one by one, including in long arithmetic.
+     */
+    @Test
+    public void testSameAsPlainComputation() {
+        Evaluator evaluator = new EvaluatorImpl();
+        ComputationAssert.assertSameAs(evaluator, evaluator, optimizer, 5000, 12);
+        ComputationAssert.assertSameAs(evaluator, new TieredEvaluator(), optimizer, 5000, 12);
+        assertTrue(optimizer.getRemoved() > 0);
+    }
+
+    /**
+     * Asserts the command operation and value, including its scale.
+     *
+     * @param operation expected operation
+     * @param value expected value
+     * @param command actual command
+     */
+    private static void assertCommand(Operation operation, BigDecimal value, Command command) {
+        assertEquals(operation, command.getOperation());
+        assertEquals(value, command.getValue());
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+ * Tests suite for {@link PipelinedCalculator} comparing its output
+ * with {@link InteractiveCalculator} on test resources.
+ *
+ * @author janvojt
+ */
+@RunWith(Parameterized.class)
+public class PipelinedCalculatorTest {
+
+    /** Path to test resource directory with input files. */
+    private static final URL INPUT_DIR = PipelinedCalculatorTest.class.getResource("/in");
+
+    /** Chunk sizes to test with, tiny chunks force lines across chunks. */
+    private static final int[] CHUNK_SIZES = {1, 3, PipelinedCalculator.DEFAULT_CHUNK_SIZE};
+
+    /** Input file. */
+    private final Path filePath;
+
+    /** Size of the input chunks. */
+    private final int chunkSize;
+
+    /**
+     * Setup parameters for each test.
+     *
+     * @param filePath path to input file
+     * @param chunkSize size of the input chunks
+     */
+    public PipelinedCalculatorTest(Path filePath, int chunkSize) {
+        this.filePath = filePath;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Factory for test parameters.
+     *
+     * @return input files combined with chunk sizes
+     * @throws IOException
+     * @throws URISyntaxException
+     */
+    @Parameterized.Parameters
+    public static Collection<Object[]> testFileset() throws IOException, URISyntaxException {
+        List<Object[]> params = new ArrayList<>();
+        Path dirPath = Paths.get(INPUT_DIR.toURI());
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(dirPath)) {
+            for (Path path : directoryStream) {
+                for (int chunkSize : CHUNK_SIZES) {
+                    params.add(new Object[] {path, chunkSize});
+                }
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Test that the pipeline gives the same output as the reader.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testRun() throws IOException {
+
+        // expected output from the reader
+        Writer expected = new StringWriter();
+        InteractiveCalculator reference = new InteractiveCalculator();
+        try (Reader reader = new FileReader(filePath.toFile())) {
+            reference.setReader(reader);
+            reference.setWriter(expected);
+            reference.run();
+        }
+
+        // output from the pipeline
+        Writer writer = new StringWriter();
+        PipelinedCalculator calculator = new PipelinedCalculator();
+        calculator.setChunkSize(chunkSize);
+        calculator.setQueueCapacity(2);
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            calculator.setChannel(channel);
+            calculator.setWriter(writer);
+            calculator.run();
+        }
+
+        assertEquals(expected.toString(), writer.toString());
+        assertEquals(Files.size(filePath), calculator.getBytesRead());
+        assertTrue(calculator.getMaxQueueDepth(PipelinedCalculator.Stage.EVALUATE) <= 2);
+    }
+
+    /**
+     * Test that a failure of the input stops the pipeline.
+     */
+    @Test
+    public void testReadFailure() {
+        final ReadableByteChannel input = Channels.newChannel(
+                new ByteArrayInputStream("add 1\napply 2\n".getBytes(StandardCharsets.US_ASCII)));
+        PipelinedCalculator calculator = new PipelinedCalculator();
+        calculator.setChunkSize(chunkSize);
+        calculator.setChannel(new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                int n = input.read(dst);
+                if (n < 0) {
+                    throw new IOException("Broken input.");
+                }
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        calculator.setWriter(new StringWriter());
+        try {
+            calculator.run();
+            fail("Failure of the input must be reported.");
+        } catch (IOException ex) {
+            assertEquals("Broken input.", ex.getMessage());
+        }
+    }
+
+}
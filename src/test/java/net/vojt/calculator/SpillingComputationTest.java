@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Test suite for {@link SpillingComputation}.
+ *
+ * @author janvojt
+ */
+public class SpillingComputationTest {
+
+    /** Directory for the spilled commands. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test that commands over the threshold are spilled and read back
+     * in order, and that the file is deleted once they are read.
+     */
+    @Test
+    public void testSpill() {
+        SpillingComputation computation = new SpillingComputation(10, folder.getRoot().toPath());
+        BigDecimal big = new BigDecimal("-123456789012345678901234567890.5");
+        for (int i = 0; i < 100000; i++) {
+            computation.push(Operation.ADD, i, i % 3);
+            computation.pushCommand(new Command(Operation.SUBTRACT, big));
+        }
+        assertTrue(computation.isSpilled());
+
+        for (int i = 0; i < 100000; i++) {
+            if (i % 2 == 0) {
+                Command command = computation.popCommand();
+                assertEquals(Operation.ADD, command.getOperation());
+                assertEquals(BigDecimal.valueOf(i, i % 3), command.getValue());
+            } else {
+                assertTrue(computation.advance());
+                assertEquals(Operation.ADD, computation.currentOperation());
+                assertEquals(i % 3 == 0, computation.isCurrentLong());
+                assertEquals(BigDecimal.valueOf(i, i % 3), computation.currentValue());
+            }
+            assertEquals(big, computation.popCommand().getValue());
+        }
+        assertTrue(computation.isEmpty());
+        assertFalse(computation.advance());
+        assertFalse(computation.isSpilled());
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    /**
+     * Test values longer than the buffers and commands pushed while
+     * the spilled ones are being read.
+     */
+    @Test
+    public void testLargeValueAndInterleaving() {
+        Computation computation = new SpillingComputation(1, folder.getRoot().toPath());
+        BigDecimal huge = new BigDecimal(BigInteger.ONE.shiftLeft(12000000).negate(), 7);
+        computation.push(Operation.ADD, 1, 0);
+        computation.push(Operation.MULTIPLY, huge);
+        computation.push(Operation.ADD, 2, 0);
+
+        assertEquals(1, computation.popCommand().getLongValue());
+        assertEquals(huge, computation.popCommand().getValue());
+        computation.push(Operation.DIVIDE, 3, 0);
+        assertEquals(2, computation.popCommand().getLongValue());
+        assertEquals(3, computation.popCommand().getLongValue());
+        assertTrue(computation.isEmpty());
+    }
+
+    /**
+     * Test that clearing the computation releases its file.
+     */
+    @Test
+    public void testClear() {
+        SpillingComputation computation = new SpillingComputation(0, folder.getRoot().toPath());
+        computation.push(Operation.ADD, 1, 0);
+        assertTrue(computation.isSpilled());
+
+        computation.clear();
+        assertTrue(computation.isEmpty());
+        assertFalse(computation.isSpilled());
+        assertEquals(0, folder.getRoot().list().length);
+
+        // the computation is usable after clearing
+        computation.push(Operation.ADD, 2, 0);
+        assertEquals(2, computation.popCommand().getLongValue());
+    }
+
+    /**
+     * Test that random computations give the same results as plain
+     * computations with both the decimal and the tiered evaluator.
+     */
+    @Test
+    public void testSameAsPlainComputation() {
+        ComputationFactory factory = new ComputationFactory() {
+            @Override
+            public Computation createComputation() {
+                return new SpillingComputation(3, folder.getRoot().toPath());
+            }
+        };
+        for (Evaluator evaluator : new Evaluator[] {new EvaluatorImpl(), new TieredEvaluator()}) {
+            ComputationAssert.assertSameAs(evaluator, evaluator, factory, 2000, 12);
+        }
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import static net.vojt.calculator.ComputationAssert.computation;
+import static org.junit.Assert.*;
+
+/**
+ * Test suite for {@link TieredEvaluator}.
+ *
+ * @author janvojt
+ */
+public class TieredEvaluatorTest {
+
+    /** Tested instance. */
+    private Evaluator evaluator;
+
+    /** Reference evaluator. */
+    private Evaluator reference;
+
+    @Before
+    public void setUp() {
+        evaluator = new TieredEvaluator();
+        reference = new EvaluatorImpl();
+    }
+
+    /**
+     * Test computation staying in long arithmetic.
+     */
+    @Test
+    public void testEvaluateLong() {
+        List<Command> commands = new ArrayList<>();
+        commands.add(new LongCommand(Operation.ADD, 3));
+        commands.add(new LongCommand(Operation.MULTIPLY, 4));
+        commands.add(new LongCommand(Operation.SUBTRACT, 4));
+        commands.add(new LongCommand(Operation.DIVIDE, 2));
+        assertEquals(new BigDecimal(6), evaluator.evaluate(computation(commands, BigDecimal.ONE)));
+    }
+
+    /**
+     * Test falling back on overflow.
+     */
+    @Test
+    public void testEvaluateOverflow() {
+        List<Command> commands = new ArrayList<>();
+        commands.add(new LongCommand(Operation.MULTIPLY, Long.MAX_VALUE / 2));
+        commands.add(new LongCommand(Operation.MULTIPLY, 10));
+        BigDecimal expected = BigDecimal.valueOf(Long.MAX_VALUE / 2).multiply(BigDecimal.TEN).multiply(BigDecimal.TEN);
+        assertEquals(expected, evaluator.evaluate(computation(commands, BigDecimal.TEN)));
+    }
+
+    /**
+     * Test falling back on a division with a remainder.
+     */
+    @Test
+    public void testEvaluateRemainder() {
+        List<Command> commands = new ArrayList<>();
+        commands.add(new LongCommand(Operation.DIVIDE, 4));
+        commands.add(new LongCommand(Operation.ADD, 1));
+        assertEquals(new BigDecimal("1.25"), evaluator.evaluate(computation(commands, BigDecimal.ONE)));
+    }
+
+    /**
+     * Test falling back on a fractional value and keeping its scale.
+     */
+    @Test
+    public void testEvaluateFraction() {
+        List<Command> commands = new ArrayList<>();
+        commands.add(new LongCommand(Operation.ADD, 1));
+        commands.add(new Command(Operation.MULTIPLY, new BigDecimal("2.0")));
+        assertEquals(new BigDecimal("4.0"), evaluator.evaluate(computation(commands, BigDecimal.ONE)));
+    }
+
+    /**
+     * Test division by zero failing the same way as in decimal arithmetic.
+     */
+    @Test(expected = ArithmeticException.class)
+    public void testEvaluateZeroDivision() {
+        List<Command> commands = new ArrayList<>();
+        commands.add(new LongCommand(Operation.DIVIDE, 0));
+        evaluator.evaluate(computation(commands, BigDecimal.ONE));
+    }
+
+    /**
+     * Test that random computations give the same results
+     * as {@link EvaluatorImpl}.
+     */
+    @Test
+    public void testSameAsEvaluatorImpl() {
+        ComputationAssert.assertSameAs(reference, evaluator, Computation.FACTORY, 5000, 8);
+    }
+
+    /**
+     * Test that random computations give the same results as
+     * {@link EvaluatorImpl} when rounding to precisions both below
+     * and above the digits of a long.
+     */
+    @Test
+    public void testSameAsEvaluatorImplWithPrecision() {
+        Random random = new Random(42);
+        int[] precisions = {3, 18, 19, 25};
+        for (int i = 0; i < 5000; i++) {
+            MathContext mc = new MathContext(precisions[i % precisions.length], RoundingMode.HALF_UP);
+            List<Command> commands = ComputationAssert.randomCommands(random, 8);
+            BigDecimal initializer = ComputationAssert.randomValue(random);
+            assertEquals(ComputationAssert.evaluate(new EvaluatorImpl(mc), computation(commands, initializer)),
+                    ComputationAssert.evaluate(new TieredEvaluator(mc), computation(commands, initializer)));
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2014 janvojt.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package net.vojt.calculator;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Test suite for {@link TreeReductionEvaluator}.
+ *
+ * @author janvojt
+ */
+public class TreeReductionEvaluatorTest {
+
+    /** Pool reducing the runs. */
+    private ForkJoinPool pool;
+
+    /** Directory for the spilled commands. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Test that a long computation gives the same result, including
+     * the scale, as when the commands are applied one by one.
+     */
+    @Test
+    public void testLongComputation() {
+        Computation plain = new Computation();
+        Computation tree = new Computation();
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            Command command = i % 3 == 2
+                    ? new Command(Operation.MULTIPLY, BigDecimal.valueOf(1 + random.nextInt(20), random.nextInt(3)))
+                    : new Command(random.nextBoolean() ? Operation.ADD : Operation.SUBTRACT,
+                            BigDecimal.valueOf(random.nextInt(1000), random.nextInt(4) - 1));
+            plain.pushCommand(command);
+            tree.pushCommand(command);
+        }
+        plain.setInitializer(new BigDecimal("1.5"));
+        tree.setInitializer(new BigDecimal("1.5"));
+
+        BigDecimal expected = new EvaluatorImpl().evaluate(plain);
+        BigDecimal actual = new TreeReductionEvaluator(1000, pool, MathContext.UNLIMITED).evaluate(tree);
+        assertEquals(expected.scale(), actual.scale());
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * Test that a computation which has spilled is evaluated as it is read,
+     * without collecting its runs for the pool.
+     */
+    @Test
+    public void testSpilledComputation() {
+        SpillingComputation spilled = new SpillingComputation(10, folder.getRoot().toPath());
+        Computation plain = new Computation();
+        for (int i = 0; i < 1000; i++) {
+            Command command = new LongCommand(i % 2 == 0 ? Operation.ADD : Operation.MULTIPLY, 1 + i % 3);
+            spilled.pushCommand(command);
+            plain.pushCommand(command);
+        }
+        spilled.setInitializer(new BigDecimal("1.5"));
+        plain.setInitializer(new BigDecimal("1.5"));
+        assertTrue(spilled.isSpilled());
+
+        // a pool refusing all the tasks shows the runs are not reduced in it
+        ForkJoinPool closed = new ForkJoinPool(1);
+        closed.shutdown();
+        assertEquals(new EvaluatorImpl().evaluate(plain),
+                new TreeReductionEvaluator(2, closed, MathContext.UNLIMITED).evaluate(spilled));
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    /**
+     * Test that divisions are applied in order and fail the same way.
+     */
+    @Test
+    public void testDivide() {
+        Evaluator eval = new TreeReductionEvaluator(2, pool, MathContext.UNLIMITED);
+
+        Computation computation = new Computation();
+        computation.pushCommand(new LongCommand(Operation.ADD, 3));
+        computation.pushCommand(new LongCommand(Operation.MULTIPLY, 4));
+        computation.pushCommand(new LongCommand(Operation.DIVIDE, 8));
+        computation.pushCommand(new LongCommand(Operation.SUBTRACT, 1));
+        computation.pushCommand(new LongCommand(Operation.MULTIPLY, 2));
+        computation.setInitializer(BigDecimal.ONE);
+        assertEquals(BigDecimal.valueOf(2), eval.evaluate(computation));
+
+        computation.pushCommand(new LongCommand(Operation.ADD, 2));
+        computation.pushCommand(new LongCommand(Operation.ADD, 1));
+        computation.pushCommand(new LongCommand(Operation.DIVIDE, 3));
+        computation.setInitializer(BigDecimal.ONE);
+        try {
+            eval.evaluate(computation);
+            fail("Non-terminating division must fail.");
+        } catch (ArithmeticException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that random computations give the same results as from
+     * {@link EvaluatorImpl}, both exact and with a precision.
+     */
+    @Test
+    public void testSameAsEvaluatorImpl() {
+        MathContext mc = new MathContext(5);
+        ComputationAssert.assertSameAs(new EvaluatorImpl(),
+                new TreeReductionEvaluator(2, pool, MathContext.UNLIMITED), Computation.FACTORY, 5000, 20);
+        ComputationAssert.assertSameAs(new EvaluatorImpl(mc),
+                new TreeReductionEvaluator(2, pool, mc), Computation.FACTORY, 5000, 20);
+    }
+
+}